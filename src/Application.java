@@ -4,12 +4,23 @@ import hk.edu.polyu.comp.comp2021.cvfs.model.CVFS;
 import hk.edu.polyu.comp.comp2021.cvfs.model.CommandTool;
 
 import javax.swing.*;
+import java.io.IOException;
 
 public class Application {
 
     // This program is written in MacOS system, if there are any issues feel free to contact us.
 
-    public static void main(String[] args){
+    public static void main(String[] args) throws IOException {
+        //--console reads commands from standard input instead of opening the window
+        if (args.length > 0 && args[0].equals("--console")) {
+            CommandTool.runConsole();
+            return;
+        }
+        //--shard <port> serves one shard of a sharded disk (0 picks a free port)
+        if (args.length > 1 && args[0].equals("--shard")) {
+            CommandTool.runShard(Integer.parseInt(args[1]));
+            return;
+        }
         CVFS cvfs = new CVFS();
         // Initialize and utilize the system
         SwingUtilities.invokeLater(CommandTool::new);
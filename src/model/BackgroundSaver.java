@@ -0,0 +1,147 @@
+package hk.edu.polyu.comp.comp2021.cvfs.model;
+
+import java.io.BufferedOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Writes disk images on a background thread
+// The caller hands over an object graph that the live tree no longer changes
+// (a copy-on-write snapshot), so commands keep running during the write. Images
+// are written to a temp file next to the target and renamed over it at the end,
+// so a reader never sees a half written image and a failed save keeps the old one.
+class BackgroundSaver {
+    private static final int PROGRESS_STEP = 256 * 1024;
+
+    // One thread, saves run in the order they were asked for. The thread is not a
+    // daemon, so a running save is finished before the JVM exits on its own,
+    // and it goes away after a few idle seconds.
+    private final ThreadPoolExecutor executor = new ThreadPoolExecutor(1, 1, 5, TimeUnit.SECONDS,
+            new LinkedBlockingQueue<>(), r -> new Thread(r, "cvfs-save"));
+    private final Map<Path, AtomicLong> running = new ConcurrentHashMap<>();
+    private volatile CompletableFuture<?> last = CompletableFuture.completedFuture(null);
+
+    interface Listener {
+        void progress(Path target, long bytesWritten);
+
+        void completed(Path target, long bytes);
+
+        void failed(Path target, Throwable error);
+    }
+
+    BackgroundSaver() {
+        executor.allowCoreThreadTimeOut(true);
+    }
+
+    interface Writer {
+        long write(Progress progress) throws IOException;
+    }
+
+    //queue a save, the returned future completes after the listener was told
+    public CompletableFuture<Long> save(Path target, Writer writer, Listener listener) {
+        CompletableFuture<Long> written = CompletableFuture.supplyAsync(() -> {
+            AtomicLong progress = new AtomicLong();
+            running.put(target, progress);
+            try {
+                return writer.write(bytes -> {
+                    progress.set(bytes);
+                    listener.progress(target, bytes);
+                });
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            } finally {
+                running.remove(target);
+            }
+        }, executor);
+        CompletableFuture<Long> reported = written.whenComplete((bytes, error) -> {
+            if (error == null) {
+                listener.completed(target, bytes);
+            } else {
+                listener.failed(target, error instanceof CompletionException ? error.getCause() : error);
+            }
+        });
+        last = reported;
+        return reported;
+    }
+
+    //block until every queued save has finished (used by load and quit)
+    public void awaitAll() {
+        //failures were already reported to the listener
+        last.handle((v, e) -> null).join();
+    }
+
+    //saves in progress and the bytes written so far
+    public Map<Path, AtomicLong> running() {
+        return running;
+    }
+
+    interface Progress {
+        void written(long bytes);
+    }
+
+    //write an image to a temp file in the same directory, then rename it over the target
+    static long writeAtomically(Object image, Path target, Progress progress) throws IOException {
+        Path dir = target.toAbsolutePath().getParent();
+        Files.createDirectories(dir);
+        Path temp = Files.createTempFile(dir, target.getFileName().toString(), ".tmp");
+        try {
+            long bytes;
+            try (OutputStream out = new BufferedOutputStream(new CountingOutputStream(Files.newOutputStream(temp), progress))) {
+                bytes = DiskImage.write(image, out);
+            }
+            try {
+                Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING);
+            }
+            return bytes;
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    // Reports the bytes written every PROGRESS_STEP bytes
+    private static class CountingOutputStream extends FilterOutputStream {
+        private final Progress progress;
+        private long count;
+        private long reported;
+
+        CountingOutputStream(OutputStream out, Progress progress) {
+            super(out);
+            this.progress = progress;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            count(1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            count(len);
+        }
+
+        private void count(int n) {
+            count += n;
+            if (count - reported >= PROGRESS_STEP) {
+                reported = count;
+                progress.written(count);
+            }
+        }
+    }
+}
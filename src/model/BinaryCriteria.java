@@ -0,0 +1,101 @@
+package hk.edu.polyu.comp.comp2021.cvfs.model;
+
+import java.util.Map;
+
+class BinaryCriteria extends Criteria{
+    private static final long serialVersionUID = 1L;
+    //private String criName;
+    private Criteria critB;
+    private Criteria critC;
+    private String logicOp;
+
+    public BinaryCriteria(String critA, String critB, String critC, CriteriaManager critM, String logicOp){
+        super(critA, critM);
+        this.critB = critM.searchCri(critB);
+        this.critC = critM.searchCri(critC);
+        this.logicOp = logicOp;
+
+        critM.appendCri(this);
+    }
+
+    public boolean evaluate(File file){
+        boolean resultB = critB.evaluate(file);
+        boolean resultC = critC.evaluate(file);
+        return combine(resultB, resultC);
+    }
+
+    @Override
+    protected boolean evaluateMemo(File file, Map<Criteria, Boolean> memo){
+        return combine(critB.evaluate(file, memo), critC.evaluate(file, memo));
+    }
+
+    Criteria getCritB(){
+        return critB;
+    }
+
+    Criteria getCritC(){
+        return critC;
+    }
+
+    String getLogicOp(){
+        return logicOp;
+    }
+
+    //the second operand only sees the files the first one left open
+    @Override
+    public long[] evaluate(FileBatch batch, long[] within){
+        long[] maskB = critB.evaluate(batch, within);
+        switch (logicOp){
+            case "&&":
+                return FileBatch.isEmpty(maskB) ? maskB : critC.evaluate(batch, maskB);
+            case "||":
+                long[] open = FileBatch.andNot(within.clone(), maskB);
+                return FileBatch.isEmpty(open) ? maskB : FileBatch.or(maskB, critC.evaluate(batch, open));
+            default:
+                throw new IllegalArgumentException("Invalid operation for binary criteria.");
+        }
+    }
+
+    private boolean combine(boolean resultB, boolean resultC){
+        switch (logicOp){
+            case "&&":
+                return resultB && resultC;
+            case "||":
+                return resultB || resultC;
+            default:
+                throw new IllegalArgumentException("Invalid operation for binary criteria.");
+        }
+    }
+
+    public String print(){
+        return String.format("(%s %s %s)", critB.print(), logicOp, critB.print());
+    }
+
+    @Override
+    public boolean canMatchAny(Directory dir){
+        if(logicOp.equals("&&")){
+            return critB.canMatchAny(dir) && critC.canMatchAny(dir);
+        }
+        return critB.canMatchAny(dir) || critC.canMatchAny(dir);
+    }
+
+    @Override
+    public boolean mustMatchAll(Directory dir){
+        if(logicOp.equals("&&")){
+            return critB.mustMatchAll(dir) && critC.mustMatchAll(dir);
+        }
+        return critB.mustMatchAll(dir) || critC.mustMatchAll(dir);
+    }
+
+    @Override
+    public void prepare(VirtualDisk disk){
+        critB.prepare(disk);
+        critC.prepare(disk);
+    }
+
+    @Override
+    public void release(){
+        critB.release();
+        critC.release();
+    }
+}
@@ -1,788 +1,657 @@
 package hk.edu.polyu.comp.comp2021.cvfs.model;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
+
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
 import java.io.Serializable;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Flow;
 
+// CVFS class
+public class CVFS implements Serializable{
+    //the UIDs of the classes saved before they were pinned, so images from then still load
+    private static final long serialVersionUID = -3093516861017273085L;
+    private VirtualDisk currentDisk;
+    private Directory workingDirectory;
+    private CriteriaManager critManager;
+    private transient DiskRegistry registry = new DiskRegistry();
+    private transient Transaction transaction;
+    private transient BackgroundSaver saver = new BackgroundSaver();
+    private transient ReplicationLeader leader;
+    private transient ReplicationFollower follower;
+    private transient ShardRouter router;
+    private transient CompactDisk compactDisk; //set while the disk in use is a compact one
+
+    //mutations a replication leader logs, and the ones that replace the disk so followers reload a snapshot
+    static final Set<String> REPLAYED = Set.of("newDoc", "newDir", "appendDoc", "delete", "deleteWhere", "rDeleteWhere",
+            "rename", "move", "copy", "newSimpleCri", "newNegation", "newBinaryCri", "setQuota", "snapshot");
+    static final Set<String> RESYNCED = Set.of("newDisk", "load", "useDisk", "rollback");
+    //commands a sharded CVFS still runs itself, the others go to the shards
+    static final Set<String> SHARD_LOCAL = Set.of("shard", "shards", "stats");
+    //commands a compact disk runs, the others need the File objects
+    static final Set<String> COMPACT_COMMANDS = Set.of("newDisk", "newDoc", "newDir", "delete", "rename",
+            "changeDir", "list", "rList", "stats");
 
-// Base class for File - Documents & Directory
-abstract class File implements Serializable{
-    protected String name;
-
-    public File(String name) {
-        setName(name);
+    public CVFS(){
+        createDisk(1000);
+        critManager = currentDisk.getCriteriaManager();
     }
 
-    public void setName(String name) {
-        //can only be alphanumeric and 10 characters long
-        if(!name.matches("[a-zA-Z0-9]{1,10}"))
-            throw new IllegalArgumentException("Name can only contain alphanumeric characters");
-
-        this.name = name;
+    //the object written to an image, detached from the live tree
+    private CVFS(VirtualDisk disk, Directory workingDirectory, CriteriaManager critManager){
+        this.currentDisk = disk;
+        this.workingDirectory = workingDirectory;
+        this.critManager = critManager;
     }
 
-    public String getName() { return name; }
-
-    //implementation in Document and File
-    public abstract int getSize();
-}
-
-// Document class
-class Document extends File {
-    private String type;
-    private String content;
-    private static final List<String> VALID_TYPES = List.of("txt", "java", "html", "css");
-
-    public Document(String name, String type, String content) {
-        super(name);
-
-        //check if type is valid
-        if(!VALID_TYPES.contains(type))
-            throw new IllegalArgumentException("Invalid document type");
-
-        this.type = type;
-        this.content = content;
+    //O(1) consistent copy for saving, later commands do not change it
+    private CVFS imageCopy(){
+        VirtualDisk disk = currentDisk.imageCopyWithIndexes();
+        CriteriaManager criteria = critManager == currentDisk.getCriteriaManager() ? disk.getCriteriaManager() : critManager.copy();
+        return new CVFS(disk, disk.sameDirectory(currentDisk, workingDirectory), criteria);
     }
 
-    @Override
-    public int getSize() {
-        return 40 + content.length()*2;
+    //newDisk replaces the disk in use, keeping its name in the registry
+    public void createDisk(int size){
+        checkNoTransaction();
+        VirtualDisk disk = new VirtualDisk(size);
+        if(currentDisk != null){
+            disk.setName(currentDisk.getName());
+        }
+        this.currentDisk = disk;
+        this.workingDirectory = currentDisk.getRootDirectory();
+        this.compactDisk = null;
+        registry.put(disk);
     }
 
-    public String getType() {
-        return type;
+    //newDisk <size> compact: the disk in use is kept in a CompactTree until the next newDisk
+    public void createCompactDisk(int size){
+        checkNoTransaction();
+        if(leader != null || follower != null){
+            throw new IllegalArgumentException("Stop replication first.");
+        }
+        compactDisk = new CompactDisk(size);
     }
 
-    public String getContent(){
-        return content;
+    public boolean isCompact(){
+        return compactDisk != null;
     }
-}
-
-// Directory class
-class Directory extends File {
-    private List<File> contents;
 
-    public Directory(String name) {
-        super(name);
-        this.contents = new ArrayList<>();
+    CompactDisk getCompactDisk(){
+        return compactDisk;
     }
 
-    public void addEntity(File entity){
-        for(File existingEntity : contents){
-            if(existingEntity.getName().equals(entity.getName())){
-                throw new IllegalArgumentException("The filename has already existed");
-            }
+    //[batch] begin / commit / abort
+    public void begin(){
+        if(transaction != null){
+            throw new IllegalArgumentException("A batch is already open.");
         }
-        contents.add(entity);
+        transaction = new Transaction(currentDisk);
     }
 
+    public boolean inTransaction(){
+        return transaction != null;
+    }
 
-    public File findFile(String name){
-        for (File entity : contents){
-            if(entity.getName().equals(name)) {
-                return entity;
-            }
-        }
-        return null;
+    public Transaction getTransaction(){
+        return transaction;
     }
 
-    public Directory findParent(Directory curr){
-        if(curr.getContents().contains(this)){
-            return curr;
+    public int commit(){
+        if(transaction == null){
+            throw new IllegalArgumentException("No batch is open.");
         }
-
-        for(File entity: curr.getContents()){
-            if(entity instanceof Directory dir){
-                Directory parent = findParent(dir);
-                if(parent != null){
-                    return parent;
-                }
-            }
+        Transaction tx = transaction;
+        transaction = null;
+        tx.commit();
+        if(leader != null){
+            //the batch is one record, followers apply it as a whole
+            leader.getLog().append(tx.record());
         }
-        return null;
+        return tx.size();
     }
 
-    public void renameEntity(String fName, String newName){
-        File file = findFile(fName);
-        if(findFile(fName) == null)
-            throw new IllegalArgumentException("File not found in the directory.");
-        file.setName(newName);
-    }
-
-    public boolean removeEntity(String name) {
-        boolean removed = contents.removeIf(entity -> entity.getName().equals(name));
-
-        if(!removed){
-            System.out.println("File not found in the directory.");
+    //shard connect: from now on the disk in use is the one spread over these shard processes
+    public void connectShards(List<String> addresses){
+        if(router != null){
+            throw new IllegalArgumentException("Already connected to shards.");
         }
-        return removed;
-    }
-
-    @Override
-    public int getSize() {
-        int size = 40;
-
-        //get all sizes of a document under the directory
-        //iterate through all the files in the directory
-        for (File entity : contents) {
-            size += entity.getSize();
+        if(leader != null || follower != null){
+            throw new IllegalArgumentException("Stop replication first.");
         }
-        return size;
+        checkNoTransaction();
+        router = new ShardRouter(addresses);
     }
 
-    public List<File> getContents() {
-        return contents;
-    }
-
-    //list command (REQ7)
-    //list all files directly contained in the working directory
-    public void list(){
-        int fileNum = 0;
-        long totalSize = 0;
-        for(File entity : contents){
-
-            if(entity instanceof Directory){
-                System.out.println(entity.getName() + "(Directory) " + entity.getSize() + " bytes");
-            }
-            else if(entity instanceof Document doc){
-                System.out.println(entity.getName() + "(" + doc.getType() + ")" + entity.getSize() + " bytes");
-            }
-            fileNum++;
-            totalSize += entity.getSize();
+    public void disconnectShards(){
+        if(router == null){
+            throw new IllegalArgumentException("Not connected to shards.");
         }
-        System.out.println("Total number of files/directory: "+fileNum);
-        System.out.println("Total size: "+ totalSize);
+        router.close();
+        router = null;
     }
 
-    //rlist command (REQ8)
-    //list all files contained in the working directory recursively
-    //use indentation to indicate hierarchy
-    public void rlist(){
-        int level = 0;
-        helper(level);
+    public boolean isSharded(){
+        return router != null;
     }
-    private void helper(int level){
-        int fileNum = 0;
-        int totalSize = 0;
 
-        String indent = "\t".repeat(level);
-        for (File entity : contents) {
-            System.out.print(indent + entity.getName() + " ");
-
-            if(entity instanceof Directory directory){
-                System.out.println("(Directory) "  + entity.getSize() + " bytes");
-                directory.helper(level + 1);
-            }else if(entity instanceof Document doc){
-                System.out.println("(" + doc.getType() + ") " + entity.getSize() + " bytes");
-            }
+    ShardRouter getRouter(){
+        return router;
+    }
 
-            fileNum++;
-            totalSize += entity.getSize();
+    public void printShards(){
+        if(router == null){
+            System.out.println("Not connected to shards.");
+            return;
         }
-
-        if(level==0){
-            System.out.println("Total number of files/directory: "+fileNum);
-            System.out.println("Total size: "+ totalSize);
+        for(String line : router.status()){
+            System.out.println(line);
         }
     }
-}
 
-// VirtualDisk class
-class VirtualDisk implements Serializable {
-    private int maxSize;
-    private Directory rootDirectory;
-    private CriteriaManager critM;
-
-    public VirtualDisk(int maxSize) {
-        this.maxSize = maxSize;
-        this.rootDirectory = new Directory("root");
-        this.critM = new CriteriaManager("default");
+    //replicate lead <port>: stream the mutations of this CVFS to followers
+    public int startLeader(int port) throws IOException{
+        if(leader != null || follower != null){
+            throw new IllegalArgumentException("Replication is already running.");
+        }
+        leader = new ReplicationLeader(this, port);
+        return leader.getPort();
     }
 
-    public Directory getRootDirectory(){
-        return rootDirectory;
+    //replicate follow <host>:<port>: become a read-only copy of a leader
+    public void follow(String host, int port){
+        if(leader != null || follower != null){
+            throw new IllegalArgumentException("Replication is already running.");
+        }
+        checkNoTransaction();
+        follower = new ReplicationFollower(this, host, port);
     }
 
-
-    public CriteriaManager getCriteriaManager(){
-        return critM;
+    public void stopReplication(){
+        if(leader == null && follower == null){
+            throw new IllegalArgumentException("Replication is not running.");
+        }
+        if(leader != null){
+            leader.stop();
+            leader = null;
+        }
+        if(follower != null){
+            follower.stop();
+            follower = null;
+        }
     }
 
-    public boolean hasSpaceFor(int size){
-        return (rootDirectory.getSize() + size) <= maxSize;
+    public boolean isLeader(){
+        return leader != null;
     }
-}
-
-//Criteria class
-//(REQ9)
-abstract class Criteria{
-    protected String criName;
-    protected CriteriaManager critM;
-
-    public Criteria(){
 
+    ReplicationLeader getLeader(){
+        return leader;
     }
 
-    public Criteria(String criName, CriteriaManager critM){
+    ReplicationFollower getFollower(){
+        return follower;
+    }
 
-        if(criName.equals("IsDocument")){
+    public void printReplicationStatus(){
+        if(leader == null && follower == null){
+            System.out.println("Replication is not running.");
+            return;
         }
-        else if(!criName.matches("[a-zA-Z0-9]{2}")){
-            throw new IllegalArgumentException("Criteria name must contain exactly two letters.");
+        for(String line : (leader != null ? leader.status() : follower.status())){
+            System.out.println(line);
         }
-
-        this.criName = criName;
-        this.critM = critM;
-
     }
 
-    public String getCriName(){
-        return criName;
+    //a follower only takes mutations from its leader
+    public void checkWritable(String commandName){
+        if(follower != null && (REPLAYED.contains(commandName) || RESYNCED.contains(commandName)
+                || commandName.equals("begin") || commandName.equals("commit") || commandName.equals("abort"))){
+            throw new IllegalArgumentException("This disk is a read-only replica.");
+        }
     }
 
-    public abstract boolean evaluate(File file);
-    public abstract String print();
-}
-
-class SimpleCriteria extends Criteria implements Serializable{
-    private String attrName;
-    private String op;
-    private String val;
-
-    public SimpleCriteria(){
-        super();
+    //the working directory in the form changeDir takes
+    public String replicationPath(){
+        return currentDisk.pathString(workingDirectory);
     }
 
-    public SimpleCriteria(String criName, String attrName, String op, String val, CriteriaManager critM){
-        super(criName, critM);
-        this.attrName = attrName;
-        this.op = op;
-        this.val = val;
-
-        validate();
-        critM.appendCri(this);
+    //called after a command succeeded on a leader
+    public void logMutation(String commandName, String command, String dirPath){
+        if(RESYNCED.contains(commandName)){
+            leader.getLog().resync();
+        } else if(REPLAYED.contains(commandName) && !inTransaction()){
+            leader.getLog().append(List.of("changeDir " + dirPath, command));
+        }
     }
 
-    //check if command is correct
-    public void validate(){
-        if(attrName.equals("IsDocument")){
-            if(!op.equals("is") || !val.equals("Document")){
-                throw new IllegalArgumentException("Invalid criteria for IsDocument.");
-            }
-            return;
-        }
+    //the copy a leader sends to a follower that needs a snapshot, called with this CVFS locked
+    Object replicaImage(){
+        return imageCopy();
+    }
 
-        switch(this.attrName){
-            case "name":
-                if(!op.equals("contains")||!val.matches("^\".*\"$")){
-                    throw new IllegalArgumentException("Invalid");
-                }
-                break;
-            case "type":
-                if(!op.equals("equals")||!val.matches("^\".*\"$")){
-                    throw new IllegalArgumentException("Invalid");
-                };
-                break;
-            case "size":
-                if(!op.matches(">|<|>=|<=|==|!=")||!val.matches("\\d+")){
-                    throw new IllegalArgumentException("Invalid criteria for size.");
+    //a follower takes the disk of its leader's snapshot
+    void installReplica(CVFS image){
+        transaction = null;
+        image.currentDisk.setName(currentDisk.getName());
+        this.currentDisk = image.currentDisk;
+        this.critManager = image.critManager;
+        this.workingDirectory = currentDisk.getRootDirectory();
+        registry.put(currentDisk);
+    }
+
+    // Apply one record from the leader. The working directory of the follower's own
+    // session is kept (by path, it may have been copied or removed). Returns false
+    // if a line failed, which means the replica no longer matches the leader.
+    boolean applyReplicated(List<String> lines){
+        synchronized (this) {
+            List<String> wd = currentDisk.pathFromRoot(workingDirectory);
+            boolean applied = true;
+            try {
+                for(String line : lines){
+                    CommandProcessor processor = new CommandProcessor(this);
+                    processor.replaying = true;
+                    processor.executeCommand(line);
+                    if(processor.flag){
+                        applied = false;
+                        break;
+                    }
                 }
-                break;
-            default:
-                throw new IllegalArgumentException("Invaild attribute name");
+            } finally {
+                transaction = null;
+                Directory found = currentDisk.findDirectory(wd);
+                workingDirectory = found != null ? found : currentDisk.getRootDirectory();
+            }
+            return applied;
         }
     }
 
-    //check if
-    //[REQ 10]
-    public boolean evaluate(File file){
-        if(attrName.equals("IsDocument")){
-            return file instanceof Document;
+    public int abort(){
+        if(transaction == null){
+            throw new IllegalArgumentException("No batch is open.");
         }
-        //newSimpleCriteria
+        int discarded = transaction.size();
+        transaction = null;
+        return discarded;
+    }
 
-        switch(attrName){
-            case "name":
-                return file.getName().contains(val.replace("\"",""));
-            case "type":
-                if(file instanceof Document doc) {
-                    return doc.getType().equals(val.replace("\"",""));
-                }
-                else if(file instanceof Directory dir){
-                    return dir.getClass().getSimpleName().equals(val.replace("\"",""));
-                }
-            case "size":
-                int fileSize = file.getSize();
-                int criteriaSize = Integer.parseInt(val);
-                switch(op){
-                    case ">":
-                        return fileSize > criteriaSize;
-                    case "<":
-                        return fileSize < criteriaSize;
-                    case ">=":
-                        return fileSize >= criteriaSize;
-                    case "<=":
-                        return fileSize <= criteriaSize;
-                    case "==":
-                        return fileSize == criteriaSize;
-                    case "!=":
-                        return fileSize != criteriaSize;
-                }
-            default:
-                throw new IllegalArgumentException("Invalid attribute name.");
+    private void checkNoTransaction(){
+        if(transaction != null){
+            throw new IllegalArgumentException("Commit or abort the open batch first.");
         }
     }
 
-    public String print(){
-        return String.format("%s: %s %s %s", attrName, op, val, "");
+    public DiskRegistry getDiskRegistry(){
+        return registry;
     }
-}
 
-//[REQ11]  Command: newNegaLon / newBinaryCri
-class NegationCriteria extends Criteria{
-    private Criteria origCriteria;
-    private String name;
-
-    public NegationCriteria(String name, CriteriaManager critM, String origCriteria) {
-        super(name, critM);
-        this.origCriteria = critM.searchCri(origCriteria);
-        critM.appendCri(this);
+    public void mountDisk(String name, int size){
+        registry.mount(name, size);
+        registry.evictIdle(currentDisk.getName());
     }
 
-    @Override
-    public boolean evaluate(File file){
-        return !origCriteria.evaluate(file);
+    public void unmountDisk(String name){
+        if(name.equals(currentDisk.getName())){
+            throw new IllegalArgumentException("Cannot unmount the disk in use.");
+        }
+        registry.unmount(name);
     }
 
-    @Override
-    public String print(){
-        return String.format("!(%s)", origCriteria.print());
+    public void useDisk(String name){
+        checkNoTransaction();
+        registry.put(currentDisk); //refresh the footprint of the disk being left
+        this.currentDisk = registry.acquire(name);
+        this.workingDirectory = currentDisk.getRootDirectory();
     }
-}
-
-class BinaryCriteria extends Criteria{
-    //private String criName;
-    private Criteria critB;
-    private Criteria critC;
-    private String logicOp;
-
-    public BinaryCriteria(String critA, String critB, String critC, CriteriaManager critM, String logicOp){
-        super(critA, critM);
-        this.critB = critM.searchCri(critB);
-        this.critC = critM.searchCri(critC);
-        this.logicOp = logicOp;
 
-        critM.appendCri(this);
+    public void listDisks(){
+        registry.list(currentDisk.getName());
     }
 
-    public boolean evaluate(File file){
-        boolean resultB = critB.evaluate(file);
-        boolean resultC = critC.evaluate(file);
-
-        switch (logicOp){
-            case "&&":
-                return resultB && resultC;
-            case "||":
-                return resultB || resultC;
-            default:
-                throw new IllegalArgumentException("Invalid operation for binary criteria.");
-        }
+    public void setDiskBudget(long bytes){
+        registry.setHeapBudget(bytes);
+        registry.evictIdle(currentDisk.getName());
     }
 
-    public String print(){
-        return String.format("(%s %s %s)", critB.print(), logicOp, critB.print());
+    public Directory getWorkingDirectory(){
+        return workingDirectory;
     }
-}
-
-//[REQ12]  Command: printAllCriteria
-class CriteriaManager implements Serializable{
-    private String cmName;
-    private List<Criteria> criList;
 
-    public CriteriaManager(String cmName) {
-        this.cmName = cmName;
-        this.criList = new ArrayList<>();
+    public VirtualDisk getCurrentDisk(){
+        return this.currentDisk;
+    }
 
 
-        new SimpleCriteria("IsDocument", "IsDocument", "is", "Document", this);
+    public boolean changeDir(String name){
+        if(compactDisk != null){
+            compactDisk.changeDir(name);
+            return true;
+        }
+        ChangeDirEvent event = new ChangeDirEvent();
+        event.begin();
+        try {
+            return changeDir(name, event);
+        } finally {
+            if (event.shouldCommit()) {
+                event.disk = currentDisk.getName();
+                event.path = name;
+                event.resolved = workingDirectory.getName();
+                event.commit();
+            }
+        }
     }
 
-    public void appendCri (Criteria criteria){
-        for (Criteria existingCri : criList) {
-            if (existingCri.getCriName().equals(criteria.getCriName())) {
-                throw new IllegalArgumentException("Criteria name '" + criteria.getCriName() + "' already exists.");
+    private boolean changeDir(String name, ChangeDirEvent event){
+        if(name.equals("..")){
+            Directory parentDirectory = workDir().getParent();
+            if (parentDirectory != null) {
+                this.workingDirectory = parentDirectory;
+                System.out.println("Changed to parent directory: " + parentDirectory.getName());
+            } else{
+                System.out.println("Already at the root directory.");
             }
+            return true;
         }
-        criList.add(criteria);
+        this.workingDirectory = resolveDir(name, event);
+        return true;
     }
 
+    // Resolve $/root/a/b, a relative path like a/b/../c, .. or a child name to the live
+    // directory it names. Paths with several names go through the disk's path cache;
+    // ".." in them is taken lexically, so a/../b is just b.
+    private Directory resolveDir(String name, ChangeDirEvent event){
+        if(name.charAt(0) == '$' || name.indexOf('/') >= 0){
+            List<String> base = name.charAt(0) == '$' ? List.of() : currentDisk.pathFromRoot(workDir());
+            List<String> names = PathCache.normalize(name, base);
+            if(names.isEmpty()){
+                return currentDisk.writable(currentDisk.getRootDirectory());
+            }
+            String key = PathCache.key(names);
+            Directory cached = currentDisk.cachedPath(key);
+            if(cached != null){
+                event.cacheHit = true;
+                Directory dir = currentDisk.writable(cached);
+                if(dir != cached){
+                    currentDisk.cachePath(key, dir);
+                }
+                return dir;
+            }
 
-    public void printAllCriteria(){
-        for (Criteria c : criList) {
-            System.out.println(c.getCriName() + c.print());
+            Directory currDir = currentDisk.writable(currentDisk.getRootDirectory());
+            for(String part : names){
+                File entity = currDir.findFile(part);
+                if(entity instanceof Directory) {
+                    event.components++;
+                    currDir = (Directory) currentDisk.own(currDir, entity);
+                } else {
+                    throw new IllegalArgumentException("Invalid directory.");
+                }
+            }
+            currentDisk.cachePath(key, currDir);
+            return currDir;
         }
-    }
 
-    public Criteria searchCri(String criName){
-        Criteria crit = null;
-        for (Criteria c : criList){
-            if (c.getCriName().equals(criName)) {
-                crit = c;
-                break;
+        Directory current = workDir();
+        if(name.equals("..")){
+            if(current.getParent() == null){
+                throw new IllegalArgumentException("Already at the root directory.");
             }
+            return current.getParent();
         }
-
-        if(crit == null){
-            throw new IllegalArgumentException("Criteria not found.");
+        File entity = current.findFile(name);
+        if(!(entity instanceof Directory)){
+            throw new IllegalArgumentException("Directory not found.");
         }
-        return crit;
+        return (Directory) currentDisk.own(current, entity);
     }
 
-    //[REQ13]  Command: search criName
-    public boolean searchDir(String criName, Directory workingDir) {
-        Criteria criteria = searchCri(criName);
+    //the working directory, made private to the live tree before it is changed
+    private Directory workDir(){
+        workingDirectory = currentDisk.writable(workingDirectory);
+        return workingDirectory;
+    }
 
-        //get workingDirectory
-        List<File> files = workingDir.getContents();
-        if (files == null){
-            //note changes!
-            throw new IllegalArgumentException("No file found in the working directory.");
+    public boolean newDoc(String name, String type, String content) {
+        if (compactDisk != null) {
+            return compactDisk.newDoc(name, type, content);
         }
-
-        long totalSize = 0;
-        int count = 0;
-
-        for (File file : files){
-            if (criteria.evaluate(file)) {
-                if(file instanceof Directory){
-                    System.out.println(file.getName() + " (Directory) " + file.getSize() + " bytes");
-                }
-                else if(file instanceof Document doc){
-                    System.out.println(file.getName() + " (" + doc.getType() + ") " + file.getSize() + " bytes");
-                }
-
-                totalSize += file.getSize();
-                count++;
-            }
+        Document doc = new Document(name, type, content);
+        workDir();
+        if (!currentDisk.hasSpaceFor(doc.getSize())) {
+            System.out.println("Not enough space to add document.");
+            return false;
         }
-
-        System.out.println("Total files found: " + count);
-        System.out.println("Total size: " + totalSize + " bytes");
+        Directory full = workingDirectory.quotaViolation(doc.getSize(), 1);
+        if (full != null) {
+            System.out.println("Quota of directory " + full.getName() + " exceeded.");
+            return false;
+        }
+        workingDirectory.addEntity(doc);
+        currentDisk.fileAdded(doc);
         return true;
     }
 
-    //[REQ14] Command: rsearch criName
-    public void rSearch(String criName, Directory workingDir) {
-        Criteria criteria = searchCri(criName);
-        rSearchhelper(0, criteria, workingDir);
+    public boolean newDir(String name) {
+        if (compactDisk != null) {
+            return compactDisk.newDir(name);
+        }
+        Directory dir = new Directory(name);
+        workDir();
+        if (!currentDisk.hasSpaceFor(dir.getSize())) {
+            System.out.println("Not enough space to add directory.");
+            return false;
+        }
+        Directory full = workingDirectory.quotaViolation(dir.getSize(), 1);
+        if (full != null) {
+            System.out.println("Quota of directory " + full.getName() + " exceeded.");
+            return false;
+        }
+        workingDirectory.addEntity(dir);
+        currentDisk.fileAdded(dir);
+        return true;
     }
 
-    private void rSearchhelper(int level, Criteria criName, Directory workingDir) {
-        int fileNum = 0;
-        long totalSize = 0;
-
-        List<File> contents = workingDir.getContents();
-        if (contents == null || contents.isEmpty()) {
+    public void delete(String name) {
+        if (compactDisk != null) {
+            compactDisk.delete(name);
             return;
         }
-
-        String indent = "\t".repeat(level);
-        for (File entity : contents) {
-            if(entity instanceof Document doc && criName.evaluate(entity)){
-                System.out.println(indent + entity.getName() + " (" + doc.getType() + ") " + doc.getSize() + " bytes");
-                fileNum++;
-                totalSize += doc.getSize();
-            } else if(entity instanceof Directory dir){
-                if(criName.evaluate(dir)){
-                    System.out.println(indent + entity.getName() + " (Directory) " + dir.getSize() + " bytes");
-                    fileNum++;
-                    totalSize += dir.getSize();
-                }
-                rSearchhelper(level + 1, criName, dir);
-            }
-        }
-        if (level == 0) {
-            System.out.println("Total number of file/directory: " + fileNum);
-            System.out.println("Total size: " + totalSize + " bytes");
+        File removed = workDir().findFile(name);
+        if (workingDirectory.removeEntity(name)) {
+            currentDisk.fileRemoved(workingDirectory, removed);
         }
     }
-}
-
-class CommandProcessor{
-    public boolean flag = false;
-    private CVFS fileSystem;
 
-    public CommandProcessor(CVFS fileSystem){
-        this.fileSystem = fileSystem;
+    //deleteWhere / rDeleteWhere command: delete every file the criterion matches,
+    //compacting each directory's child list in one pass
+    public void deleteWhere(String criName, boolean recursive){
+        Criteria criteria = critManager.searchCri(criName);
+        criteria.prepare(currentDisk);
+        try {
+            long[] totals = new long[2]; //files deleted, bytes freed
+            deleteWhere(criteria, workDir(), recursive, totals);
+            System.out.println("Total files deleted: " + totals[0]);
+            System.out.println("Total size freed: " + totals[1] + " bytes");
+        } finally {
+            criteria.release();
+        }
     }
 
-    public void executeCommand(String command) {
-        String[] sCommand = command.split(" ");
-        String commandName = sCommand[0];
-
-        try{
-            switch(commandName){
-                case "newDisk":
-                    if (sCommand.length != 2){
-                        throw new IllegalArgumentException("Command invalid.");
-                    }
-                    int size;
-                    try {
-                        size = Integer.parseInt(sCommand[1]);
-                    } catch (NumberFormatException e) {
-                        throw new IllegalArgumentException("Invalid size for newDisk command.");
-                    }
-                    fileSystem.createDisk(size);
-                    break;
-
-                case "newDoc":
-                    if (sCommand.length != 4){
-                        throw new IllegalArgumentException("Command invalid");
-                    }
-                    fileSystem.newDoc(sCommand[1], sCommand[2], sCommand[3]);
-                    break;
-
-                case "newDir":
-                    if (sCommand.length != 2){
-                        throw new IllegalArgumentException("Command invalid");
-                    }
-                    fileSystem.newDir(sCommand[1]);
-                    break;
-
-                case "delete":
-                    if (sCommand.length != 2){
-                        throw new IllegalArgumentException("Command invalid");
-                    }
-                    fileSystem.delete(sCommand[1]);
-                    break;
-
-                case "rename":
-                    if (sCommand.length != 3){
-                        throw new IllegalArgumentException("Command invalid");
-                    }
-                    fileSystem.rename(sCommand[1], sCommand[2]);
-                    break;
-
-                case "changeDir":
-                    if (sCommand.length != 2){
-                        throw new IllegalArgumentException("Command invalid");
-                    }
-                    fileSystem.changeDir(sCommand[1]);
-                    break;
-
-                case "list":
-                    if (sCommand.length != 1){
-                        throw new IllegalArgumentException("Command invalid");
-                    }
-                    fileSystem.list();
-                    break;
-
-                case "rList":
-                    if (sCommand.length != 1){
-                        throw new IllegalArgumentException("Command invalid");
-                    }
-                    fileSystem.rList();
-                    break;
-
-                case "newSimpleCri":
-                    if (sCommand.length != 5){
-                        throw new IllegalArgumentException("Command invalid");
-                    }
-                    fileSystem.newSimpleCri(sCommand[1], sCommand[2], sCommand[3], sCommand[4]);
-                    break;
-
-                case "newNegation":
-                    if (sCommand.length != 3){
-                        throw new IllegalArgumentException("Command invalid");
-                    }
-                    fileSystem.newNegationCri(sCommand[1], sCommand[2]);
-                    break;
-
-                case "newBinaryCri":
-                    if (sCommand.length != 5){
-                        throw new IllegalArgumentException("Command invalid");
-                    }
-                    fileSystem.newBinaryCri(sCommand[1], sCommand[2], sCommand[3], sCommand[4]);
-                    break;
-
-                case "printAllCriteria":
-                    if (sCommand.length != 1){
-                        throw new IllegalArgumentException("Command invalid");
-                    }
-                    fileSystem.printAllCriteria();
-                    break;
-
-                case "search":
-                    if (sCommand.length != 2){
-                        throw new IllegalArgumentException("Command invalid");
-                    }
-                    fileSystem.search(sCommand[1]);
-                    break;
-
-                case "rSearch":
-                    if (sCommand.length != 2){
-                        throw new IllegalArgumentException("Command invalid");
-                    }
-                    fileSystem.rSearch(sCommand[1]);
-                    break;
-
-                case "save":
-                    if (sCommand.length != 2){
-                        throw new IllegalArgumentException("Command invalid");
-                    }
-                    saveVirDisk(sCommand[1]+".dat");
-                    break;
-
-                case "load":
-                    if (sCommand.length != 2){
-                        throw new IllegalArgumentException("Command invalid");
-                    }
-                    loadVirDisk(sCommand[1]+".dat");
-                    break;
-
-                default:
-                    throw new IllegalArgumentException("Command invalid");
+    private void deleteWhere(Criteria criteria, Directory dir, boolean recursive, long[] totals){
+        List<File> contents = dir.getContents();
+        if(!contents.isEmpty()){
+            List<File> removed = dir.removeMatching(criteria.evaluate(new FileBatch(contents)));
+            if(!removed.isEmpty()){
+                for(File file : removed){
+                    totals[0]++;
+                    totals[1] += file.getSize();
+                }
+                currentDisk.filesRemoved(dir, removed);
             }
         }
-
-        catch (Exception e) {
-            flag = true;
-            System.out.print("Error: " + e.getMessage() + "\n");
+        if(recursive){
+            //own() swaps a child in place, so the list can be walked by index
+            for(int i = 0; i < contents.size(); i++){
+                if(contents.get(i) instanceof Directory sub && criteria.canMatchAny(sub)){
+                    deleteWhere(criteria, (Directory) currentDisk.own(dir, sub), true, totals);
+                }
+            }
         }
     }
 
-    //save method
-    private void saveVirDisk(String fPath){
-        try{
-            fileSystem.save(fPath);
-            System.out.println("VirDisk saved to: " + fPath);
-        }catch(IOException e){
-            System.out.println("Saving Error: " + e.getMessage());
+    //appendDoc command: grow a document in place, O(log n) in its length
+    public void appendDoc(String name, String text){
+        File file = workDir().findFile(name);
+        if(!(file instanceof Document)){
+            throw new IllegalArgumentException("Document not found.");
         }
-    }
-
-    //load method
-    private void loadVirDisk(String fPath){
-        try{
-            fileSystem.load(fPath);
-            System.out.println("VirDisk load from: " + fPath);
-        }catch(IOException | ClassNotFoundException e){
-            System.out.println("Loading Error: " + e.getMessage());
+        int bytes = text.length() * 2;
+        if(!currentDisk.hasSpaceFor(bytes)){
+            throw new IllegalArgumentException("Not enough space to append to " + name + ".");
         }
-    }
-}
-
-
-// CVFS class
-public class CVFS implements Serializable{
-    private VirtualDisk currentDisk;
-    private Directory workingDirectory;
-    private CriteriaManager critManager;
-
-    public CVFS(){
-        createDisk(1000);
-        critManager = currentDisk.getCriteriaManager();
-    }
-
-    public void createDisk(int size){
-        this.currentDisk = new VirtualDisk(size);
-        this.workingDirectory = currentDisk.getRootDirectory();
+        Directory full = workingDirectory.quotaViolation(bytes, 0);
+        if(full != null){
+            throw new IllegalArgumentException("Quota of directory " + full.getName() + " exceeded.");
+        }
+        Document doc = (Document) currentDisk.own(workingDirectory, file);
+        int carried = Math.min(doc.getLength(), ContentIndex.GRAM - 1);
+        String indexed = doc.read(doc.getLength() - carried, carried) + text;
+        doc.append(text);
+        workingDirectory.documentGrew(doc, bytes);
+        currentDisk.documentAppended(workingDirectory, doc, bytes, indexed);
     }
 
-    public Directory getWorkingDirectory(){
-        return workingDirectory;
+    //readDoc command: part of a document's content
+    public void readDoc(String name, int offset, int length){
+        if(!(workingDirectory.findFile(name) instanceof Document doc)){
+            throw new IllegalArgumentException("Document not found.");
+        }
+        if(offset > doc.getLength()){
+            throw new IllegalArgumentException("Offset beyond the end of " + name + " (" + doc.getLength() + " characters).");
+        }
+        System.out.println(doc.read(offset, Math.min(length, doc.getLength() - offset)));
     }
 
-    public VirtualDisk getCurrentDisk(){
-        return this.currentDisk;
+    public void rename(String oldName, String newName){
+        if(compactDisk != null){
+            compactDisk.rename(oldName, newName);
+            return;
+        }
+        File file = workDir().findFile(oldName);
+        if(file != null){
+            file = currentDisk.own(workingDirectory, file);
+        }
+        workingDirectory.renameEntity(oldName, newName);
+        currentDisk.fileRenamed(file, oldName);
     }
 
-
-    public boolean changeDir(String name){
-        if(name.charAt(0) == '$'){
-            if(name.equals("$") || name.equals("$/root")) {
-                this.workingDirectory = currentDisk.getRootDirectory();
-                return true;
-            }
-
-            Directory currDir = currentDisk.getRootDirectory();
-            String[] path = name.split("/");
-
-            for(int i = 2; i < path.length; i++){
-                File entity = currDir.findFile(path[i]);
-                if(entity instanceof Directory dir) {
-                    currDir = dir;
-                    System.out.println(dir.getName());
-                } else {
-                    throw new IllegalArgumentException("Invalid directory.");
-                }
-            }
-            System.out.println("HII 849");
-            this.workingDirectory = currDir;
-
-            return true;
+    //move command: relink a file under another directory, O(depth) for the two ancestor chains
+    public void move(String name, String target){
+        Directory source = workDir();
+        File entity = source.findFile(name);
+        if(entity == null){
+            throw new IllegalArgumentException("File not found in the directory.");
         }
-
-
-        if(name.equals( "..")){
-            Directory parentDirectory = workingDirectory.findParent(currentDisk.getRootDirectory());
-            if (parentDirectory != null) {
-                this.workingDirectory = parentDirectory;
-                System.out.println("Changed to parent directory: " + parentDirectory.getName());
-            } else{
-                System.out.println("Already at the root directory.");
-            }
+        entity = currentDisk.own(source, entity);
+        Directory destination = resolveDir(target, new ChangeDirEvent());
+        if(entity instanceof Directory dir && dir.contains(destination)){
+            throw new IllegalArgumentException("Cannot move a directory into itself.");
         }
-
-        if(workingDirectory.findFile(name) instanceof Document || workingDirectory.findFile(name) == null){
-            throw new IllegalArgumentException("Directory not found.");
+        if(destination.findFile(name) != null){
+            throw new IllegalArgumentException("The filename has already existed");
         }
-        this.workingDirectory = (Directory)workingDirectory.findFile(name);
-        return true;
+        if(destination == source){
+            return;
+        }
+        source.removeEntity(name);
+        int entries = entity instanceof Directory dir ? 1 + dir.getEntryCount() : 1;
+        Directory full = destination.quotaViolation(entity.getSize(), entries);
+        if(full != null){
+            source.addEntity(entity);
+            throw new IllegalArgumentException("Quota of directory " + full.getName() + " exceeded.");
+        }
+        destination.addEntity(entity);
+        currentDisk.fileMoved(source, entity);
     }
 
-    public boolean newDoc(String name, String type, String content) {
-        Document doc = new Document(name, type, content);
-        if (currentDisk.hasSpaceFor(doc.getSize())) {
-            workingDirectory.addEntity(doc);
-            return true;
-        } else {
-            System.out.println("Not enough space to add document.");
-            return false;
+    //copy command: O(1) copy-on-write copy of a file or a whole subtree
+    public void copy(String name, String target, String newName){
+        Directory source = workDir();
+        File entity = source.findFile(name);
+        if(entity == null){
+            throw new IllegalArgumentException("File not found in the directory.");
+        }
+        if(entity instanceof Directory){
+            //resolving the target through it would otherwise replace it with a private copy
+            entity = currentDisk.own(source, entity);
+        }
+        Directory destination = resolveDir(target, new ChangeDirEvent());
+        //the copy would share the child list it is added to
+        if(entity instanceof Directory dir && dir.contains(destination)){
+            throw new IllegalArgumentException("Cannot copy a directory into itself.");
+        }
+        if(destination.findFile(newName) != null){
+            throw new IllegalArgumentException("The filename has already existed");
+        }
+        int entries = entity instanceof Directory dir ? 1 + dir.getEntryCount() : 1;
+        if(!currentDisk.hasSpaceFor(entity.getSize())){
+            throw new IllegalArgumentException("Not enough space to copy " + name + ".");
+        }
+        Directory full = destination.quotaViolation(entity.getSize(), entries);
+        if(full != null){
+            throw new IllegalArgumentException("Quota of directory " + full.getName() + " exceeded.");
         }
-    }
 
-    public boolean newDir(String name) {
-        Directory dir = new Directory(name);
-        if (currentDisk.hasSpaceFor(dir.getSize())) {
-            workingDirectory.addEntity(dir);
-            return true;
+        File copy;
+        if(entity instanceof Directory dir){
+            copy = dir.sharedCopy(newName);
         } else {
-            System.out.println("Not enough space to add directory.");
-            return false;
+            copy = entity.copyForWrite();
+            copy.setName(newName);
+        }
+        destination.addEntity(copy);
+        currentDisk.fileCopied(copy);
+        if(copy instanceof Directory){
+            //both subtrees now share their children
+            currentDisk.shareAll();
         }
-    }
-
-    public void delete(String name) {
-        workingDirectory.removeEntity(name);
-    }
-
-    public void rename(String oldName, String newName){
-        workingDirectory.renameEntity(oldName, newName);
     }
 
     public void list(){
+        if(compactDisk != null){
+            compactDisk.list();
+            return;
+        }
         workingDirectory.list();
     }
 
     public void rList(){
+        if(compactDisk != null){
+            compactDisk.rList();
+            return;
+        }
         workingDirectory.rlist();
     }
 
+    public void setQuota(String name, long bytes, int entries){
+        File target = name.equals(".") ? workDir() : workDir().findFile(name);
+        if(target != null && target != workingDirectory){
+            target = currentDisk.own(workingDirectory, target);
+        }
+        if(!(target instanceof Directory dir)){
+            throw new IllegalArgumentException("Directory not found.");
+        }
+        dir.setQuota(bytes, entries);
+    }
+
+    public void du(){
+        workingDirectory.du();
+    }
+
     public void newSimpleCri(String criName, String attrName, String op, String val){
         SimpleCriteria sCri = new SimpleCriteria(criName, attrName, op, val, critManager);
     }
@@ -801,11 +670,117 @@ public class CVFS implements Serializable{
     }
 
     public boolean search(String CriName){
-        return critManager.searchDir(CriName, this.workingDirectory);
+        QueryPlan plan = critManager.plan(CriName, currentDisk, workingDirectory, false);
+        plan.prepare(currentDisk);
+        try {
+            return critManager.searchDir(plan, this.workingDirectory);
+        } finally {
+            plan.release();
+        }
     }
 
     public void rSearch(String criName){
-        critManager.rSearch(criName, this.workingDirectory);
+        QueryPlan plan = critManager.plan(criName, currentDisk, workingDirectory, true);
+        plan.prepare(currentDisk);
+        try {
+            critManager.rSearch(plan, this.workingDirectory);
+        } finally {
+            plan.release();
+        }
+    }
+
+    //explain command: the plan rSearch would use, run quietly to compare estimates with actual rows
+    public void explain(String criName){
+        QueryPlan plan = critManager.plan(criName, currentDisk, workingDirectory, true);
+        plan.prepare(currentDisk);
+        try {
+            critManager.rSearch(plan, this.workingDirectory, true);
+        } finally {
+            plan.release();
+        }
+        for(String line : plan.describe()){
+            System.out.println(line);
+        }
+        System.out.println("Rows visited: estimated " + plan.getEstimatedRows() + ", actual " + plan.getRowsVisited());
+        System.out.println("Matches: estimated " + plan.getEstimatedMatches() + ", actual " + plan.getMatches());
+    }
+
+    // list/rList (criName null) or search/rSearch as a publisher of the entries they
+    // would print, found on demand. With a null executor the entries are delivered
+    // on the thread that requests them.
+    public Flow.Publisher<FilePublisher.Entry> publish(String criName, boolean recursive, Executor executor){
+        if(router != null){
+            throw new IllegalArgumentException("Command not supported on a sharded disk.");
+        }
+        Criteria criteria = criName == null ? null : critManager.searchCri(criName);
+        return new FilePublisher(this, criteria, recursive, executor);
+    }
+
+    //a copy-on-write snapshot of the working directory, for walking it without the lock
+    Directory streamSnapshot(){
+        return currentDisk.imageCopy().sameDirectory(currentDisk, workingDirectory);
+    }
+
+    public void orderedSearch(String criName, boolean recursive, SearchOrder order){
+        Criteria criteria = critManager.searchCri(criName);
+        criteria.prepare(currentDisk);
+        try {
+            critManager.orderedSearch(criName, this.workingDirectory, recursive, order);
+        } finally {
+            criteria.release();
+        }
+    }
+
+    //diff command: compare two snapshots, "." is the live tree
+    public void diff(String before, String after){
+        SnapshotDiff diff = SnapshotDiff.of(currentDisk.getSnapshot(before), currentDisk.getSnapshot(after));
+        for(String change : diff.getChanges()){
+            System.out.println(change);
+        }
+        System.out.println("Total changes: " + diff.getChanges().size());
+    }
+
+    public void rollback(String name){
+        currentDisk.rollback(name);
+        //the old working directory may not exist in the snapshot
+        workingDirectory = currentDisk.getRootDirectory();
+    }
+
+    public void watch(String criName){
+        StandingQuery query = currentDisk.watch(critManager.searchCri(criName), workDir());
+        System.out.println("Watching " + criName + ": " + query.matchCount() + " matching files.");
+    }
+
+    //changes command: print what entered or left the watched set since the last call
+    public void changes(String criName){
+        StandingQuery query = currentDisk.getWatch(criName);
+        List<String> added = new ArrayList<>();
+        List<String> removed = new ArrayList<>();
+        query.drain(added, removed);
+        for(String path : added){
+            System.out.println("+ " + path);
+        }
+        for(String path : removed){
+            System.out.println("- " + path);
+        }
+        System.out.println("Matching files: " + query.matchCount());
+    }
+
+    public void multiSearch(List<String> criNames){
+        List<Criteria> criteria = new ArrayList<>();
+        for(String criName : criNames){
+            criteria.add(critManager.searchCri(criName));
+        }
+        for(Criteria c : criteria){
+            c.prepare(currentDisk);
+        }
+        try {
+            critManager.multiSearch(criNames, this.workingDirectory);
+        } finally {
+            for(Criteria c : criteria){
+                c.release();
+            }
+        }
     }
 
     public Criteria searchCri(String CriName){
@@ -814,6 +789,9 @@ public class CVFS implements Serializable{
     }
 
     public String path(){
+        if(compactDisk != null){
+            return compactDisk.path();
+        }
         Directory root = currentDisk.getRootDirectory();
         return "$" + recPath(root, "");
     }
@@ -839,17 +817,66 @@ public class CVFS implements Serializable{
 
     //[REQ 15] command: save
     public void save(String fPath) throws IOException{
-        try (ObjectOutputStream oos = new ObjectOutputStream(new FileOutputStream(fPath))) {
-            oos.writeObject(this);  //serialization(object-->byte)
+        saver.awaitAll();
+        writeImage(imageCopy(), fPath, bytes -> { });
+    }
+
+    // save command: the image is an O(1) copy of the disk, written by a background
+    // thread while commands go on; the listener hears about progress and the end
+    public CompletableFuture<Long> saveInBackground(String fPath, BackgroundSaver.Listener listener){
+        CVFS image = imageCopy();
+        Path target = Paths.get(fPath);
+        return saver.save(target, progress -> writeImage(image, fPath, progress), listener);
+    }
+
+    public void awaitSaves(){
+        saver.awaitAll();
+    }
+
+    //saveStatus command
+    public void printSaveStatus(){
+        if(saver.running().isEmpty()){
+            System.out.println("No save in progress.");
+        }
+        saver.running().forEach((target, bytes) ->
+                System.out.println("Saving " + target + ": " + bytes.get() + " bytes written"));
+    }
+
+    public BackgroundSaver getSaver(){
+        return saver;
+    }
+
+    private static long writeImage(CVFS image, String fPath, BackgroundSaver.Progress progress) throws IOException{
+        SaveEvent event = new SaveEvent();
+        event.begin();
+        //serialization(object-->byte), contents in compressed blocks
+        long bytes = BackgroundSaver.writeAtomically(image, Paths.get(fPath), progress);
+        if (event.shouldCommit()) {
+            event.disk = image.currentDisk.getName();
+            event.path = fPath;
+            event.bytes = bytes;
+            event.commit();
         }
+        return bytes;
     }
 
     //[REQ 16] command: load
     public void load(String fPath) throws IOException,ClassNotFoundException{
-        try(ObjectInputStream ois = new ObjectInputStream(new FileInputStream(fPath))){
-            CVFS load = (CVFS)ois.readObject(); //deserialization(byte-->object)
-            this.currentDisk = load.currentDisk;
-            this.workingDirectory = load.workingDirectory;
+        checkNoTransaction();
+        saver.awaitAll(); //the image may still be being written
+        LoadEvent event = new LoadEvent();
+        event.begin();
+        CVFS load = (CVFS) DiskImage.read(fPath); //deserialization(byte-->object)
+        //the loaded disk takes the place of the disk in use
+        load.currentDisk.setName(currentDisk.getName());
+        this.currentDisk = load.currentDisk;
+        this.workingDirectory = load.workingDirectory;
+        registry.put(currentDisk);
+        if (event.shouldCommit()) {
+            event.disk = currentDisk.getName();
+            event.path = fPath;
+            event.bytes = new java.io.File(fPath).length();
+            event.commit();
         }
     }
 }
\ No newline at end of file
@@ -0,0 +1,40 @@
+package hk.edu.polyu.comp.comp2021.cvfs.model;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Enabled;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+// JDK Flight Recorder event, disabled by default like the others (see CommandEvent)
+
+@Name(CapacityCheckEvent.NAME)
+@Label("CVFS Capacity Check")
+@Category({"CVFS"})
+@Description("VirtualDisk.hasSpaceFor admission check")
+@Enabled(false)
+@StackTrace(false)
+class CapacityCheckEvent extends Event {
+    static final String NAME = "hk.edu.polyu.comp.comp2021.cvfs.CapacityCheck";
+
+    @Label("Disk")
+    String disk;
+
+    @Label("Requested")
+    @DataAmount
+    long requested;
+
+    @Label("Used")
+    @DataAmount
+    long used;
+
+    @Label("Capacity")
+    @DataAmount
+    long capacity;
+
+    @Label("Granted")
+    boolean granted;
+}
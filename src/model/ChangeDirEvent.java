@@ -0,0 +1,36 @@
+package hk.edu.polyu.comp.comp2021.cvfs.model;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Enabled;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+// JDK Flight Recorder event, disabled by default like the others (see CommandEvent)
+
+@Name(ChangeDirEvent.NAME)
+@Label("CVFS Change Directory")
+@Category({"CVFS"})
+@Description("Path resolution done by changeDir")
+@Enabled(false)
+@StackTrace(false)
+class ChangeDirEvent extends Event {
+    static final String NAME = "hk.edu.polyu.comp.comp2021.cvfs.ChangeDir";
+
+    @Label("Disk")
+    String disk;
+
+    @Label("Requested Path")
+    String path;
+
+    @Label("Resolved Directory")
+    String resolved;
+
+    @Label("Components Resolved")
+    int components;
+
+    @Label("Path Cache Hit")
+    boolean cacheHit;
+}
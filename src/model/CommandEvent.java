@@ -0,0 +1,36 @@
+package hk.edu.polyu.comp.comp2021.cvfs.model;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Enabled;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+// JDK Flight Recorder events of the CVFS.
+// All events are disabled by default; enable them in a recording, e.g.
+// jcmd <pid> JFR.start settings=profile +hk.edu.polyu.comp.comp2021.cvfs.Command#enabled=true
+// When disabled, begin()/shouldCommit() are the only cost paid on the hot path.
+
+@Name(CommandEvent.NAME)
+@Label("CVFS Command")
+@Category({"CVFS"})
+@Description("Execution of one CommandProcessor command")
+@Enabled(false)
+@StackTrace(false)
+class CommandEvent extends Event {
+    static final String NAME = "hk.edu.polyu.comp.comp2021.cvfs.Command";
+
+    @Label("Command")
+    String command;
+
+    @Label("Disk")
+    String disk;
+
+    @Label("Working Directory")
+    String path;
+
+    @Label("Succeeded")
+    boolean succeeded;
+}
@@ -0,0 +1,575 @@
+package hk.edu.polyu.comp.comp2021.cvfs.model;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.List;
+
+class CommandProcessor{
+    public boolean flag = false;
+    boolean replaying; //applying a record from the replication leader
+    private CVFS fileSystem;
+
+    public CommandProcessor(CVFS fileSystem){
+        this.fileSystem = fileSystem;
+    }
+
+    //commands of one CVFS run one at a time, replication applies records in between
+    public void executeCommand(String command) {
+        synchronized (fileSystem) {
+            execute(command);
+        }
+    }
+
+    private void execute(String command) {
+        String[] sCommand = command.split(" ");
+        String commandName = sCommand[0];
+        String statName = commandName;
+        long start = System.nanoTime();
+        CommandEvent event = new CommandEvent();
+        event.begin();
+
+        try{
+            if (!replaying) {
+                fileSystem.checkWritable(commandName);
+            }
+            if (fileSystem.isSharded() && !CVFS.SHARD_LOCAL.contains(commandName)) {
+                //the disk lives in the shard processes
+                if (!ShardRouter.accepts(commandName)) {
+                    statName = "unknown";
+                }
+                fileSystem.getRouter().execute(command);
+                event.succeeded = true;
+                return;
+            }
+            if (fileSystem.isCompact() && !CVFS.COMPACT_COMMANDS.contains(commandName)) {
+                statName = "unknown";
+                throw new IllegalArgumentException(commandName + " is not supported on a compact disk.");
+            }
+            //where a mutation ran, for the replication log
+            String replayDir = fileSystem.isLeader() ? fileSystem.replicationPath() : null;
+            switch(commandName){
+                case "newDisk":
+                    if (sCommand.length != 2 && !(sCommand.length == 3 && sCommand[2].equals("compact"))){
+                        throw new IllegalArgumentException("Command invalid.");
+                    }
+                    int size;
+                    try {
+                        size = Integer.parseInt(sCommand[1]);
+                    } catch (NumberFormatException e) {
+                        throw new IllegalArgumentException("Invalid size for newDisk command.");
+                    }
+                    if (sCommand.length == 3){
+                        fileSystem.createCompactDisk(size);
+                        break;
+                    }
+                    fileSystem.createDisk(size);
+                    break;
+
+                case "newDoc":
+                    if (sCommand.length != 4){
+                        throw new IllegalArgumentException("Command invalid");
+                    }
+                    if (fileSystem.inTransaction()){
+                        fileSystem.getTransaction().stageNewDoc(fileSystem.getWorkingDirectory(), sCommand[1], sCommand[2], sCommand[3]);
+                        break;
+                    }
+                    fileSystem.newDoc(sCommand[1], sCommand[2], sCommand[3]);
+                    break;
+
+                case "newDir":
+                    if (sCommand.length != 2){
+                        throw new IllegalArgumentException("Command invalid");
+                    }
+                    if (fileSystem.inTransaction()){
+                        fileSystem.getTransaction().stageNewDir(fileSystem.getWorkingDirectory(), sCommand[1]);
+                        break;
+                    }
+                    fileSystem.newDir(sCommand[1]);
+                    break;
+
+                case "delete":
+                    if (sCommand.length != 2){
+                        throw new IllegalArgumentException("Command invalid");
+                    }
+                    if (fileSystem.inTransaction()){
+                        fileSystem.getTransaction().stageDelete(fileSystem.getWorkingDirectory(), sCommand[1]);
+                        break;
+                    }
+                    fileSystem.delete(sCommand[1]);
+                    break;
+
+                case "deleteWhere":
+                case "rDeleteWhere":
+                    if (sCommand.length != 2){
+                        throw new IllegalArgumentException("Command invalid");
+                    }
+                    checkNotInBatch();
+                    fileSystem.deleteWhere(sCommand[1], commandName.equals("rDeleteWhere"));
+                    break;
+
+                case "appendDoc":
+                    if (sCommand.length != 3){
+                        throw new IllegalArgumentException("Command invalid");
+                    }
+                    checkNotInBatch();
+                    fileSystem.appendDoc(sCommand[1], sCommand[2]);
+                    break;
+
+                case "readDoc":
+                    if (sCommand.length != 4){
+                        throw new IllegalArgumentException("Command invalid");
+                    }
+                    int offset;
+                    int length;
+                    try {
+                        offset = Integer.parseInt(sCommand[2]);
+                        length = Integer.parseInt(sCommand[3]);
+                    } catch (NumberFormatException e) {
+                        throw new IllegalArgumentException("Invalid offset or length for readDoc command.");
+                    }
+                    if (offset < 0 || length < 0){
+                        throw new IllegalArgumentException("Invalid offset or length for readDoc command.");
+                    }
+                    fileSystem.readDoc(sCommand[1], offset, length);
+                    break;
+
+                case "rename":
+                    if (sCommand.length != 3){
+                        throw new IllegalArgumentException("Command invalid");
+                    }
+                    if (fileSystem.inTransaction()){
+                        fileSystem.getTransaction().stageRename(fileSystem.getWorkingDirectory(), sCommand[1], sCommand[2]);
+                        break;
+                    }
+                    fileSystem.rename(sCommand[1], sCommand[2]);
+                    break;
+
+                case "move":
+                    if (sCommand.length != 3){
+                        throw new IllegalArgumentException("Command invalid");
+                    }
+                    checkNotInBatch();
+                    fileSystem.move(sCommand[1], sCommand[2]);
+                    break;
+
+                case "copy":
+                    if (sCommand.length != 3 && sCommand.length != 4){
+                        throw new IllegalArgumentException("Command invalid");
+                    }
+                    checkNotInBatch();
+                    fileSystem.copy(sCommand[1], sCommand[2], sCommand.length == 4 ? sCommand[3] : sCommand[1]);
+                    break;
+
+                case "begin":
+                    if (sCommand.length != 1){
+                        throw new IllegalArgumentException("Command invalid");
+                    }
+                    fileSystem.begin();
+                    System.out.println("Batch started.");
+                    break;
+
+                case "commit":
+                    if (sCommand.length != 1){
+                        throw new IllegalArgumentException("Command invalid");
+                    }
+                    System.out.println("Batch committed: " + fileSystem.commit() + " operations.");
+                    break;
+
+                case "abort":
+                    if (sCommand.length != 1){
+                        throw new IllegalArgumentException("Command invalid");
+                    }
+                    System.out.println("Batch aborted: " + fileSystem.abort() + " operations discarded.");
+                    break;
+
+                case "changeDir":
+                    if (sCommand.length != 2){
+                        throw new IllegalArgumentException("Command invalid");
+                    }
+                    fileSystem.changeDir(sCommand[1]);
+                    break;
+
+                case "list":
+                    if (sCommand.length != 1){
+                        throw new IllegalArgumentException("Command invalid");
+                    }
+                    fileSystem.list();
+                    break;
+
+                case "rList":
+                    if (sCommand.length != 1){
+                        throw new IllegalArgumentException("Command invalid");
+                    }
+                    fileSystem.rList();
+                    break;
+
+                case "newSimpleCri":
+                    if (sCommand.length != 5){
+                        throw new IllegalArgumentException("Command invalid");
+                    }
+                    fileSystem.newSimpleCri(sCommand[1], sCommand[2], sCommand[3], sCommand[4]);
+                    break;
+
+                case "newNegation":
+                    if (sCommand.length != 3){
+                        throw new IllegalArgumentException("Command invalid");
+                    }
+                    fileSystem.newNegationCri(sCommand[1], sCommand[2]);
+                    break;
+
+                case "newBinaryCri":
+                    if (sCommand.length != 5){
+                        throw new IllegalArgumentException("Command invalid");
+                    }
+                    fileSystem.newBinaryCri(sCommand[1], sCommand[2], sCommand[3], sCommand[4]);
+                    break;
+
+                case "printAllCriteria":
+                    if (sCommand.length != 1){
+                        throw new IllegalArgumentException("Command invalid");
+                    }
+                    fileSystem.printAllCriteria();
+                    break;
+
+                case "search":
+                    if (sCommand.length < 2){
+                        throw new IllegalArgumentException("Command invalid");
+                    }
+                    if (sCommand.length == 2){
+                        fileSystem.search(sCommand[1]);
+                    } else {
+                        fileSystem.orderedSearch(sCommand[1], false, SearchOrder.parse(sCommand, 2));
+                    }
+                    break;
+
+                case "rSearch":
+                    if (sCommand.length < 2){
+                        throw new IllegalArgumentException("Command invalid");
+                    }
+                    if (sCommand.length == 2){
+                        fileSystem.rSearch(sCommand[1]);
+                    } else {
+                        fileSystem.orderedSearch(sCommand[1], true, SearchOrder.parse(sCommand, 2));
+                    }
+                    break;
+
+                case "explain":
+                    if (sCommand.length != 2){
+                        throw new IllegalArgumentException("Command invalid");
+                    }
+                    fileSystem.explain(sCommand[1]);
+                    break;
+
+                case "replicate":
+                    replicate(sCommand);
+                    break;
+
+                case "replicaStatus":
+                    if (sCommand.length != 1){
+                        throw new IllegalArgumentException("Command invalid");
+                    }
+                    fileSystem.printReplicationStatus();
+                    break;
+
+                case "shard":
+                    shard(sCommand);
+                    break;
+
+                case "shards":
+                    if (sCommand.length != 1){
+                        throw new IllegalArgumentException("Command invalid");
+                    }
+                    fileSystem.printShards();
+                    break;
+
+                case "multiSearch":
+                    if (sCommand.length < 2){
+                        throw new IllegalArgumentException("Command invalid");
+                    }
+                    fileSystem.multiSearch(List.of(sCommand).subList(1, sCommand.length));
+                    break;
+
+                case "save":
+                    if (sCommand.length != 2){
+                        throw new IllegalArgumentException("Command invalid");
+                    }
+                    saveVirDisk(sCommand[1]+".dat");
+                    break;
+
+                case "saveStatus":
+                    if (sCommand.length != 1){
+                        throw new IllegalArgumentException("Command invalid");
+                    }
+                    fileSystem.printSaveStatus();
+                    break;
+
+                case "load":
+                    if (sCommand.length != 2){
+                        throw new IllegalArgumentException("Command invalid");
+                    }
+                    loadVirDisk(sCommand[1]+".dat");
+                    break;
+
+                case "mount":
+                    if (sCommand.length != 3){
+                        throw new IllegalArgumentException("Command invalid");
+                    }
+                    int diskSize;
+                    try {
+                        diskSize = Integer.parseInt(sCommand[2]);
+                    } catch (NumberFormatException e) {
+                        throw new IllegalArgumentException("Invalid size for mount command.");
+                    }
+                    fileSystem.mountDisk(sCommand[1], diskSize);
+                    break;
+
+                case "unmount":
+                    if (sCommand.length != 2){
+                        throw new IllegalArgumentException("Command invalid");
+                    }
+                    fileSystem.unmountDisk(sCommand[1]);
+                    break;
+
+                case "useDisk":
+                    if (sCommand.length != 2){
+                        throw new IllegalArgumentException("Command invalid");
+                    }
+                    fileSystem.useDisk(sCommand[1]);
+                    break;
+
+                case "disks":
+                    if (sCommand.length != 1){
+                        throw new IllegalArgumentException("Command invalid");
+                    }
+                    fileSystem.listDisks();
+                    break;
+
+                case "diskBudget":
+                    if (sCommand.length != 2){
+                        throw new IllegalArgumentException("Command invalid");
+                    }
+                    try {
+                        fileSystem.setDiskBudget(Long.parseLong(sCommand[1]));
+                    } catch (NumberFormatException e) {
+                        throw new IllegalArgumentException("Invalid size for diskBudget command.");
+                    }
+                    break;
+
+                case "setQuota":
+                    if (sCommand.length != 4){
+                        throw new IllegalArgumentException("Command invalid");
+                    }
+                    try {
+                        fileSystem.setQuota(sCommand[1], Long.parseLong(sCommand[2]), Integer.parseInt(sCommand[3]));
+                    } catch (NumberFormatException e) {
+                        throw new IllegalArgumentException("Invalid quota for setQuota command.");
+                    }
+                    break;
+
+                case "du":
+                    if (sCommand.length != 1){
+                        throw new IllegalArgumentException("Command invalid");
+                    }
+                    fileSystem.du();
+                    break;
+
+                case "snapshot":
+                    if (sCommand.length != 2){
+                        throw new IllegalArgumentException("Command invalid");
+                    }
+                    checkNotInBatch();
+                    fileSystem.getCurrentDisk().snapshot(sCommand[1]);
+                    System.out.println("Snapshot " + sCommand[1] + " taken.");
+                    break;
+
+                case "diff":
+                    if (sCommand.length != 3){
+                        throw new IllegalArgumentException("Command invalid");
+                    }
+                    fileSystem.diff(sCommand[1], sCommand[2]);
+                    break;
+
+                case "rollback":
+                    if (sCommand.length != 2){
+                        throw new IllegalArgumentException("Command invalid");
+                    }
+                    checkNotInBatch();
+                    fileSystem.rollback(sCommand[1]);
+                    System.out.println("Rolled back to snapshot " + sCommand[1] + ".");
+                    break;
+
+                case "watch":
+                    if (sCommand.length != 2){
+                        throw new IllegalArgumentException("Command invalid");
+                    }
+                    fileSystem.watch(sCommand[1]);
+                    break;
+
+                case "unwatch":
+                    if (sCommand.length != 2){
+                        throw new IllegalArgumentException("Command invalid");
+                    }
+                    fileSystem.getCurrentDisk().unwatch(sCommand[1]);
+                    System.out.println("Stopped watching " + sCommand[1] + ".");
+                    break;
+
+                case "changes":
+                    if (sCommand.length != 2){
+                        throw new IllegalArgumentException("Command invalid");
+                    }
+                    fileSystem.changes(sCommand[1]);
+                    break;
+
+                case "contentCache":
+                    if (sCommand.length == 2){
+                        long chars;
+                        try {
+                            chars = Long.parseLong(sCommand[1]);
+                        } catch (NumberFormatException e) {
+                            throw new IllegalArgumentException("Invalid size for contentCache command.");
+                        }
+                        if (chars < 0){
+                            throw new IllegalArgumentException("Invalid size for contentCache command.");
+                        }
+                        fileSystem.getCurrentDisk().getContentStore().setBudget(chars);
+                    } else if (sCommand.length != 1){
+                        throw new IllegalArgumentException("Command invalid");
+                    }
+                    for (String line : fileSystem.getCurrentDisk().getContentStore().status()){
+                        System.out.println(line);
+                    }
+                    break;
+
+                case "stats":
+                    if (sCommand.length == 2 && sCommand[1].equals("reset")){
+                        CommandStats.global().reset();
+                        System.out.println("Statistics reset.");
+                        break;
+                    }
+                    if (sCommand.length != 1){
+                        throw new IllegalArgumentException("Command invalid");
+                    }
+                    System.out.println(CommandStats.global().getReport());
+                    break;
+
+                default:
+                    //keep unknown input from growing the statistics table
+                    statName = "unknown";
+                    throw new IllegalArgumentException("Command invalid");
+            }
+            event.succeeded = true;
+            if (replayDir != null) {
+                fileSystem.logMutation(commandName, command, replayDir);
+            }
+        }
+
+        catch (Exception e) {
+            flag = true;
+            System.out.print("Error: " + e.getMessage() + "\n");
+        }
+        finally {
+            fileSystem.getCurrentDisk().flushWatches();
+            fileSystem.getCurrentDisk().trimContent();
+            CommandStats.global().record(statName, System.nanoTime() - start);
+            if (event.shouldCommit()) {
+                event.command = statName;
+                event.disk = fileSystem.getCurrentDisk().getName();
+                event.path = fileSystem.path();
+                event.commit();
+            }
+        }
+    }
+
+    //replicate lead <port> | replicate follow <host>:<port> | replicate stop
+    private void replicate(String[] sCommand){
+        if (sCommand.length == 2 && sCommand[1].equals("stop")){
+            fileSystem.stopReplication();
+            System.out.println("Replication stopped.");
+            return;
+        }
+        if (sCommand.length != 3){
+            throw new IllegalArgumentException("Command invalid");
+        }
+        switch (sCommand[1]){
+            case "lead":
+                int port;
+                try {
+                    port = Integer.parseInt(sCommand[2]);
+                } catch (NumberFormatException e) {
+                    throw new IllegalArgumentException("Invalid port for replicate command.");
+                }
+                try {
+                    port = fileSystem.startLeader(port);
+                } catch (IOException e) {
+                    throw new IllegalArgumentException("Cannot listen on port " + sCommand[2] + ": " + e.getMessage());
+                }
+                System.out.println("Replication leader listening on port " + port + ".");
+                break;
+            case "follow":
+                int colon = sCommand[2].lastIndexOf(':');
+                if (colon <= 0){
+                    throw new IllegalArgumentException("Leader must be given as host:port.");
+                }
+                try {
+                    fileSystem.follow(sCommand[2].substring(0, colon), Integer.parseInt(sCommand[2].substring(colon + 1)));
+                } catch (NumberFormatException e) {
+                    throw new IllegalArgumentException("Invalid port for replicate command.");
+                }
+                System.out.println("Following leader at " + sCommand[2] + ".");
+                break;
+            default:
+                throw new IllegalArgumentException("Command invalid");
+        }
+    }
+
+    //shard connect <host>:<port> ... | shard disconnect
+    private void shard(String[] sCommand){
+        if (sCommand.length == 2 && sCommand[1].equals("disconnect")){
+            fileSystem.disconnectShards();
+            System.out.println("Disconnected from the shards.");
+            return;
+        }
+        if (sCommand.length < 3 || !sCommand[1].equals("connect")){
+            throw new IllegalArgumentException("Command invalid");
+        }
+        fileSystem.connectShards(List.of(sCommand).subList(2, sCommand.length));
+        System.out.println("Connected to " + (sCommand.length - 2) + " shards.");
+    }
+
+    private void checkNotInBatch(){
+        if (fileSystem.inTransaction()){
+            throw new IllegalArgumentException("Command not supported inside a batch.");
+        }
+    }
+
+    //save method
+    //the image is written in the background, the result is printed when it is done
+    private void saveVirDisk(String fPath){
+        fileSystem.saveInBackground(fPath, new BackgroundSaver.Listener() {
+            @Override
+            public void progress(Path target, long bytesWritten) {
+            }
+
+            @Override
+            public void completed(Path target, long bytes) {
+                System.out.println("VirDisk saved to: " + fPath);
+            }
+
+            @Override
+            public void failed(Path target, Throwable error) {
+                System.out.println("Saving Error: " + error.getMessage());
+            }
+        });
+        System.out.println("Saving to " + fPath + " in the background.");
+    }
+
+    //load method
+    private void loadVirDisk(String fPath){
+        try{
+            fileSystem.load(fPath);
+            System.out.println("VirDisk load from: " + fPath);
+        }catch(IOException | ClassNotFoundException e){
+            System.out.println("Loading Error: " + e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,203 @@
+package hk.edu.polyu.comp.comp2021.cvfs.model;
+
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+// Runtime statistics of the CVFS (command latency + tree traversal work)
+// One global instance, shared by every CommandProcessor and exported through JMX.
+public class CommandStats implements CommandStatsMXBean {
+    private static final CommandStats GLOBAL = new CommandStats();
+    public static final String OBJECT_NAME = "hk.edu.polyu.comp.comp2021.cvfs:type=CommandStats";
+
+    private final Map<String, Histogram> commands = new ConcurrentHashMap<>();
+    private final LongAdder nodesVisited = new LongAdder();
+    private final LongAdder sizeRecursions = new LongAdder();
+    private final LongAdder criteriaEvaluations = new LongAdder();
+    private volatile long resetTime = System.nanoTime();
+
+    static {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(GLOBAL, new ObjectName(OBJECT_NAME));
+        } catch (Exception e) {
+            // JMX is optional, the in-app stats command still works without it
+        }
+    }
+
+    public static CommandStats global() {
+        return GLOBAL;
+    }
+
+    //record the latency of one executed command
+    public void record(String command, long nanos) {
+        Histogram h = commands.get(command);
+        if (h == null) {
+            h = commands.computeIfAbsent(command, k -> new Histogram());
+        }
+        h.record(nanos);
+    }
+
+    public void nodeVisited() {
+        nodesVisited.increment();
+    }
+
+    public void sizeRecursion() {
+        sizeRecursions.increment();
+    }
+
+    public void criteriaEvaluated() {
+        criteriaEvaluations.increment();
+    }
+
+    public void criteriaEvaluated(int count) {
+        criteriaEvaluations.add(count);
+    }
+
+    public Histogram histogram(String command) {
+        return commands.get(command);
+    }
+
+    @Override
+    public long getNodesVisited() {
+        return nodesVisited.sum();
+    }
+
+    @Override
+    public long getSizeRecursions() {
+        return sizeRecursions.sum();
+    }
+
+    @Override
+    public long getCriteriaEvaluations() {
+        return criteriaEvaluations.sum();
+    }
+
+    @Override
+    public long getTotalCommands() {
+        long total = 0;
+        for (Histogram h : commands.values()) {
+            total += h.count();
+        }
+        return total;
+    }
+
+    @Override
+    public double getCommandsPerSecond() {
+        double seconds = (System.nanoTime() - resetTime) / 1e9;
+        return seconds <= 0 ? 0 : getTotalCommands() / seconds;
+    }
+
+    @Override
+    public Map<String, Long> getCommandCounts() {
+        Map<String, Long> counts = new TreeMap<>();
+        commands.forEach((name, h) -> counts.put(name, h.count()));
+        return counts;
+    }
+
+    @Override
+    public long percentileNanos(String command, double percentile) {
+        Histogram h = commands.get(command);
+        return h == null ? 0 : h.percentile(percentile);
+    }
+
+    @Override
+    public String getReport() {
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format("%-16s %8s %10s %10s %10s %10s%n", "Command", "Count", "p50(us)", "p99(us)", "p999(us)", "max(us)"));
+        for (Map.Entry<String, Histogram> e : new TreeMap<>(commands).entrySet()) {
+            Histogram h = e.getValue();
+            sb.append(String.format("%-16s %8d %10.1f %10.1f %10.1f %10.1f%n", e.getKey(), h.count(),
+                    h.percentile(50) / 1e3, h.percentile(99) / 1e3, h.percentile(99.9) / 1e3, h.max() / 1e3));
+        }
+        sb.append(String.format("Throughput: %.1f commands/s%n", getCommandsPerSecond()));
+        sb.append("Nodes visited: ").append(getNodesVisited()).append('\n');
+        sb.append("Size recursions: ").append(getSizeRecursions()).append('\n');
+        sb.append("Criteria evaluations: ").append(getCriteriaEvaluations());
+        return sb.toString();
+    }
+
+    @Override
+    public void reset() {
+        commands.clear();
+        nodesVisited.reset();
+        sizeRecursions.reset();
+        criteriaEvaluations.reset();
+        resetTime = System.nanoTime();
+    }
+
+    // Lock-free log-linear latency histogram.
+    // Values below 16ns get their own bucket, above that every power of two
+    // is split into 16 linear sub-buckets (relative error < 6.25%).
+    static class Histogram {
+        private static final int SUB_BITS = 4;
+        private static final int SUB_COUNT = 1 << SUB_BITS;
+        private static final int BUCKETS = (64 - SUB_BITS + 1) * SUB_COUNT;
+
+        private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+        private final LongAdder count = new LongAdder();
+        private final AtomicLong max = new AtomicLong();
+
+        static int bucketOf(long value) {
+            if (value < SUB_COUNT) {
+                return (int) Math.max(value, 0);
+            }
+            int exp = 63 - Long.numberOfLeadingZeros(value);
+            int mantissa = (int) (value >>> (exp - SUB_BITS)) & (SUB_COUNT - 1);
+            return (exp - SUB_BITS + 1) * SUB_COUNT + mantissa;
+        }
+
+        //largest value that falls into the bucket
+        static long upperBoundOf(int bucket) {
+            if (bucket < SUB_COUNT) {
+                return bucket;
+            }
+            int exp = bucket / SUB_COUNT + SUB_BITS - 1;
+            long mantissa = bucket % SUB_COUNT;
+            long lower = (SUB_COUNT + mantissa) << (exp - SUB_BITS);
+            return lower + (1L << (exp - SUB_BITS)) - 1;
+        }
+
+        void record(long nanos) {
+            buckets.incrementAndGet(bucketOf(nanos));
+            count.increment();
+            long current = max.get();
+            while (nanos > current && !max.compareAndSet(current, nanos)) {
+                current = max.get();
+            }
+        }
+
+        long count() {
+            return count.sum();
+        }
+
+        long max() {
+            return max.get();
+        }
+
+        long percentile(double percentile) {
+            long total = 0;
+            long[] snapshot = new long[BUCKETS];
+            for (int i = 0; i < BUCKETS; i++) {
+                snapshot[i] = buckets.get(i);
+                total += snapshot[i];
+            }
+            if (total == 0) {
+                return 0;
+            }
+            long rank = (long) Math.ceil(total * percentile / 100.0);
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += snapshot[i];
+                if (seen >= rank && snapshot[i] > 0) {
+                    return Math.min(upperBoundOf(i), max.get());
+                }
+            }
+            return max.get();
+        }
+    }
+}
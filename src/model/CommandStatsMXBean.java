@@ -0,0 +1,24 @@
+package hk.edu.polyu.comp.comp2021.cvfs.model;
+
+import java.util.Map;
+
+// JMX view of CommandStats, registered as hk.edu.polyu.comp.comp2021.cvfs:type=CommandStats
+public interface CommandStatsMXBean {
+    long getTotalCommands();
+
+    double getCommandsPerSecond();
+
+    Map<String, Long> getCommandCounts();
+
+    long getNodesVisited();
+
+    long getSizeRecursions();
+
+    long getCriteriaEvaluations();
+
+    String getReport();
+
+    long percentileNanos(String command, double percentile);
+
+    void reset();
+}
@@ -4,6 +4,9 @@ import javax.swing.*;
 import java.awt.*;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
 import java.io.OutputStream;
 import java.io.PrintStream;
 
@@ -28,6 +31,37 @@ public class CommandTool extends JFrame implements ActionListener {
         }
     }
 
+    //the same commands read from standard input, for running several CVFS processes (e.g. replication) headless
+    public static void runConsole() throws IOException {
+        CVFS cvfs = new CVFS();
+        BufferedReader in = new BufferedReader(new InputStreamReader(System.in));
+        for (String line = in.readLine(); line != null; line = in.readLine()) {
+            if (line.equalsIgnoreCase("quit")) {
+                System.out.println("Terminating the execution.");
+                break;
+            }
+            if (!line.isBlank()) {
+                new CommandProcessor(cvfs).executeCommand(line.trim());
+            }
+        }
+        cvfs.awaitSaves();
+        System.exit(0);
+    }
+
+    //serve one shard of a sharded disk on a localhost port until standard input is closed
+    public static void runShard(int port) throws IOException {
+        ShardServer server = new ShardServer(new CVFS(), port);
+        System.out.println("Shard listening on port " + server.getPort() + ".");
+        BufferedReader in = new BufferedReader(new InputStreamReader(System.in));
+        for (String line = in.readLine(); line != null; line = in.readLine()) {
+            if (line.equalsIgnoreCase("quit")) {
+                break;
+            }
+        }
+        server.stop();
+        System.exit(0);
+    }
+
     public CommandTool() {
         this.cvfs = new CVFS();
         initUI();
@@ -61,6 +95,7 @@ public class CommandTool extends JFrame implements ActionListener {
                 // Process the command & [REQ17] Command: quit
                 if (inputText.equalsIgnoreCase("quit")) {
                     outputArea.append("Terminating the execution.\n");
+                    cvfs.awaitSaves();
                     System.exit(0);
                 } else {
                     CommandProcessor cp = new CommandProcessor(cvfs);
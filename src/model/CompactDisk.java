@@ -0,0 +1,127 @@
+package hk.edu.polyu.comp.comp2021.cvfs.model;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+// A disk held in a CompactTree instead of File objects (newDisk <size> compact)
+// Runs newDoc, newDir, delete, rename, changeDir, list and rList with the checks,
+// messages and output of the object disk, so a session with millions of entries can
+// stay within the heap. Commands that need the objects (search, copy, save, ...) are
+// refused while a compact disk is in use, see CVFS.COMPACT_COMMANDS.
+class CompactDisk {
+    private final int maxSize;
+    private final CompactTree tree = new CompactTree();
+    private int workingDirectory = CompactTree.ROOT;
+
+    CompactDisk(int maxSize) {
+        this.maxSize = maxSize;
+    }
+
+    CompactTree getTree() {
+        return tree;
+    }
+
+    int getWorkingDirectory() {
+        return workingDirectory;
+    }
+
+    //same order of checks as CVFS.newDoc: name and type, then space, then duplicates
+    public boolean newDoc(String name, String type, String content) {
+        if (!File.isValidName(name)) {
+            throw new IllegalArgumentException("Name can only contain alphanumeric characters");
+        }
+        if (type.equals("Directory") || Document.typeBit(type) == 0) {
+            throw new IllegalArgumentException("Invalid document type");
+        }
+        if (!hasSpaceFor(40 + content.length() * 2)) {
+            System.out.println("Not enough space to add document.");
+            return false;
+        }
+        tree.addDocument(workingDirectory, name, type, content);
+        return true;
+    }
+
+    public boolean newDir(String name) {
+        if (!File.isValidName(name)) {
+            throw new IllegalArgumentException("Name can only contain alphanumeric characters");
+        }
+        if (!hasSpaceFor(40)) {
+            System.out.println("Not enough space to add directory.");
+            return false;
+        }
+        tree.addDirectory(workingDirectory, name);
+        return true;
+    }
+
+    public void delete(String name) {
+        if (!tree.remove(workingDirectory, name)) {
+            System.out.println("File not found in the directory.");
+        }
+    }
+
+    public void rename(String oldName, String newName) {
+        tree.rename(workingDirectory, oldName, newName);
+    }
+
+    public void changeDir(String name) {
+        if (name.equals("..")) {
+            int parent = tree.getParent(workingDirectory);
+            if (parent >= 0) {
+                workingDirectory = parent;
+                System.out.println("Changed to parent directory: " + tree.name(parent));
+            } else {
+                System.out.println("Already at the root directory.");
+            }
+            return;
+        }
+        if (name.charAt(0) == '$' || name.indexOf('/') >= 0) {
+            List<String> base = name.charAt(0) == '$' ? List.of() : pathFromRoot(workingDirectory);
+            int dir = CompactTree.ROOT;
+            for (String part : PathCache.normalize(name, base)) {
+                dir = tree.find(dir, part);
+                if (dir < 0 || !tree.isDirectory(dir)) {
+                    throw new IllegalArgumentException("Invalid directory.");
+                }
+            }
+            workingDirectory = dir;
+            return;
+        }
+        int dir = tree.find(workingDirectory, name);
+        if (dir < 0 || !tree.isDirectory(dir)) {
+            throw new IllegalArgumentException("Directory not found.");
+        }
+        workingDirectory = dir;
+    }
+
+    public void list() {
+        tree.list(workingDirectory);
+    }
+
+    public void rList() {
+        tree.rlist(workingDirectory);
+    }
+
+    //$/root/a/b of the working directory
+    public String path() {
+        StringBuilder path = new StringBuilder("$/").append(tree.name(CompactTree.ROOT));
+        for (String name : pathFromRoot(workingDirectory)) {
+            path.append('/').append(name);
+        }
+        return path.toString();
+    }
+
+    //names below the root down to a directory, as VirtualDisk.pathFromRoot
+    private List<String> pathFromRoot(int dir) {
+        List<String> names = new ArrayList<>();
+        for (int node = dir; node != CompactTree.ROOT; node = tree.getParent(node)) {
+            names.add(tree.name(node));
+        }
+        Collections.reverse(names);
+        return names;
+    }
+
+    private boolean hasSpaceFor(int size) {
+        return tree.getSize(CompactTree.ROOT) + size <= maxSize;
+    }
+}
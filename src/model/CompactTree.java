@@ -0,0 +1,366 @@
+package hk.edu.polyu.comp.comp2021.cvfs.model;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+// Struct-of-arrays representation of a directory tree, for disks with many millions of entries
+// Every entry is a node index into parallel primitive arrays: parent, first/last child
+// and next sibling links, type code, cached size (whole subtree for directories) and the
+// position of its name and content in two byte pools. There is no object per entry,
+// no ArrayList per directory and no String per name, which brings an entry down to a
+// few dozen bytes. Names are alphanumeric, so one byte per character.
+// Freed nodes are reused; the pool bytes of freed names and contents are not (garbage).
+// A CompactDisk keeps the disk in use in one of these after newDisk <size> compact.
+class CompactTree {
+    static final int ROOT = 0;
+    static final byte DIRECTORY = 0;
+    private static final String[] TYPES = {"Directory", "txt", "java", "html", "css"};
+
+    private int count;     //nodes in use
+    private int highWater; //nodes ever allocated
+    private int freeHead = -1;
+
+    private int[] parent;
+    private int[] firstChild;
+    private int[] lastChild;
+    private int[] nextSibling;
+    private int[] size;
+    private int[] nameOffset;
+    private byte[] nameLength;
+    private byte[] type;
+    private int[] contentOffset; //into contents, documents only
+    private int[] contentLength;
+
+    private byte[] names = new byte[1024];
+    private int namesUsed;
+    private byte[] contents = new byte[1024];
+    private int contentsUsed;
+
+    CompactTree() {
+        this(16);
+    }
+
+    CompactTree(int capacity) {
+        allocate(Math.max(capacity, 1));
+        int root = newNode("root", DIRECTORY, -1);
+        size[root] = 40;
+    }
+
+    //copy an object tree into the arrays
+    static CompactTree from(Directory dir) {
+        CompactTree tree = new CompactTree(1 + dir.getEntryCount());
+        tree.copyChildren(dir, ROOT);
+        return tree;
+    }
+
+    private void copyChildren(Directory dir, int node) {
+        for (File entity : dir.getContents()) {
+            if (entity instanceof Document doc) {
+                addDocument(node, doc.getName(), doc.getType(), doc.getContent());
+            } else if (entity instanceof Directory sub) {
+                copyChildren(sub, addDirectory(node, sub.getName()));
+            }
+        }
+    }
+
+    //build the object tree again
+    public Directory toDirectory() {
+        Directory root = new Directory(name(ROOT));
+        toDirectory(ROOT, root);
+        return root;
+    }
+
+    private void toDirectory(int node, Directory dir) {
+        for (int child = firstChild[node]; child >= 0; child = nextSibling[child]) {
+            if (isDirectory(child)) {
+                Directory sub = new Directory(name(child));
+                toDirectory(child, sub);
+                dir.addEntity(sub);
+            } else {
+                dir.addEntity(new Document(name(child), typeName(child), content(child)));
+            }
+        }
+    }
+
+    public int addDirectory(int dir, String name) {
+        int node = attach(dir, name, DIRECTORY);
+        size[node] = 40;
+        propagate(dir, 40);
+        return node;
+    }
+
+    public int addDocument(int dir, String name, String typeName, String content) {
+        byte code = typeCode(typeName);
+        if (code <= DIRECTORY) {
+            throw new IllegalArgumentException("Invalid document type");
+        }
+        int node = attach(dir, name, code);
+        byte[] bytes = content.getBytes(StandardCharsets.UTF_8);
+        contents = ensure(contents, contentsUsed + bytes.length);
+        System.arraycopy(bytes, 0, contents, contentsUsed, bytes.length);
+        contentOffset[node] = contentsUsed;
+        contentLength[node] = bytes.length;
+        contentsUsed += bytes.length;
+        size[node] = 40 + content.length() * 2;
+        propagate(dir, size[node]);
+        return node;
+    }
+
+    //unlink a child and free its whole subtree
+    public boolean remove(int dir, String name) {
+        int prev = -1;
+        for (int child = firstChild[dir]; child >= 0; prev = child, child = nextSibling[child]) {
+            if (nameEquals(child, name)) {
+                if (prev < 0) {
+                    firstChild[dir] = nextSibling[child];
+                } else {
+                    nextSibling[prev] = nextSibling[child];
+                }
+                if (lastChild[dir] == child) {
+                    lastChild[dir] = prev;
+                }
+                propagate(dir, -size[child]);
+                free(child);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public void rename(int dir, String oldName, String newName) {
+        int node = find(dir, oldName);
+        if (node < 0) {
+            throw new IllegalArgumentException("File not found in the directory.");
+        }
+        checkName(dir, newName);
+        setName(node, newName);
+    }
+
+    //child by name, -1 if there is none
+    public int find(int dir, String name) {
+        for (int child = firstChild[dir]; child >= 0; child = nextSibling[child]) {
+            if (nameEquals(child, name)) {
+                return child;
+            }
+        }
+        return -1;
+    }
+
+    public int getParent(int node) {
+        return parent[node];
+    }
+
+    public int firstChild(int node) {
+        return firstChild[node];
+    }
+
+    public int nextSibling(int node) {
+        return nextSibling[node];
+    }
+
+    public boolean isDirectory(int node) {
+        return type[node] == DIRECTORY;
+    }
+
+    public int getSize(int node) {
+        return size[node];
+    }
+
+    public String name(int node) {
+        return new String(names, nameOffset[node], nameLength[node], StandardCharsets.US_ASCII);
+    }
+
+    public String typeName(int node) {
+        return TYPES[type[node]];
+    }
+
+    public String content(int node) {
+        return new String(contents, contentOffset[node], contentLength[node], StandardCharsets.UTF_8);
+    }
+
+    //number of entries below the root
+    public int entryCount() {
+        return count - 1;
+    }
+
+    //list command over the arrays, same output as Directory.list
+    public void list(int dir) {
+        int fileNum = 0;
+        long totalSize = 0;
+        for (int child = firstChild[dir]; child >= 0; child = nextSibling[child]) {
+            if (isDirectory(child)) {
+                System.out.println(name(child) + "(Directory) " + size[child] + " bytes");
+            } else {
+                System.out.println(name(child) + "(" + typeName(child) + ")" + size[child] + " bytes");
+            }
+            fileNum++;
+            totalSize += size[child];
+        }
+        System.out.println("Total number of files/directory: " + fileNum);
+        System.out.println("Total size: " + totalSize);
+    }
+
+    //rList command over the arrays, same output as Directory.rlist
+    public void rlist(int dir) {
+        int fileNum = 0;
+        int totalSize = 0;
+        for (int child = firstChild[dir]; child >= 0; child = nextSibling[child]) {
+            rlist(child, 0);
+            fileNum++;
+            totalSize += size[child];
+        }
+        System.out.println("Total number of files/directory: " + fileNum);
+        System.out.println("Total size: " + totalSize);
+    }
+
+    private void rlist(int node, int level) {
+        System.out.println("\t".repeat(level) + name(node) + " (" + typeName(node) + ") " + size[node] + " bytes");
+        for (int child = firstChild[node]; child >= 0; child = nextSibling[child]) {
+            rlist(child, level + 1);
+        }
+    }
+
+    //bytes held by the arrays and pools, live or not
+    public long footprint() {
+        long perNode = 4L * 8 + 2; //eight int arrays, two byte arrays
+        return perNode * parent.length + names.length + contents.length;
+    }
+
+    //trim the arrays to the nodes allocated so far
+    public void trim() {
+        resize(Math.max(highWater, 1));
+        names = Arrays.copyOf(names, namesUsed);
+        contents = Arrays.copyOf(contents, contentsUsed);
+    }
+
+    private int attach(int dir, String name, byte code) {
+        if (!isDirectory(dir)) {
+            throw new IllegalArgumentException("Not a directory.");
+        }
+        checkName(dir, name);
+        int node = newNode(name, code, dir);
+        if (lastChild[dir] < 0) {
+            firstChild[dir] = node;
+        } else {
+            nextSibling[lastChild[dir]] = node;
+        }
+        lastChild[dir] = node;
+        return node;
+    }
+
+    private void checkName(int dir, String name) {
+        if (!File.isValidName(name)) {
+            throw new IllegalArgumentException("Name can only contain alphanumeric characters");
+        }
+        if (find(dir, name) >= 0) {
+            throw new IllegalArgumentException("The filename has already existed");
+        }
+    }
+
+    private int newNode(String name, byte code, int parentNode) {
+        int node;
+        if (freeHead >= 0) {
+            node = freeHead;
+            freeHead = nextSibling[node];
+        } else {
+            if (highWater == parent.length) {
+                resize(parent.length * 2);
+            }
+            node = highWater++;
+        }
+        count++;
+        parent[node] = parentNode;
+        firstChild[node] = -1;
+        lastChild[node] = -1;
+        nextSibling[node] = -1;
+        type[node] = code;
+        size[node] = 0;
+        contentOffset[node] = 0;
+        contentLength[node] = 0;
+        setName(node, name);
+        return node;
+    }
+
+    private void setName(int node, String name) {
+        names = ensure(names, namesUsed + name.length());
+        for (int i = 0; i < name.length(); i++) {
+            names[namesUsed + i] = (byte) name.charAt(i);
+        }
+        nameOffset[node] = namesUsed;
+        nameLength[node] = (byte) name.length();
+        namesUsed += name.length();
+    }
+
+    private boolean nameEquals(int node, String name) {
+        if (nameLength[node] != name.length()) {
+            return false;
+        }
+        int offset = nameOffset[node];
+        for (int i = 0; i < name.length(); i++) {
+            if (names[offset + i] != name.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void free(int node) {
+        for (int child = firstChild[node]; child >= 0; ) {
+            int next = nextSibling[child];
+            free(child);
+            child = next;
+        }
+        parent[node] = -1;
+        nextSibling[node] = freeHead;
+        freeHead = node;
+        count--;
+    }
+
+    private void propagate(int dir, int bytes) {
+        for (int node = dir; node >= 0; node = parent[node]) {
+            size[node] += bytes;
+        }
+    }
+
+    private static byte typeCode(String typeName) {
+        for (byte i = 0; i < TYPES.length; i++) {
+            if (TYPES[i].equals(typeName)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private void allocate(int capacity) {
+        parent = new int[capacity];
+        firstChild = new int[capacity];
+        lastChild = new int[capacity];
+        nextSibling = new int[capacity];
+        size = new int[capacity];
+        nameOffset = new int[capacity];
+        nameLength = new byte[capacity];
+        type = new byte[capacity];
+        contentOffset = new int[capacity];
+        contentLength = new int[capacity];
+    }
+
+    private void resize(int capacity) {
+        parent = Arrays.copyOf(parent, capacity);
+        firstChild = Arrays.copyOf(firstChild, capacity);
+        lastChild = Arrays.copyOf(lastChild, capacity);
+        nextSibling = Arrays.copyOf(nextSibling, capacity);
+        size = Arrays.copyOf(size, capacity);
+        nameOffset = Arrays.copyOf(nameOffset, capacity);
+        nameLength = Arrays.copyOf(nameLength, capacity);
+        type = Arrays.copyOf(type, capacity);
+        contentOffset = Arrays.copyOf(contentOffset, capacity);
+        contentLength = Arrays.copyOf(contentLength, capacity);
+    }
+
+    private static byte[] ensure(byte[] pool, int needed) {
+        if (needed <= pool.length) {
+            return pool;
+        }
+        return Arrays.copyOf(pool, Math.max(needed, pool.length * 2));
+    }
+}
@@ -0,0 +1,266 @@
+package hk.edu.polyu.comp.comp2021.cvfs.model;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+// Trigram inverted index over Document content, used by "content contains" criteria
+// Every 3-character gram of a document maps to a posting list of document ids.
+// A query intersects the postings of all grams of the searched text, which gives a
+// superset of the matching documents; callers confirm each candidate with contains().
+// Deleted documents are not removed from the postings. Their ids simply never show up
+// in the tree again, and the index is rebuilt once they make up half of it.
+class ContentIndex {
+    static final int GRAM = 3;
+    private static final int MIN_GARBAGE = 64;
+
+    private final Map<Long, PostingList> postings = new HashMap<>();
+    private int indexedDocs;
+    private int removedDocs;
+
+    //index every document of a tree, in id order so postings stay append-only
+    static ContentIndex build(Directory root) {
+        List<Document> docs = new ArrayList<>();
+        collect(root, docs);
+        docs.sort((a, b) -> Integer.compare(a.getId(), b.getId()));
+        ContentIndex index = new ContentIndex();
+        for (Document doc : docs) {
+            index.add(doc);
+        }
+        return index;
+    }
+
+    private static void collect(Directory dir, List<Document> docs) {
+        for (File entity : dir.getContents()) {
+            if (entity instanceof Document doc) {
+                docs.add(doc);
+            } else if (entity instanceof Directory sub) {
+                collect(sub, docs);
+            }
+        }
+    }
+
+    public void add(Document doc) {
+        addText(doc.getId(), doc.getContent());
+        indexedDocs++;
+    }
+
+    //index the grams of a piece of content belonging to a document
+    public void addText(int docId, String text) {
+        int count = text.length() - GRAM + 1;
+        if (count <= 0) {
+            return;
+        }
+        long[] grams = new long[count];
+        for (int i = 0; i < count; i++) {
+            grams[i] = gramAt(text, i);
+        }
+        Arrays.sort(grams);
+        for (int i = 0; i < count; i++) {
+            if (i > 0 && grams[i] == grams[i - 1]) {
+                continue;
+            }
+            postings.computeIfAbsent(grams[i], g -> new PostingList()).add(docId);
+        }
+    }
+
+    //the three chars of a gram packed into one key, avoids a substring per position
+    private static long gramAt(String text, int i) {
+        return (long) text.charAt(i) << 32 | (long) text.charAt(i + 1) << 16 | text.charAt(i + 2);
+    }
+
+    public void removed(int docs) {
+        removedDocs += docs;
+    }
+
+    //true once deleted documents dominate and a rebuild pays off
+    public boolean needsCompaction() {
+        return removedDocs >= MIN_GARBAGE && removedDocs * 2 > indexedDocs;
+    }
+
+    // Candidate documents for a substring, or null when the text is shorter
+    // than one gram and every document has to be checked.
+    public BitSet candidates(String text) {
+        if (text.length() < GRAM) {
+            return null;
+        }
+        List<PostingList> lists = new ArrayList<>();
+        Set<Long> seen = new HashSet<>();
+        for (int i = 0; i + GRAM <= text.length(); i++) {
+            long gram = gramAt(text, i);
+            if (!seen.add(gram)) {
+                continue;
+            }
+            PostingList list = postings.get(gram);
+            if (list == null) {
+                return new BitSet();
+            }
+            lists.add(list);
+        }
+        //start from the rarest gram so the intersection shrinks quickly
+        lists.sort((a, b) -> Integer.compare(a.size(), b.size()));
+        BitSet result = lists.get(0).toBitSet();
+        for (int i = 1; i < lists.size() && !result.isEmpty(); i++) {
+            result.and(lists.get(i).toBitSet());
+        }
+        return result;
+    }
+
+    // A copy for an image written in the background. The posting lists share their bytes
+    // with this index, which only ever writes past the end of what the copy reads.
+    ContentIndex snapshot() {
+        ContentIndex copy = new ContentIndex();
+        postings.forEach((gram, list) -> copy.postings.put(gram, list.view()));
+        copy.indexedDocs = indexedDocs;
+        copy.removedDocs = removedDocs;
+        return copy;
+    }
+
+    //the content index section of an image: counts, then every gram with its encoded postings
+    void writeTo(DataOutputStream out) throws IOException {
+        out.writeInt(indexedDocs);
+        out.writeInt(removedDocs);
+        out.writeInt(postings.size());
+        for (Map.Entry<Long, PostingList> entry : postings.entrySet()) {
+            PostingList list = entry.getValue();
+            out.writeLong(entry.getKey());
+            out.writeInt(list.size);
+            out.writeInt(list.last);
+            out.writeInt(list.length);
+            out.write(list.data, 0, list.length);
+        }
+    }
+
+    //the postings are taken as they were encoded, no document is read again
+    static ContentIndex readFrom(ByteBuffer in) {
+        ContentIndex index = new ContentIndex();
+        index.indexedDocs = in.getInt();
+        index.removedDocs = in.getInt();
+        int grams = in.getInt();
+        for (int i = 0; i < grams; i++) {
+            long gram = in.getLong();
+            PostingList list = new PostingList();
+            list.size = in.getInt();
+            list.last = in.getInt();
+            list.length = in.getInt();
+            list.data = new byte[Math.max(4, list.length)];
+            in.get(list.data, 0, list.length);
+            index.postings.put(gram, list);
+        }
+        return index;
+    }
+
+    public int gramCount() {
+        return postings.size();
+    }
+
+    //bytes held by the compressed posting lists
+    public long postingBytes() {
+        long total = 0;
+        for (PostingList list : postings.values()) {
+            total += list.length;
+        }
+        return total;
+    }
+
+    //estimated heap bytes of the index: a map entry, a PostingList and its byte array per gram
+    public long footprint() {
+        long total = 0;
+        for (PostingList list : postings.values()) {
+            total += 96 + list.data.length;
+        }
+        return total;
+    }
+
+    // Sorted document ids, stored as variable-length deltas from the previous id
+    static class PostingList {
+        private byte[] data = new byte[4];
+        private int length;
+        private int last = -1;
+        private int size;
+
+        void add(int id) {
+            if (id == last) {
+                return;
+            }
+            if (id < last) {
+                //out of order (re-indexed document), fall back to a merge
+                int[] ids = decode();
+                if (Arrays.binarySearch(ids, id) >= 0) {
+                    return;
+                }
+                int[] merged = Arrays.copyOf(ids, ids.length + 1);
+                merged[ids.length] = id;
+                Arrays.sort(merged);
+                data = new byte[data.length]; //a snapshot may still read the old bytes
+                length = 0;
+                last = -1;
+                size = 0;
+                for (int each : merged) {
+                    add(each);
+                }
+                return;
+            }
+            int delta = last < 0 ? id : id - last;
+            if (length + 5 > data.length) {
+                data = Arrays.copyOf(data, data.length * 2);
+            }
+            while ((delta & ~0x7F) != 0) {
+                data[length++] = (byte) ((delta & 0x7F) | 0x80);
+                delta >>>= 7;
+            }
+            data[length++] = (byte) delta;
+            last = id;
+            size++;
+        }
+
+        int size() {
+            return size;
+        }
+
+        //the ids added so far, sharing the bytes
+        PostingList view() {
+            PostingList view = new PostingList();
+            view.data = data;
+            view.length = length;
+            view.last = last;
+            view.size = size;
+            return view;
+        }
+
+        int[] decode() {
+            int[] ids = new int[size];
+            int pos = 0;
+            int current = 0;
+            for (int i = 0; i < size; i++) {
+                int delta = 0;
+                int shift = 0;
+                byte b;
+                do {
+                    b = data[pos++];
+                    delta |= (b & 0x7F) << shift;
+                    shift += 7;
+                } while ((b & 0x80) != 0);
+                current = i == 0 ? delta : current + delta;
+                ids[i] = current;
+            }
+            return ids;
+        }
+
+        BitSet toBitSet() {
+            BitSet bits = new BitSet(last + 1);
+            for (int id : decode()) {
+                bits.set(id);
+            }
+            return bits;
+        }
+    }
+}
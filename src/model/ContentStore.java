@@ -0,0 +1,200 @@
+package hk.edu.polyu.comp.comp2021.cvfs.model;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+// Second tier for Document content: a bounded on-heap set of documents, the rest in a spill file
+// Documents of at least MIN_LENGTH characters are tracked in a CLOCK ring, charged with
+// their length. Reading a document's whole content sets its reference bit. When the
+// charged total is over the budget, the hand sweeps the ring: a referenced document gets
+// a second chance, an unreferenced one is evicted. Eviction writes the parts of its rope
+// that are still on the heap to the end of an append-only spill file (UTF-16 chars, so a
+// char range is a byte range) and replaces them with Rope.Spilled leaves that read back
+// with positional FileChannel reads. Names, types and sizes never leave the heap, so
+// list, size/name/type criteria and the summaries do not touch the file. Evicting only
+// happens between commands (trim), reading back can happen on any thread.
+class ContentStore {
+    static final long BUDGET = Long.getLong("cvfs.contentCache", 32L << 20); //characters
+    static final int MIN_LENGTH = Integer.getInteger("cvfs.contentSpillMin", 512);
+
+    private final List<Entry> ring = new ArrayList<>();
+    private int hand;
+    private long budget = BUDGET;
+    private long resident; //characters charged to the documents in the ring
+
+    private Path file;
+    private volatile FileChannel channel;
+    private long end; //the spill file is only appended to
+
+    private long evictions;
+    private long loads;
+
+    // The place of one tracked document in the ring
+    static class Entry {
+        final ContentStore store;
+        Document doc; //the live one, moves to copy-on-write copies
+        int index = -1; //in the ring, -1 once evicted
+        int charge;
+        volatile boolean referenced;
+
+        Entry(ContentStore store, Document doc) {
+            this.store = store;
+            this.doc = doc;
+        }
+    }
+
+    //track a document that was added to the disk or grew, it is on the heap now
+    synchronized void track(Document doc) {
+        if (doc.getLength() < MIN_LENGTH) {
+            return;
+        }
+        Entry entry = doc.tier;
+        if (entry == null || entry.store != this || entry.doc != doc) {
+            entry = new Entry(this, doc);
+            doc.tier = entry;
+        }
+        entry.referenced = true;
+        admit(entry);
+    }
+
+    // A copy-on-write copy took the place of a document in the live tree. Its entry moves
+    // to the copy, so evicting it spills the content the disk uses. The original keeps
+    // the entry too: reading it through a snapshot still counts against the budget.
+    synchronized void replaced(Document doc, Document copy) {
+        Entry entry = doc.tier;
+        if (entry != null && entry.store == this) {
+            entry.doc = copy;
+            copy.tier = entry;
+        }
+    }
+
+    //the whole content of a tracked document was read, so it is (back) on the heap
+    synchronized void accessed(Entry entry) {
+        entry.referenced = true;
+        admit(entry);
+    }
+
+    private void admit(Entry entry) {
+        int length = entry.doc.getLength();
+        if (entry.index < 0) {
+            entry.index = ring.size();
+            ring.add(entry);
+        } else {
+            resident -= entry.charge;
+        }
+        entry.charge = length;
+        resident += length;
+    }
+
+    //the document left the disk, stop charging for it (it keeps its content)
+    synchronized void forget(Document doc) {
+        Entry entry = doc.tier;
+        if (entry != null && entry.store == this && entry.doc == doc && entry.index >= 0) {
+            remove(entry);
+        }
+    }
+
+    private void remove(Entry entry) {
+        Entry last = ring.remove(ring.size() - 1);
+        if (last != entry) {
+            ring.set(entry.index, last);
+            last.index = entry.index;
+        }
+        entry.index = -1;
+        resident -= entry.charge;
+        entry.charge = 0;
+    }
+
+    // Evict until the documents on the heap fit the budget. Called with the CVFS locked,
+    // so no command changes a document's content meanwhile.
+    synchronized void trim() {
+        while (resident > budget && !ring.isEmpty()) {
+            if (hand >= ring.size()) {
+                hand = 0;
+            }
+            Entry entry = ring.get(hand);
+            if (entry.referenced) {
+                entry.referenced = false;
+                hand++;
+            } else {
+                entry.doc.spill(this);
+                remove(entry);
+                evictions++;
+            }
+        }
+    }
+
+    //append text to the spill file, returns the leaf that reads it back
+    synchronized Rope.Spilled write(String text) {
+        try {
+            if (channel == null) {
+                file = Files.createTempFile("cvfs-content", ".spill");
+                channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE,
+                        StandardOpenOption.DELETE_ON_CLOSE);
+            }
+            ByteBuffer bytes = ByteBuffer.allocate(text.length() * 2);
+            bytes.asCharBuffer().put(text);
+            long offset = end;
+            while (bytes.hasRemaining()) {
+                end += channel.write(bytes, end);
+            }
+            return new Rope.Spilled(this, offset, text.length());
+        } catch (IOException e) {
+            throw new UncheckedIOException("Cannot write the content spill file: " + e.getMessage(), e);
+        }
+    }
+
+    //chars [from, to) of a spilled leaf, positional reads need no lock
+    String read(Rope.Spilled leaf, int from, int to) {
+        ByteBuffer bytes = ByteBuffer.allocate((to - from) * 2);
+        long position = leaf.offset + from * 2L;
+        try {
+            while (bytes.hasRemaining()) {
+                int read = channel.read(bytes, position + bytes.position());
+                if (read < 0) {
+                    throw new IOException("Spill file ends early.");
+                }
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("Cannot read the content spill file: " + e.getMessage(), e);
+        }
+        synchronized (this) {
+            loads++;
+        }
+        bytes.flip();
+        return bytes.asCharBuffer().toString();
+    }
+
+    public synchronized void setBudget(long budget) {
+        this.budget = budget;
+        trim();
+    }
+
+    public synchronized List<String> status() {
+        List<String> lines = new ArrayList<>();
+        lines.add("Content on the heap: " + resident + " of " + budget + " characters, "
+                + ring.size() + " documents");
+        lines.add("Spill file: " + end + " bytes" + (file == null ? "" : " (" + file + ")")
+                + ", evictions: " + evictions + ", reads: " + loads);
+        return lines;
+    }
+
+    public synchronized long getResident() {
+        return resident;
+    }
+
+    public synchronized long getEvictions() {
+        return evictions;
+    }
+
+    public synchronized long getLoads() {
+        return loads;
+    }
+}
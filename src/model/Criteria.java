@@ -0,0 +1,88 @@
+package hk.edu.polyu.comp.comp2021.cvfs.model;
+
+import java.io.Serializable;
+import java.util.Map;
+
+//Criteria class
+//(REQ9)
+abstract class Criteria implements Serializable{
+    private static final long serialVersionUID = 1L;
+    protected String criName;
+    protected transient CriteriaManager critM;
+
+    public Criteria(){
+
+    }
+
+    public Criteria(String criName, CriteriaManager critM){
+
+        if(criName.equals("IsDocument")){
+        }
+        else if(!criName.matches("[a-zA-Z0-9]{2}")){
+            throw new IllegalArgumentException("Criteria name must contain exactly two letters.");
+        }
+
+        this.criName = criName;
+        this.critM = critM;
+
+    }
+
+    public String getCriName(){
+        return criName;
+    }
+
+    public abstract boolean evaluate(File file);
+    public abstract String print();
+
+    //evaluate with a per-file memo, so criteria shared in the DAG are evaluated once
+    public boolean evaluate(File file, Map<Criteria, Boolean> memo){
+        Boolean result = memo.get(this);
+        if(result == null){
+            result = evaluateMemo(file, memo);
+            memo.put(this, result);
+        }
+        return result;
+    }
+
+    //composite criteria evaluate their operands through the memo
+    protected boolean evaluateMemo(File file, Map<Criteria, Boolean> memo){
+        return evaluate(file);
+    }
+
+    //evaluate every file of a batch, returns a fresh mask of the matches
+    public long[] evaluate(FileBatch batch){
+        return evaluate(batch, batch.fullMask());
+    }
+
+    //evaluate the files of a batch set in within (left unchanged), returns a fresh mask of the matches
+    public long[] evaluate(FileBatch batch, long[] within){
+        long[] mask = batch.emptyMask();
+        for(int w = 0; w < within.length; w++){
+            for(long bits = within[w]; bits != 0; bits &= bits - 1){
+                int i = (w << 6) + Long.numberOfTrailingZeros(bits);
+                if(evaluate(batch.get(i))){
+                    FileBatch.set(mask, i);
+                }
+            }
+        }
+        return mask;
+    }
+
+    // Pruning from the Directory summary. Both answers are about every file
+    // strictly below dir and must be safe: canMatchAny may only return false
+    // when nothing below matches, mustMatchAll only true when everything does.
+    public boolean canMatchAny(Directory dir){
+        return true;
+    }
+
+    public boolean mustMatchAll(Directory dir){
+        return false;
+    }
+
+    //set up index lookups for a search on the given disk, undone by release()
+    public void prepare(VirtualDisk disk){
+    }
+
+    public void release(){
+    }
+}
@@ -0,0 +1,39 @@
+package hk.edu.polyu.comp.comp2021.cvfs.model;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Enabled;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+// JDK Flight Recorder event, disabled by default like the others (see CommandEvent)
+
+@Name(CriteriaEvaluationEvent.NAME)
+@Label("CVFS Criteria Evaluation")
+@Category({"CVFS"})
+@Description("One search/rSearch evaluating a criterion over a batch of files")
+@Enabled(false)
+@StackTrace(false)
+class CriteriaEvaluationEvent extends Event {
+    static final String NAME = "hk.edu.polyu.comp.comp2021.cvfs.CriteriaEvaluation";
+
+    @Label("Criterion")
+    String criterion;
+
+    @Label("Directory")
+    String directory;
+
+    @Label("Recursive")
+    boolean recursive;
+
+    @Label("Nodes Visited")
+    long nodesVisited;
+
+    @Label("Matches")
+    long matches;
+
+    @Label("Subtrees Pruned")
+    long subtreesPruned;
+}
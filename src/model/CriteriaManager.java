@@ -0,0 +1,319 @@
+package hk.edu.polyu.comp.comp2021.cvfs.model;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+//[REQ12]  Command: printAllCriteria
+class CriteriaManager implements Serializable{
+    private static final long serialVersionUID = -362554464103451187L;
+    private String cmName;
+    private List<Criteria> criList;
+
+    public CriteriaManager(String cmName) {
+        this.cmName = cmName;
+        this.criList = new ArrayList<>();
+
+
+        new SimpleCriteria("IsDocument", "IsDocument", "is", "Document", this);
+    }
+
+    private CriteriaManager(CriteriaManager other) {
+        this.cmName = other.cmName;
+        this.criList = new ArrayList<>(other.criList);
+    }
+
+    //copy of the list for an image, the criteria themselves never change
+    public CriteriaManager copy() {
+        return new CriteriaManager(this);
+    }
+
+    public void appendCri (Criteria criteria){
+        for (Criteria existingCri : criList) {
+            if (existingCri.getCriName().equals(criteria.getCriName())) {
+                throw new IllegalArgumentException("Criteria name '" + criteria.getCriName() + "' already exists.");
+            }
+        }
+        criList.add(criteria);
+    }
+
+
+    public void printAllCriteria(){
+        for (Criteria c : criList) {
+            System.out.println(c.getCriName() + c.print());
+        }
+    }
+
+    public Criteria searchCri(String criName){
+        Criteria crit = null;
+        for (Criteria c : criList){
+            if (c.getCriName().equals(criName)) {
+                crit = c;
+                break;
+            }
+        }
+
+        if(crit == null){
+            throw new IllegalArgumentException("Criteria not found.");
+        }
+        return crit;
+    }
+
+    //[REQ13]  Command: search criName
+    public boolean searchDir(QueryPlan plan, Directory workingDir) {
+        String criName = plan.getCriteria().getCriName();
+
+        //get workingDirectory
+        List<File> files = workingDir.getContents();
+        if (files == null){
+            //note changes!
+            throw new IllegalArgumentException("No file found in the working directory.");
+        }
+
+        long totalSize = 0;
+        int count = 0;
+        CriteriaEvaluationEvent event = new CriteriaEvaluationEvent();
+        event.begin();
+
+        long[] mask = plan.evaluate(new FileBatch(files));
+        for (int i = 0; i < files.size(); i++){
+            File file = files.get(i);
+            if (FileBatch.test(mask, i)) {
+                if(file instanceof Directory){
+                    System.out.println(file.getName() + " (Directory) " + file.getSize() + " bytes");
+                }
+                else if(file instanceof Document doc){
+                    System.out.println(file.getName() + " (" + doc.getType() + ") " + file.getSize() + " bytes");
+                }
+
+                totalSize += file.getSize();
+                count++;
+            }
+        }
+
+        if (event.shouldCommit()) {
+            event.criterion = criName;
+            event.directory = workingDir.getName();
+            event.nodesVisited = files.size();
+            event.matches = count;
+            event.commit();
+        }
+
+        System.out.println("Total files found: " + count);
+        System.out.println("Total size: " + totalSize + " bytes");
+        return true;
+    }
+
+    //multiSearch command: one traversal for several criteria, sharing sub-criteria results per file
+    public void multiSearch(List<String> criNames, Directory workingDir) {
+        List<Criteria> criteria = new ArrayList<>();
+        List<SearchCollector> collectors = new ArrayList<>();
+        for (String criName : criNames) {
+            criteria.add(searchCri(criName));
+            collectors.add(new SearchCollector(criName));
+        }
+
+        CriteriaEvaluationEvent event = new CriteriaEvaluationEvent();
+        event.begin();
+        multiSearchHelper(0, criteria, collectors, workingDir, new IdentityHashMap<>(), event);
+        if (event.shouldCommit()) {
+            event.criterion = String.join(" ", criNames);
+            event.directory = workingDir.getName();
+            event.recursive = true;
+            event.commit();
+        }
+
+        for (SearchCollector collector : collectors) {
+            collector.print();
+        }
+    }
+
+    private void multiSearchHelper(int level, List<Criteria> criteria, List<SearchCollector> collectors,
+                                   Directory dir, Map<Criteria, Boolean> memo, CriteriaEvaluationEvent event) {
+        String indent = "\t".repeat(level);
+        for (File entity : dir.getContents()) {
+            CommandStats.global().nodeVisited();
+            event.nodesVisited++;
+            memo.clear();
+            for (int i = 0; i < criteria.size(); i++) {
+                if (criteria.get(i).evaluate(entity, memo)) {
+                    collectors.get(i).add(indent, entity);
+                    event.matches++;
+                }
+            }
+            if (entity instanceof Directory sub && anyCanMatch(criteria, sub)) {
+                multiSearchHelper(level + 1, criteria, collectors, sub, memo, event);
+            } else if (entity instanceof Directory) {
+                event.subtreesPruned++;
+            }
+        }
+    }
+
+    private static boolean anyCanMatch(List<Criteria> criteria, Directory dir) {
+        for (Criteria c : criteria) {
+            if (c.canMatchAny(dir)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // Output of one criterion of a multiSearch
+    private static class SearchCollector {
+        private final String criName;
+        private final StringBuilder lines = new StringBuilder();
+        private int count;
+        private long totalSize;
+
+        SearchCollector(String criName) {
+            this.criName = criName;
+        }
+
+        void add(String indent, File file) {
+            lines.append(indent).append(file.getName());
+            if (file instanceof Document doc) {
+                lines.append(" (").append(doc.getType()).append(") ");
+            } else {
+                lines.append(" (Directory) ");
+            }
+            lines.append(file.getSize()).append(" bytes\n");
+            count++;
+            totalSize += file.getSize();
+        }
+
+        void print() {
+            System.out.println("Criteria " + criName + ":");
+            System.out.print(lines);
+            System.out.println("Total files found: " + count);
+            System.out.println("Total size: " + totalSize + " bytes");
+        }
+    }
+
+    //search/rSearch with orderBy/top: matches are collected (bounded by top) and printed in order
+    public void orderedSearch(String criName, Directory workingDir, boolean recursive, SearchOrder order) {
+        Criteria criteria = searchCri(criName);
+        SearchOrder.Results results = order.new Results();
+        CriteriaEvaluationEvent event = new CriteriaEvaluationEvent();
+        event.begin();
+        orderedSearchHelper(criteria, workingDir, "", recursive, criteria.mustMatchAll(workingDir), results, event);
+
+        long totalSize = 0;
+        List<SearchOrder.Match> matches = results.sorted();
+        for (SearchOrder.Match match : matches) {
+            File file = match.file;
+            String type = file instanceof Document doc ? doc.getType() : "Directory";
+            System.out.println((recursive ? match.path() : file.getName()) + " (" + type + ") " + file.getSize() + " bytes");
+            totalSize += file.getSize();
+        }
+        if (event.shouldCommit()) {
+            event.criterion = criName;
+            event.directory = workingDir.getName();
+            event.recursive = recursive;
+            event.matches = matches.size();
+            event.commit();
+        }
+        System.out.println((recursive ? "Total number of file/directory: " : "Total files found: ") + matches.size());
+        System.out.println("Total size: " + totalSize + " bytes");
+    }
+
+    private void orderedSearchHelper(Criteria criteria, Directory dir, String prefix, boolean recursive, boolean all,
+                                     SearchOrder.Results results, CriteriaEvaluationEvent event) {
+        for (File entity : dir.getContents()) {
+            CommandStats.global().nodeVisited();
+            event.nodesVisited++;
+            if (all || criteria.evaluate(entity)) {
+                results.offer(prefix, entity);
+            }
+            if (recursive && entity instanceof Directory sub) {
+                if ((all || criteria.canMatchAny(sub)) && !results.cannotImprove(sub)) {
+                    orderedSearchHelper(criteria, sub, prefix + sub.getName() + "/", true,
+                            all || criteria.mustMatchAll(sub), results, event);
+                } else {
+                    event.subtreesPruned++;
+                }
+            }
+        }
+    }
+
+    //[REQ14] Command: rsearch criName
+    public void rSearch(QueryPlan plan, Directory workingDir) {
+        rSearch(plan, workingDir, false);
+    }
+
+    //quiet runs the search without printing, for explain
+    public void rSearch(QueryPlan plan, Directory workingDir, boolean quiet) {
+        Criteria criteria = plan.getCriteria();
+        CriteriaEvaluationEvent event = new CriteriaEvaluationEvent();
+        event.begin();
+        rSearchhelper(0, plan, workingDir, plan.prunes() && criteria.mustMatchAll(workingDir), quiet, event);
+        if (event.shouldCommit()) {
+            event.criterion = criteria.getCriName();
+            event.directory = workingDir.getName();
+            event.recursive = true;
+            event.commit();
+        }
+    }
+
+    //a plan for searching with a criterion from dir, from the statistics of the disk
+    public QueryPlan plan(String criName, VirtualDisk disk, Directory dir, boolean recursive) {
+        return QueryPlan.of(searchCri(criName), disk, dir, recursive);
+    }
+
+    //subtrees the criterion cannot match are skipped, and inside subtrees it must
+    //match entirely (all == true) nothing is evaluated any more
+    private void rSearchhelper(int level, QueryPlan plan, Directory workingDir, boolean all, boolean quiet,
+                               CriteriaEvaluationEvent event) {
+        int fileNum = 0;
+        long totalSize = 0;
+
+        List<File> contents = workingDir.getContents();
+        if (contents == null || contents.isEmpty()) {
+            return;
+        }
+
+        Criteria criName = plan.getCriteria();
+        String indent = "\t".repeat(level);
+        long[] mask = null;
+        if (all) {
+            plan.visited(contents.size(), contents.size());
+        } else {
+            mask = plan.evaluate(new FileBatch(contents));
+        }
+        for (int i = 0; i < contents.size(); i++) {
+            File entity = contents.get(i);
+            CommandStats.global().nodeVisited();
+            event.nodesVisited++;
+            boolean matches = all || FileBatch.test(mask, i);
+            if(entity instanceof Document doc && matches){
+                if (!quiet) {
+                    System.out.println(indent + entity.getName() + " (" + doc.getType() + ") " + doc.getSize() + " bytes");
+                }
+                event.matches++;
+                fileNum++;
+                totalSize += doc.getSize();
+            } else if(entity instanceof Directory dir){
+                if(matches){
+                    if (!quiet) {
+                        System.out.println(indent + entity.getName() + " (Directory) " + dir.getSize() + " bytes");
+                    }
+                    event.matches++;
+                    fileNum++;
+                    totalSize += dir.getSize();
+                }
+                if(!plan.prunes()){
+                    rSearchhelper(level + 1, plan, dir, false, quiet, event);
+                } else if(all || criName.canMatchAny(dir)){
+                    rSearchhelper(level + 1, plan, dir, all || criName.mustMatchAll(dir), quiet, event);
+                } else {
+                    event.subtreesPruned++;
+                }
+            }
+        }
+        if (level == 0 && !quiet) {
+            System.out.println("Total number of file/directory: " + fileNum);
+            System.out.println("Total size: " + totalSize + " bytes");
+        }
+    }
+}
@@ -0,0 +1,544 @@
+package hk.edu.polyu.comp.comp2021.cvfs.model;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+// Directory class
+class Directory extends File {
+    private static final long serialVersionUID = -7972903043308297073L;
+    static final int DIR_BIT = 1 << 4;
+
+    private List<File> contents;
+
+    //aggregates of the whole subtree, kept up to date on every add/remove
+    private int size;
+    private int entryCount;
+    private transient int[] documentTypes = new int[Document.validTypes().size()]; //documents by type
+
+    // Summary of everything below this directory, used by searches to skip
+    // subtrees that cannot match: document size range, bitmap of the types
+    // present (documents + DIR_BIT for directories) and of the name characters.
+    // After removals below a child it can be wider than the subtree, never narrower.
+    private transient int minDocSize = Integer.MAX_VALUE;
+    private transient int maxDocSize = -1;
+    private transient int typeMask;
+    private transient long nameMask;
+
+    //optional quotas, -1 when unlimited
+    private long quotaBytes = -1;
+    private int quotaEntries = -1;
+
+    public Directory(String name) {
+        super(name);
+        this.contents = new ArrayList<>();
+        this.size = 40;
+    }
+
+    private Directory(Directory other, List<File> contents) {
+        super(other);
+        this.contents = contents;
+        this.size = other.size;
+        this.entryCount = other.entryCount;
+        this.documentTypes = other.documentTypes.clone();
+        this.quotaBytes = other.quotaBytes;
+        this.quotaEntries = other.quotaEntries;
+        this.minDocSize = other.minDocSize;
+        this.maxDocSize = other.maxDocSize;
+        this.typeMask = other.typeMask;
+        this.nameMask = other.nameMask;
+    }
+
+    //private copy of the child list, the children themselves stay shared
+    @Override
+    public Directory copyForWrite() {
+        return new Directory(this, new ArrayList<>(contents));
+    }
+
+    void unshareContents() {
+        contents = new ArrayList<>(contents);
+    }
+
+    //O(1) point-in-time copy of the tree below this directory, sharing the child list
+    public Directory snapshot() {
+        return new Directory(this, contents);
+    }
+
+    //make this directory look like a snapshot of it again, sharing the snapshot's children
+    void restore(Directory snapshot) {
+        contents = snapshot.contents;
+        size = snapshot.size;
+        entryCount = snapshot.entryCount;
+        documentTypes = snapshot.documentTypes.clone();
+        quotaBytes = snapshot.quotaBytes;
+        quotaEntries = snapshot.quotaEntries;
+        minDocSize = snapshot.minDocSize;
+        maxDocSize = snapshot.maxDocSize;
+        typeMask = snapshot.typeMask;
+        nameMask = snapshot.nameMask;
+        for (File entity : contents) {
+            entity.parent = this;
+        }
+    }
+
+    //O(1) copy sharing the child list, only valid once the disk epoch moves on
+    public Directory sharedCopy(String newName) {
+        Directory copy = new Directory(this, contents);
+        copy.setName(newName);
+        copy.quotaBytes = -1;
+        copy.quotaEntries = -1;
+        return copy;
+    }
+
+    //swap a child for its private copy, keeping its position
+    void replaceEntity(File old, File replacement) {
+        for (int i = 0; i < contents.size(); i++) {
+            if (contents.get(i) == old) {
+                contents.set(i, replacement);
+                replacement.parent = this;
+                return;
+            }
+        }
+        throw new IllegalStateException(old.getName() + " is no longer part of " + name + ".");
+    }
+
+    //true if dir is this directory or lies below it
+    public boolean contains(Directory dir) {
+        for (Directory d = dir; d != null; d = d.parent) {
+            if (d == this) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public void addEntity(File entity){
+        for(File existingEntity : contents){
+            if(existingEntity.getName().equals(entity.getName())){
+                throw new IllegalArgumentException("The filename has already existed");
+            }
+        }
+        contents.add(entity);
+        entity.parent = this;
+        propagate(entity.getSize(), entriesOf(entity), typesOf(entity), 1);
+        for(Directory dir = this; dir != null; dir = dir.parent){
+            dir.include(entity);
+        }
+    }
+
+    // A document directly in this directory grew in place. Sizes move up and the
+    // summaries widen; minDocSize is not raised, it stays a valid lower bound.
+    void documentGrew(Document doc, int bytes){
+        propagate(bytes, 0);
+        for(Directory dir = this; dir != null; dir = dir.parent){
+            dir.include(doc);
+        }
+    }
+
+    //apply a change of the subtree to this directory and all its ancestors: O(depth)
+    void propagate(int bytes, int entries){
+        propagate(bytes, entries, null, 0);
+    }
+
+    //the same with documents by type joining (sign 1) or leaving (sign -1)
+    private void propagate(int bytes, int entries, int[] types, int sign){
+        for(Directory dir = this; dir != null; dir = dir.parent){
+            dir.size += bytes;
+            dir.entryCount += entries;
+            if(types != null){
+                for(int i = 0; i < types.length; i++){
+                    dir.documentTypes[i] += sign * types[i];
+                }
+            }
+        }
+    }
+
+    //widen the summary by a child and its subtree
+    private void include(File entity){
+        nameMask |= nameMask(entity.getName());
+        if(entity instanceof Document doc){
+            typeMask |= Document.typeBit(doc.getType());
+            minDocSize = Math.min(minDocSize, doc.getSize());
+            maxDocSize = Math.max(maxDocSize, doc.getSize());
+        } else if(entity instanceof Directory dir){
+            typeMask |= DIR_BIT | dir.typeMask;
+            nameMask |= dir.nameMask;
+            minDocSize = Math.min(minDocSize, dir.minDocSize);
+            maxDocSize = Math.max(maxDocSize, dir.maxDocSize);
+        }
+    }
+
+    //rebuild the summary from the direct children
+    private void summarize(){
+        minDocSize = Integer.MAX_VALUE;
+        maxDocSize = -1;
+        typeMask = 0;
+        nameMask = 0;
+        for(File entity : contents){
+            include(entity);
+        }
+    }
+
+    // A removal or rename: this directory sums its children again, O(fanout), and the
+    // ancestors take in its new summary, O(depth). What left may stay in the ancestors'
+    // summaries, which is safe since searches only use a summary as a bound.
+    private void resummarize(){
+        summarize();
+        Directory child = this;
+        for(Directory dir = parent; dir != null; dir = dir.parent){
+            dir.include(child);
+            child = dir;
+        }
+    }
+
+    //one bit per alphanumeric character, every other character shares bit 63
+    static long nameMask(String text){
+        long mask = 0;
+        for(int i = 0; i < text.length(); i++){
+            char c = text.charAt(i);
+            int bit;
+            if(c >= '0' && c <= '9'){
+                bit = c - '0';
+            } else if(c >= 'A' && c <= 'Z'){
+                bit = 10 + c - 'A';
+            } else if(c >= 'a' && c <= 'z'){
+                bit = 36 + c - 'a';
+            } else {
+                bit = 63;
+            }
+            mask |= 1L << bit;
+        }
+        return mask;
+    }
+
+    //true if a document lies somewhere below
+    public boolean hasDocuments(){
+        return maxDocSize >= 0;
+    }
+
+    public boolean hasSubdirectories(){
+        return (typeMask & DIR_BIT) != 0;
+    }
+
+    public int getTypeMask(){
+        return typeMask;
+    }
+
+    public long getNameMask(){
+        return nameMask;
+    }
+
+    public int getMinDocSize(){
+        return minDocSize;
+    }
+
+    public int getMaxDocSize(){
+        return maxDocSize;
+    }
+
+    //size bounds of any file below, a subdirectory is at least empty (40 bytes) and smaller than this one
+    public int minSizeBelow(){
+        return hasSubdirectories() ? Math.min(40, minDocSize) : minDocSize;
+    }
+
+    public int maxSizeBelow(){
+        return hasSubdirectories() ? Math.max(size - 40, maxDocSize) : maxDocSize;
+    }
+
+    private static int entriesOf(File entity){
+        if(entity instanceof Directory dir){
+            return 1 + dir.entryCount;
+        }
+        return 1;
+    }
+
+    //documents by type of an entity and its subtree
+    private static int[] typesOf(File entity){
+        if(entity instanceof Directory dir){
+            return dir.documentTypes;
+        }
+        int[] types = new int[Document.validTypes().size()];
+        types[Document.validTypes().indexOf(((Document) entity).getType())] = 1;
+        return types;
+    }
+
+    private static void addTypes(int[] into, File entity){
+        int[] types = typesOf(entity);
+        for(int i = 0; i < into.length; i++){
+            into[i] += types[i];
+        }
+    }
+
+    //check the quotas of this directory and its ancestors for an extra subtree
+    public Directory quotaViolation(int bytes, int entries){
+        for(Directory dir = this; dir != null; dir = dir.parent){
+            if(!dir.withinQuota(bytes, entries)){
+                return dir;
+            }
+        }
+        return null;
+    }
+
+    //check the quotas of this directory alone
+    public boolean withinQuota(int bytes, int entries){
+        if(quotaBytes >= 0 && size + bytes > quotaBytes){
+            return false;
+        }
+        return quotaEntries < 0 || entryCount + entries <= quotaEntries;
+    }
+
+    public void setQuota(long quotaBytes, int quotaEntries){
+        if(quotaBytes >= 0 && size > quotaBytes || quotaEntries >= 0 && entryCount > quotaEntries){
+            throw new IllegalArgumentException("Quota is below the current usage of " + name + ".");
+        }
+        this.quotaBytes = quotaBytes;
+        this.quotaEntries = quotaEntries;
+    }
+
+    public long getQuotaBytes(){
+        return quotaBytes;
+    }
+
+    public int getQuotaEntries(){
+        return quotaEntries;
+    }
+
+    //number of files and directories below this directory
+    public int getEntryCount(){
+        return entryCount;
+    }
+
+    //documents below this directory by type, in Document.validTypes() order (not to be changed)
+    int[] getDocumentTypes(){
+        return documentTypes;
+    }
+
+
+    public File findFile(String name){
+        for (File entity : contents){
+            if(entity.getName().equals(name)) {
+                return entity;
+            }
+        }
+        return null;
+    }
+
+    public Directory findParent(Directory curr){
+        if(parent != null){
+            return parent;
+        }
+        if(curr.getContents().contains(this)){
+            return curr;
+        }
+
+        for(File entity: curr.getContents()){
+            if(entity instanceof Directory dir){
+                Directory parent = findParent(dir);
+                if(parent != null){
+                    return parent;
+                }
+            }
+        }
+        return null;
+    }
+
+    public void renameEntity(String fName, String newName){
+        File file = findFile(fName);
+        if(findFile(fName) == null)
+            throw new IllegalArgumentException("File not found in the directory.");
+        file.setName(newName);
+        resummarize();
+    }
+
+    //remove the children set in the mask in one pass, aggregates and summaries are updated once
+    List<File> removeMatching(long[] mask) {
+        List<File> removed = new ArrayList<>();
+        int bytes = 0;
+        int entries = 0;
+        int[] types = new int[documentTypes.length];
+        int kept = 0;
+        for (int i = 0; i < contents.size(); i++) {
+            File entity = contents.get(i);
+            if (FileBatch.test(mask, i)) {
+                removed.add(entity);
+                bytes += entity.getSize();
+                entries += entriesOf(entity);
+                addTypes(types, entity);
+                entity.parent = null;
+            } else {
+                contents.set(kept++, entity);
+            }
+        }
+        if (!removed.isEmpty()) {
+            contents.subList(kept, contents.size()).clear();
+            propagate(-bytes, -entries, types, -1);
+            resummarize();
+        }
+        return removed;
+    }
+
+    public boolean removeEntity(String name) {
+        File removed = findFile(name);
+
+        if(removed == null){
+            System.out.println("File not found in the directory.");
+            return false;
+        }
+        contents.remove(removed);
+        removed.parent = null;
+        propagate(-removed.getSize(), -entriesOf(removed), typesOf(removed), -1);
+        resummarize();
+        return true;
+    }
+
+    @Override
+    public int getSize() {
+        return size;
+    }
+
+    //rebuild the aggregates of the subtree from scratch
+    public int recomputeSize() {
+        CommandStats.global().sizeRecursion();
+        for (File entity : contents) {
+            if (entity instanceof Directory dir) {
+                dir.recomputeSize();
+            }
+        }
+        aggregateChildren();
+        return size;
+    }
+
+    //get all sizes of a document under the directory
+    //from the aggregates of the direct children
+    private void aggregateChildren() {
+        size = 40;
+        entryCount = 0;
+        documentTypes = new int[Document.validTypes().size()];
+        for (File entity : contents) {
+            entity.parent = this;
+            size += entity.getSize();
+            entryCount += entriesOf(entity);
+            addTypes(documentTypes, entity);
+        }
+        summarize();
+    }
+
+    //a block image keeps the summary in its summaries section
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        if (out instanceof DiskImage.ImageOutputStream image) {
+            image.storeSummary(entryCount, minDocSize, maxDocSize, typeMask, nameMask);
+        }
+        out.defaultWriteObject();
+    }
+
+    //images saved before the aggregates existed carry no size, rebuild them
+    //(children are deserialized first, so only this level needs summing)
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        DiskImage.ImageInputStream image = in instanceof DiskImage.ImageInputStream i ? i : null;
+        int place = image == null ? -1 : image.reserveSummary();
+        in.defaultReadObject();
+        ByteBuffer summary = image == null ? null : image.summary(place, entryCount);
+        //not in the image: summed from the children, which are already read
+        documentTypes = new int[Document.validTypes().size()];
+        for (File entity : contents) {
+            addTypes(documentTypes, entity);
+        }
+        if (size == 0) {
+            quotaBytes = -1;
+            quotaEntries = -1;
+            aggregateChildren();
+        } else if (summary != null) {
+            minDocSize = summary.getInt();
+            maxDocSize = summary.getInt();
+            typeMask = summary.getInt();
+            nameMask = summary.getLong();
+        } else {
+            summarize(); //not in the image, or not this directory's
+        }
+        //children shared with snapshots keep the parent that read them first, the live tree
+        for (File entity : contents) {
+            if (entity.parent == null) {
+                entity.parent = this;
+            }
+        }
+    }
+
+    //du command: quota usage of this directory and its subdirectories
+    public void du(){
+        duLine(this);
+        for(File entity : contents){
+            if(entity instanceof Directory dir){
+                duLine(dir);
+            }
+        }
+    }
+
+    private static void duLine(Directory dir){
+        String line = dir.getName() + ": " + dir.size + " bytes, " + dir.entryCount + " entries";
+        if(dir.quotaBytes >= 0 || dir.quotaEntries >= 0){
+            line += " (quota: " + (dir.quotaBytes >= 0 ? dir.quotaBytes + " bytes" : "unlimited bytes")
+                    + ", " + (dir.quotaEntries >= 0 ? dir.quotaEntries + " entries" : "unlimited entries") + ")";
+        }
+        System.out.println(line);
+    }
+
+    public List<File> getContents() {
+        return contents;
+    }
+
+    //list command (REQ7)
+    //list all files directly contained in the working directory
+    public void list(){
+        int fileNum = 0;
+        long totalSize = 0;
+        for(File entity : contents){
+
+            if(entity instanceof Directory){
+                System.out.println(entity.getName() + "(Directory) " + entity.getSize() + " bytes");
+            }
+            else if(entity instanceof Document doc){
+                System.out.println(entity.getName() + "(" + doc.getType() + ")" + entity.getSize() + " bytes");
+            }
+            fileNum++;
+            totalSize += entity.getSize();
+        }
+        System.out.println("Total number of files/directory: "+fileNum);
+        System.out.println("Total size: "+ totalSize);
+    }
+
+    //rlist command (REQ8)
+    //list all files contained in the working directory recursively
+    //use indentation to indicate hierarchy
+    public void rlist(){
+        int level = 0;
+        helper(level);
+    }
+    private void helper(int level){
+        int fileNum = 0;
+        int totalSize = 0;
+
+        String indent = "\t".repeat(level);
+        for (File entity : contents) {
+            CommandStats.global().nodeVisited();
+            System.out.print(indent + entity.getName() + " ");
+
+            if(entity instanceof Directory directory){
+                System.out.println("(Directory) "  + entity.getSize() + " bytes");
+                directory.helper(level + 1);
+            }else if(entity instanceof Document doc){
+                System.out.println("(" + doc.getType() + ") " + entity.getSize() + " bytes");
+            }
+
+            fileNum++;
+            totalSize += entity.getSize();
+        }
+
+        if(level==0){
+            System.out.println("Total number of files/directory: "+fileNum);
+            System.out.println("Total size: "+ totalSize);
+        }
+    }
+}
@@ -0,0 +1,494 @@
+package hk.edu.polyu.comp.comp2021.cvfs.model;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.IntStream;
+import java.util.zip.CRC32C;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+// Block-compressed image of a serialized object graph (a CVFS or a VirtualDisk)
+// Document contents are taken out of the serialized graph and packed, UTF-8
+// encoded, into blocks of about BLOCK_SIZE bytes. Each block is deflated on its
+// own, in parallel, and carries a CRC32C of its compressed bytes. The graph
+// itself is stored the same way as one more block. The index at the end lists
+// every block and, for every document id, the block and range holding its
+// content, so one document can be read without inflating the others.
+//
+// After the graph come optional sections with structures load would otherwise
+// rebuild: the summaries of the directories, the content index and the planner
+// statistics of the disk. They are stored uncompressed, so load maps them and
+// reads them in place. Each starts with the CRC32C of the graph block it was
+// written with and is listed in the index with a CRC32C of its own; a section
+// that is missing, corrupted or belongs to another graph is ignored and the
+// structure is rebuilt as for an older image. Older readers skip the sections.
+//
+// Layout: MAGIC, blocks..., graph block, sections..., index, index offset (long), END_MAGIC
+class DiskImage {
+    static final int BLOCK_SIZE = 64 * 1024;
+    static final boolean SECTIONS = Boolean.parseBoolean(System.getProperty("cvfs.imageSections", "true"));
+    static final int SUMMARIES = 1;
+    static final int CONTENT_INDEX = 2;
+    static final int STATS = 3;
+    private static final int SUMMARY_BYTES = 24;
+    private static final byte[] MAGIC = "CVFSIMG1".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] END_MAGIC = "CVFSEND1".getBytes(StandardCharsets.US_ASCII);
+
+    private DiskImage() {
+    }
+
+    //true if the file starts like a block image, older images are plain serialization
+    static boolean isImage(RandomAccessFile file) throws IOException {
+        byte[] head = new byte[MAGIC.length];
+        file.seek(0);
+        if (file.length() < MAGIC.length) {
+            return false;
+        }
+        file.readFully(head);
+        return Arrays.equals(head, MAGIC);
+    }
+
+    //read an image of either format
+    static Object read(String path) throws IOException, ClassNotFoundException {
+        try (RandomAccessFile file = new RandomAccessFile(path, "r")) {
+            if (isImage(file)) {
+                return read(file);
+            }
+        }
+        try (ObjectInputStream ois = new ObjectInputStream(new BufferedInputStream(new FileInputStream(path)))) {
+            return ois.readObject();
+        }
+    }
+
+    //write an object graph, returns the number of bytes written
+    static long write(Object root, OutputStream out) throws IOException {
+        ContentWriter contents = new ContentWriter();
+        ByteArrayOutputStream graph = new ByteArrayOutputStream();
+        try (ImageOutputStream oos = new ImageOutputStream(graph, contents)) {
+            oos.writeObject(root);
+        }
+        contents.finishBlock();
+        List<byte[]> raw = contents.blocks;
+        raw.add(graph.toByteArray());
+
+        Block[] blocks = new Block[raw.size()];
+        IntStream.range(0, blocks.length).parallel().forEach(i -> blocks[i] = Block.compress(raw.get(i)));
+
+        int graphCrc = blocks[blocks.length - 1].crc;
+        List<Section> sections = new ArrayList<>();
+        if (SECTIONS) {
+            VirtualDisk disk = diskOf(root);
+            sections.add(Section.of(SUMMARIES, graphCrc, contents.summaries.toByteArray()));
+            if (disk != null && disk.hasContentIndex()) {
+                ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                disk.getContentIndex().writeTo(new DataOutputStream(bytes));
+                sections.add(Section.of(CONTENT_INDEX, graphCrc, bytes.toByteArray()));
+            }
+            if (disk != null && disk.hasStats()) {
+                ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                disk.getStats().writeTo(new DataOutputStream(bytes));
+                sections.add(Section.of(STATS, graphCrc, bytes.toByteArray()));
+            }
+        }
+
+        DataOutputStream data = new DataOutputStream(out);
+        data.write(MAGIC);
+        long offset = MAGIC.length;
+        for (Block block : blocks) {
+            block.offset = offset;
+            data.write(block.compressed);
+            offset += block.compressed.length;
+        }
+        for (Section section : sections) {
+            section.offset = offset;
+            data.write(section.bytes);
+            offset += section.length;
+        }
+        long indexOffset = offset;
+        data.writeInt(blocks.length);
+        for (Block block : blocks) {
+            data.writeLong(block.offset);
+            data.writeInt(block.compressed.length);
+            data.writeInt(block.rawLength);
+            data.writeInt(block.crc);
+        }
+        data.writeInt(contents.slots.size());
+        for (Slot slot : contents.slots) {
+            data.writeInt(slot.docId);
+            data.writeInt(slot.block);
+            data.writeInt(slot.offset);
+            data.writeInt(slot.length);
+        }
+        data.writeInt(sections.size());
+        for (Section section : sections) {
+            data.writeInt(section.kind);
+            data.writeLong(section.offset);
+            data.writeInt(section.length);
+            data.writeInt(section.crc);
+        }
+        data.writeLong(indexOffset);
+        data.write(END_MAGIC);
+        data.flush();
+        return data.size();
+    }
+
+    //read a whole image back, the blocks are checked and inflated in parallel
+    static Object read(RandomAccessFile file) throws IOException, ClassNotFoundException {
+        Index index = Index.read(file);
+        byte[][] compressed = new byte[index.blocks.length][];
+        for (int i = 0; i < compressed.length; i++) {
+            compressed[i] = index.blocks[i].readCompressed(file);
+        }
+        byte[][] raw = new byte[compressed.length][];
+        try {
+            IntStream.range(0, raw.length).parallel().forEach(i -> raw[i] = index.blocks[i].inflate(compressed[i]));
+        } catch (ImageException e) {
+            throw new IOException(e.getMessage(), e);
+        }
+        byte[] graph = raw[raw.length - 1];
+        int graphCrc = index.blocks[index.blocks.length - 1].crc;
+        ByteBuffer summaries = index.map(file, SUMMARIES, graphCrc);
+        Object root;
+        try (ImageInputStream ois = new ImageInputStream(new ByteArrayInputStream(graph), raw, index.slots, summaries)) {
+            root = ois.readObject();
+        }
+        VirtualDisk disk = diskOf(root);
+        if (disk != null) {
+            ByteBuffer contentIndex = index.map(file, CONTENT_INDEX, graphCrc);
+            ByteBuffer stats = index.map(file, STATS, graphCrc);
+            disk.attach(contentIndex == null ? null : ContentIndex.readFrom(contentIndex),
+                    stats == null ? null : DiskStats.readFrom(stats));
+        }
+        return root;
+    }
+
+    //the disk an image holds, a CVFS image holds the disk in use
+    private static VirtualDisk diskOf(Object root) {
+        if (root instanceof CVFS cvfs) {
+            return cvfs.getCurrentDisk();
+        }
+        return root instanceof VirtualDisk disk ? disk : null;
+    }
+
+    //file offset of a section, -1 if the image has none of that kind
+    static long sectionOffset(RandomAccessFile file, int kind) throws IOException {
+        for (Section section : Index.read(file).sections) {
+            if (section.kind == kind) {
+                return section.offset;
+            }
+        }
+        return -1;
+    }
+
+    // Content of a document read from this image, from its block alone. Documents are
+    // found by their slot: ids are not unique, copies keep the id of their source.
+    static String readContent(RandomAccessFile file, Document doc) throws IOException {
+        Index index = Index.read(file);
+        int slotIndex = doc.getImageSlot();
+        if (slotIndex < 0 || slotIndex >= index.slots.size()) {
+            throw new IllegalArgumentException("Document " + doc.getName() + " is not in the image.");
+        }
+        Slot slot = index.slots.get(slotIndex);
+        Block block = index.blocks[slot.block];
+        try {
+            byte[] raw = block.inflate(block.readCompressed(file));
+            return new String(raw, slot.offset, slot.length, StandardCharsets.UTF_8);
+        } catch (ImageException e) {
+            throw new IOException(e.getMessage(), e);
+        }
+    }
+
+    // Where the content of a document lives: block, byte offset and length
+    private static class Slot {
+        int docId; //informative only, shared by copies
+        int block;
+        int offset;
+        int length;
+    }
+
+    private static class Block {
+        long offset;
+        byte[] compressed; //only while writing
+        int compressedLength;
+        int rawLength;
+        int crc;
+
+        static Block compress(byte[] raw) {
+            Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+            deflater.setInput(raw);
+            deflater.finish();
+            ByteArrayOutputStream out = new ByteArrayOutputStream(Math.max(64, raw.length / 2));
+            byte[] buffer = new byte[8192];
+            while (!deflater.finished()) {
+                out.write(buffer, 0, deflater.deflate(buffer));
+            }
+            deflater.end();
+            Block block = new Block();
+            block.compressed = out.toByteArray();
+            block.compressedLength = block.compressed.length;
+            block.rawLength = raw.length;
+            block.crc = crc(block.compressed);
+            return block;
+        }
+
+        byte[] readCompressed(RandomAccessFile file) throws IOException {
+            byte[] bytes = new byte[compressedLength];
+            file.seek(offset);
+            file.readFully(bytes);
+            return bytes;
+        }
+
+        byte[] inflate(byte[] bytes) {
+            if (crc(bytes) != crc) {
+                throw new ImageException("Image block at " + offset + " is corrupted (checksum mismatch).");
+            }
+            Inflater inflater = new Inflater();
+            inflater.setInput(bytes);
+            byte[] raw = new byte[rawLength];
+            try {
+                int n = 0;
+                while (n < rawLength && !inflater.finished() && !inflater.needsInput()) {
+                    n += inflater.inflate(raw, n, rawLength - n);
+                }
+                if (n != rawLength) {
+                    throw new ImageException("Image block at " + offset + " is truncated.");
+                }
+            } catch (DataFormatException e) {
+                throw new ImageException("Image block at " + offset + " cannot be inflated: " + e.getMessage());
+            } finally {
+                inflater.end();
+            }
+            return raw;
+        }
+
+        static int crc(byte[] bytes) {
+            CRC32C crc = new CRC32C();
+            crc.update(bytes);
+            return (int) crc.getValue();
+        }
+    }
+
+    // An uncompressed section: the CRC32C of the graph block followed by the structure
+    private static class Section {
+        int kind;
+        long offset;
+        int length;
+        int crc;
+        byte[] bytes; //only while writing
+
+        static Section of(int kind, int graphCrc, byte[] body) {
+            Section section = new Section();
+            section.kind = kind;
+            section.bytes = ByteBuffer.allocate(4 + body.length).putInt(graphCrc).put(body).array();
+            section.length = section.bytes.length;
+            section.crc = Block.crc(section.bytes);
+            return section;
+        }
+    }
+
+    private static class ImageException extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        ImageException(String message) {
+            super(message);
+        }
+    }
+
+    private static class Index {
+        Block[] blocks;
+        List<Slot> slots;
+        List<Section> sections = new ArrayList<>();
+
+        // The body of a section mapped from the file, null if the image has no such
+        // section or it does not check out. The bytes are read in place, the mapping
+        // goes away with the buffer.
+        ByteBuffer map(RandomAccessFile file, int kind, int graphCrc) throws IOException {
+            for (Section section : sections) {
+                if (section.kind != kind || section.length < 4 || section.offset + section.length > file.length()) {
+                    continue;
+                }
+                ByteBuffer bytes = file.getChannel().map(FileChannel.MapMode.READ_ONLY, section.offset, section.length);
+                CRC32C crc = new CRC32C();
+                crc.update(bytes.duplicate());
+                if ((int) crc.getValue() == section.crc && bytes.getInt() == graphCrc) {
+                    return bytes.slice();
+                }
+            }
+            return null;
+        }
+
+        static Index read(RandomAccessFile file) throws IOException {
+            long length = file.length();
+            if (length < MAGIC.length + 8 + END_MAGIC.length) {
+                throw new IOException("Not a disk image.");
+            }
+            byte[] end = new byte[END_MAGIC.length];
+            file.seek(length - END_MAGIC.length);
+            file.readFully(end);
+            if (!Arrays.equals(end, END_MAGIC)) {
+                throw new IOException("Disk image is truncated.");
+            }
+            file.seek(length - END_MAGIC.length - 8);
+            long indexOffset = file.readLong();
+            if (indexOffset < MAGIC.length || indexOffset > length) {
+                throw new IOException("Disk image index is corrupted.");
+            }
+            byte[] bytes = new byte[(int) (length - END_MAGIC.length - 8 - indexOffset)];
+            file.seek(indexOffset);
+            file.readFully(bytes);
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+
+            Index index = new Index();
+            index.blocks = new Block[in.readInt()];
+            for (int i = 0; i < index.blocks.length; i++) {
+                Block block = new Block();
+                block.offset = in.readLong();
+                block.compressedLength = in.readInt();
+                block.rawLength = in.readInt();
+                block.crc = in.readInt();
+                index.blocks[i] = block;
+            }
+            int slots = in.readInt();
+            index.slots = new ArrayList<>(slots);
+            for (int i = 0; i < slots; i++) {
+                Slot slot = new Slot();
+                slot.docId = in.readInt();
+                slot.block = in.readInt();
+                slot.offset = in.readInt();
+                slot.length = in.readInt();
+                index.slots.add(slot);
+            }
+            //images written before the sections end here
+            int sections = in.available() > 0 ? in.readInt() : 0;
+            for (int i = 0; i < sections; i++) {
+                Section section = new Section();
+                section.kind = in.readInt();
+                section.offset = in.readLong();
+                section.length = in.readInt();
+                section.crc = in.readInt();
+                index.sections.add(section);
+            }
+            return index;
+        }
+    }
+
+    // Packs contents into blocks while the graph is being serialized
+    private static class ContentWriter {
+        final List<byte[]> blocks = new ArrayList<>();
+        final List<Slot> slots = new ArrayList<>();
+        final ByteArrayOutputStream summaries = new ByteArrayOutputStream();
+        private final DataOutputStream summaryData = new DataOutputStream(summaries);
+        private ByteArrayOutputStream current = new ByteArrayOutputStream();
+
+        int store(Document doc) {
+            byte[] bytes = doc.imageContent().getBytes(StandardCharsets.UTF_8);
+            if (current.size() > 0 && current.size() + bytes.length > BLOCK_SIZE) {
+                finishBlock();
+            }
+            Slot slot = new Slot();
+            slot.docId = doc.getId();
+            slot.block = blocks.size();
+            slot.offset = current.size();
+            slot.length = bytes.length;
+            current.write(bytes, 0, bytes.length);
+            slots.add(slot);
+            return slots.size() - 1;
+        }
+
+        void summary(int entryCount, int minDocSize, int maxDocSize, int typeMask, long nameMask) {
+            try {
+                summaryData.writeInt(entryCount);
+                summaryData.writeInt(minDocSize);
+                summaryData.writeInt(maxDocSize);
+                summaryData.writeInt(typeMask);
+                summaryData.writeLong(nameMask);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        void finishBlock() {
+            if (current.size() > 0) {
+                blocks.add(current.toByteArray());
+                current = new ByteArrayOutputStream();
+            }
+        }
+    }
+
+    // Streams that let Document store its content outside of the graph
+    static class ImageOutputStream extends ObjectOutputStream {
+        private final ContentWriter contents;
+
+        ImageOutputStream(OutputStream out, ContentWriter contents) throws IOException {
+            super(out);
+            this.contents = contents;
+        }
+
+        int storeContent(Document doc) {
+            return contents.store(doc);
+        }
+
+        //directories write their summaries in the order they are serialized
+        void storeSummary(int entryCount, int minDocSize, int maxDocSize, int typeMask, long nameMask) {
+            contents.summary(entryCount, minDocSize, maxDocSize, typeMask, nameMask);
+        }
+    }
+
+    static class ImageInputStream extends ObjectInputStream {
+        private final byte[][] blocks;
+        private final List<Slot> slots;
+        private ByteBuffer summaries; //null once a summary did not fit its directory
+        private int nextSummary;
+
+        ImageInputStream(InputStream in, byte[][] blocks, List<Slot> slots, ByteBuffer summaries) throws IOException {
+            super(in);
+            this.blocks = blocks;
+            this.slots = slots;
+            this.summaries = summaries;
+        }
+
+        //directories take their place in the summaries before reading their children
+        int reserveSummary() {
+            return nextSummary++;
+        }
+
+        //the stored summary of a directory, null if it has to be computed
+        ByteBuffer summary(int place, int entryCount) {
+            int at = place * SUMMARY_BYTES;
+            if (summaries == null) {
+                return null;
+            }
+            if (at + SUMMARY_BYTES > summaries.limit() || summaries.getInt(at) != entryCount) {
+                summaries = null;
+                return null;
+            }
+            return summaries.slice(at + 4, SUMMARY_BYTES - 4);
+        }
+
+        String content(int slotIndex) throws IOException {
+            if (slotIndex < 0 || slotIndex >= slots.size()) {
+                throw new IOException("Disk image refers to a missing content slot.");
+            }
+            Slot slot = slots.get(slotIndex);
+            return new String(blocks[slot.block], slot.offset, slot.length, StandardCharsets.UTF_8);
+        }
+    }
+}
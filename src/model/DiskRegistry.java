@@ -0,0 +1,190 @@
+package hk.edu.polyu.comp.comp2021.cvfs.model;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+// Registry of the named VirtualDisks mounted in one CVFS
+// Disks are kept in LRU order. When the resident disks exceed the heap budget,
+// the least recently used ones (never the disk in use) are written to their
+// image file and dropped from the heap, then reloaded on the next useDisk. Disks
+// with watches stay resident, since standing queries are not part of an image, and
+// a reloaded disk has its content tiered again under its ContentStore budget.
+class DiskRegistry {
+    static final long DEFAULT_BUDGET = Long.getLong("cvfs.diskBudget", 64L * 1024 * 1024);
+
+    private final Map<String, MountedDisk> disks = new LinkedHashMap<>(16, 0.75f, true);
+    private long heapBudget = DEFAULT_BUDGET;
+    private Path imageDirectory = Paths.get(System.getProperty("java.io.tmpdir"), "cvfs-disks");
+    private int evictions;
+
+    static class MountedDisk {
+        private final String name;
+        private VirtualDisk disk;
+        private long footprint;
+
+        MountedDisk(String name, VirtualDisk disk) {
+            this.name = name;
+            this.disk = disk;
+        }
+
+        boolean isResident() {
+            return disk != null;
+        }
+    }
+
+    //register a disk under its name, replacing whatever was mounted there
+    public void put(VirtualDisk disk) {
+        checkName(disk.getName());
+        MountedDisk mounted = new MountedDisk(disk.getName(), disk);
+        mounted.footprint = footprintOf(disk);
+        disks.put(disk.getName(), mounted);
+    }
+
+    public VirtualDisk mount(String name, int size) {
+        checkName(name);
+        if (disks.containsKey(name)) {
+            throw new IllegalArgumentException("Disk '" + name + "' is already mounted.");
+        }
+        VirtualDisk disk = new VirtualDisk(size);
+        disk.setName(name);
+        put(disk);
+        return disk;
+    }
+
+    public void unmount(String name) {
+        MountedDisk mounted = disks.remove(name);
+        if (mounted == null) {
+            throw new IllegalArgumentException("Disk '" + name + "' is not mounted.");
+        }
+        try {
+            Files.deleteIfExists(imageOf(name));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    //fetch a disk for use, reloading it from its image if it was evicted
+    public VirtualDisk acquire(String name) {
+        MountedDisk mounted = disks.get(name); //also moves it to the MRU end
+        if (mounted == null) {
+            throw new IllegalArgumentException("Disk '" + name + "' is not mounted.");
+        }
+        if (!mounted.isResident()) {
+            mounted.disk = readImage(name);
+            mounted.disk.getContentStore(); //tracks the documents read back
+            mounted.disk.trimContent();
+        }
+        mounted.footprint = footprintOf(mounted.disk);
+        evictIdle(name);
+        return mounted.disk;
+    }
+
+    //write least recently used disks out until the resident ones fit the budget
+    public void evictIdle(String pinned) {
+        long resident = residentBytes();
+        Iterator<MountedDisk> lru = new ArrayList<>(disks.values()).iterator();
+        while (resident > heapBudget && lru.hasNext()) {
+            MountedDisk mounted = lru.next();
+            if (mounted.name.equals(pinned) || !mounted.isResident() || mounted.disk.hasWatches()) {
+                continue;
+            }
+            writeImage(mounted);
+            mounted.disk = null;
+            resident -= mounted.footprint;
+            evictions++;
+            System.out.println("Disk '" + mounted.name + "' evicted to " + imageOf(mounted.name) + ".");
+        }
+    }
+
+    public long residentBytes() {
+        long total = 0;
+        for (MountedDisk mounted : disks.values()) {
+            if (mounted.isResident()) {
+                total += mounted.footprint;
+            }
+        }
+        return total;
+    }
+
+    public boolean isMounted(String name) {
+        return disks.containsKey(name);
+    }
+
+    public boolean isResident(String name) {
+        for (MountedDisk mounted : disks.values()) {
+            if (mounted.name.equals(name)) {
+                return mounted.isResident();
+            }
+        }
+        return false;
+    }
+
+    public int getEvictions() {
+        return evictions;
+    }
+
+    public long getHeapBudget() {
+        return heapBudget;
+    }
+
+    public void setHeapBudget(long heapBudget) {
+        if (heapBudget < 0) {
+            throw new IllegalArgumentException("Disk budget cannot be negative.");
+        }
+        this.heapBudget = heapBudget;
+    }
+
+    public void setImageDirectory(Path imageDirectory) {
+        this.imageDirectory = imageDirectory;
+    }
+
+    //disks command: print all mounted disks without touching the LRU order
+    public void list(String current) {
+        for (MountedDisk mounted : new TreeMap<>(disks).values()) {
+            String state = !mounted.isResident() ? " (evicted) "
+                    : mounted.disk.hasWatches() ? " (resident, watched) " : " (resident) ";
+            System.out.println((mounted.name.equals(current) ? "* " : "  ") + mounted.name
+                    + state + mounted.footprint + " bytes");
+        }
+        System.out.println("Resident: " + residentBytes() + " of " + heapBudget + " bytes");
+    }
+
+    //measured from the objects the disk holds, not its logical size
+    private static long footprintOf(VirtualDisk disk) {
+        return disk.heapFootprint();
+    }
+
+    private static void checkName(String name) {
+        if (name == null || !name.matches("[a-zA-Z0-9]{1,10}")) {
+            throw new IllegalArgumentException("Disk name can only contain alphanumeric characters");
+        }
+    }
+
+    private Path imageOf(String name) {
+        return imageDirectory.resolve(name + ".disk");
+    }
+
+    private void writeImage(MountedDisk mounted) {
+        try {
+            BackgroundSaver.writeAtomically(mounted.disk, imageOf(mounted.name), bytes -> { });
+        } catch (IOException e) {
+            throw new UncheckedIOException("Cannot evict disk '" + mounted.name + "'", e);
+        }
+    }
+
+    private VirtualDisk readImage(String name) {
+        try {
+            return (VirtualDisk) DiskImage.read(imageOf(name).toString());
+        } catch (IOException | ClassNotFoundException e) {
+            throw new IllegalStateException("Cannot reload disk '" + name + "': " + e.getMessage(), e);
+        }
+    }
+}
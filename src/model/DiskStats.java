@@ -0,0 +1,225 @@
+package hk.edu.polyu.comp.comp2021.cvfs.model;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+
+// Cheap statistics of a whole disk, used by the query planner to estimate selectivity
+// Collected in one walk of the tree, then kept up to date by the VirtualDisk hooks:
+// the files added or removed are counted in or out, and the ancestors whose size
+// changed move between buckets, O(subtree + depth) per change. A copied directory is
+// taken from its aggregates instead, so copies stay O(depth), and the sizes below it
+// are estimated (see copied). Sizes go into power-of-two buckets: bucket 0 holds size 0
+// and bucket b the sizes in [2^(b-1), 2^b); within a bucket sizes are taken as evenly spread.
+class DiskStats {
+    private static final int BUCKETS = 33;
+
+    private int directories;
+    private int documents;
+    private final Map<String, Integer> types = new HashMap<>();
+    private final long[] sizeBuckets = new long[BUCKETS];
+
+    private DiskStats() {
+    }
+
+    static DiskStats of(Directory root) {
+        DiskStats stats = new DiskStats();
+        stats.collect(root);
+        return stats;
+    }
+
+    private void collect(Directory dir) {
+        for (File entity : dir.getContents()) {
+            count(entity, 1);
+        }
+    }
+
+    //a file and everything below it, counted in (sign 1) or out (sign -1)
+    private void count(File entity, int sign) {
+        bucketAdd(entity.getSize(), sign);
+        if (entity instanceof Document doc) {
+            documents += sign;
+            types.merge(doc.getType(), sign, (a, b) -> a + b == 0 ? null : a + b);
+        } else if (entity instanceof Directory sub) {
+            directories += sign;
+            for (File child : sub.getContents()) {
+                count(child, sign);
+            }
+        }
+    }
+
+    //a file and its subtree joined the disk
+    void added(File file) {
+        count(file, 1);
+    }
+
+    //a file and its subtree left the disk
+    void removed(File file) {
+        count(file, -1);
+    }
+
+    // A copy of a directory joined the disk. Directories, documents and types come from
+    // the copy's aggregates, O(types + buckets) instead of a walk. Directories do not keep
+    // the sizes below them, so the entries below the copy are spread over the buckets like
+    // the entries already on the disk, the source among them; the copy itself goes in its
+    // own bucket.
+    void copied(Directory dir) {
+        int[] byType = dir.getDocumentTypes();
+        int docs = 0;
+        for (int i = 0; i < byType.length; i++) {
+            if (byType[i] > 0) {
+                docs += byType[i];
+                types.merge(Document.validTypes().get(i), byType[i], Integer::sum);
+            }
+        }
+        int below = dir.getEntryCount();
+        directories += 1 + below - docs;
+        documents += docs;
+        spread(below, below == 0 ? 0 : (dir.getSize() - 40) / below);
+        bucketAdd(dir.getSize(), 1);
+    }
+
+    //add n entries in proportion to the buckets, the rest to the fullest one (or the bucket of fallback)
+    private void spread(int n, int fallback) {
+        long total = 0;
+        int fullest = bucket(fallback);
+        for (int b = 0; b < BUCKETS; b++) {
+            total += sizeBuckets[b];
+            if (sizeBuckets[b] > sizeBuckets[fullest]) {
+                fullest = b;
+            }
+        }
+        long left = n;
+        if (total > 0) {
+            long[] share = new long[BUCKETS];
+            for (int b = 0; b < BUCKETS; b++) {
+                share[b] = n * sizeBuckets[b] / total;
+                left -= share[b];
+            }
+            for (int b = 0; b < BUCKETS; b++) {
+                sizeBuckets[b] += share[b];
+            }
+        }
+        sizeBuckets[fullest] += left;
+    }
+
+    //a file on the disk changed size
+    void resized(int oldSize, int newSize) {
+        bucketAdd(oldSize, -1);
+        bucketAdd(newSize, 1);
+    }
+
+    //never below zero: after a copy the buckets are only an estimate of the files removed later
+    private void bucketAdd(int size, int delta) {
+        int b = bucket(size);
+        sizeBuckets[b] = Math.max(0, sizeBuckets[b] + delta);
+    }
+
+    //a copy that later changes do not reach, for an image written in the background
+    DiskStats copy() {
+        DiskStats copy = new DiskStats();
+        copy.directories = directories;
+        copy.documents = documents;
+        copy.types.putAll(types);
+        System.arraycopy(sizeBuckets, 0, copy.sizeBuckets, 0, BUCKETS);
+        return copy;
+    }
+
+    //the statistics section of an image
+    void writeTo(DataOutputStream out) throws IOException {
+        out.writeInt(directories);
+        out.writeInt(documents);
+        out.writeInt(types.size());
+        for (Map.Entry<String, Integer> type : types.entrySet()) {
+            out.writeInt(type.getKey().length());
+            out.writeChars(type.getKey());
+            out.writeInt(type.getValue());
+        }
+        for (long bucket : sizeBuckets) {
+            out.writeLong(bucket);
+        }
+    }
+
+    static DiskStats readFrom(ByteBuffer in) {
+        DiskStats stats = new DiskStats();
+        stats.directories = in.getInt();
+        stats.documents = in.getInt();
+        int types = in.getInt();
+        for (int i = 0; i < types; i++) {
+            char[] type = new char[in.getInt()];
+            in.asCharBuffer().get(type);
+            in.position(in.position() + type.length * 2);
+            stats.types.put(new String(type), in.getInt());
+        }
+        for (int i = 0; i < BUCKETS; i++) {
+            stats.sizeBuckets[i] = in.getLong();
+        }
+        return stats;
+    }
+
+    //files and directories below the root
+    public int entries() {
+        return directories + documents;
+    }
+
+    public int getDirectories() {
+        return directories;
+    }
+
+    public int getDocuments() {
+        return documents;
+    }
+
+    //fraction of the entries of a type, "Directory" is the type of directories
+    public double typeFraction(String type) {
+        if (entries() == 0) {
+            return 0;
+        }
+        int count = type.equals("Directory") ? directories : types.getOrDefault(type, 0);
+        return (double) count / entries();
+    }
+
+    public double documentFraction() {
+        return entries() == 0 ? 0 : (double) documents / entries();
+    }
+
+    //fraction of the entries whose size compares to n with op
+    public double sizeFraction(String op, int n) {
+        if (entries() == 0) {
+            return 0;
+        }
+        int b = bucket(n);
+        long lo = b == 0 ? 0 : 1L << (b - 1);
+        long width = b == 0 ? 1 : lo;
+        double below = 0;
+        for (int i = 0; i < b; i++) {
+            below += sizeBuckets[i];
+        }
+        below += sizeBuckets[b] * (double) (n - lo) / width;
+        double equal = sizeBuckets[b] / (double) width;
+        below /= entries();
+        equal /= entries();
+        switch (op) {
+            case "<":
+                return below;
+            case "<=":
+                return below + equal;
+            case ">":
+                return 1 - below - equal;
+            case ">=":
+                return 1 - below;
+            case "==":
+                return equal;
+            case "!=":
+                return 1 - equal;
+            default:
+                throw new IllegalArgumentException("Invalid criteria for size.");
+        }
+    }
+
+    private static int bucket(int size) {
+        return 32 - Integer.numberOfLeadingZeros(Math.max(size, 0));
+    }
+}
@@ -0,0 +1,139 @@
+package hk.edu.polyu.comp.comp2021.cvfs.model;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamField;
+import java.util.List;
+
+// Document class
+class Document extends File {
+    private static final long serialVersionUID = -7086926729641843023L;
+    private String type;
+    private Rope content; //shared by copy-on-write copies, appending makes a new rope
+    transient ContentStore.Entry tier; //set while the disk's ContentStore tracks this document
+    private transient int imageSlot = -1; //content slot in the block image this document was read from
+    private static final List<String> VALID_TYPES = List.of("txt", "java", "html", "css");
+    //the stream keeps the content as one String, like before it became a rope
+    private static final ObjectStreamField[] serialPersistentFields = {
+            new ObjectStreamField("type", String.class), new ObjectStreamField("content", String.class)};
+
+    public Document(String name, String type, String content) {
+        super(name);
+
+        //check if type is valid
+        if(!VALID_TYPES.contains(type))
+            throw new IllegalArgumentException("Invalid document type");
+
+        this.type = type;
+        this.content = Rope.of(content);
+    }
+
+    private Document(Document other) {
+        super(other);
+        this.type = other.type;
+        this.content = other.content;
+        this.imageSlot = other.imageSlot;
+    }
+
+    @Override
+    public Document copyForWrite() {
+        return new Document(this);
+    }
+
+    @Override
+    public int getSize() {
+        return 40 + content.length()*2;
+    }
+
+    public String getType() {
+        return type;
+    }
+
+    //the document types, in the order of Directory's per-type counts
+    static List<String> validTypes() {
+        return VALID_TYPES;
+    }
+
+    //bit of a type name in the type bitmap of Directory summaries, 0 if unknown
+    static int typeBit(String type) {
+        if (type.equals("Directory")) {
+            return Directory.DIR_BIT;
+        }
+        int index = VALID_TYPES.indexOf(type);
+        return index < 0 ? 0 : 1 << index;
+    }
+
+    //the whole content as one String, built from the chunks of an appended document
+    public String getContent(){
+        ContentStore.Entry entry = tier;
+        if (entry != null) {
+            entry.store.accessed(entry);
+        }
+        return content.toString();
+    }
+
+    //characters of the content held on the heap, spilled parts not read back excluded
+    int heapLength(){
+        return content.heapLength();
+    }
+
+    public int getLength(){
+        return content.length();
+    }
+
+    //characters [offset, offset + length) without building the whole content or loading it from a spill file
+    public String read(int offset, int length){
+        ContentStore.Entry entry = tier;
+        if (entry != null) {
+            entry.referenced = true;
+        }
+        return content.substring(offset, offset + length);
+    }
+
+    //only through ContentStore.trim(): move the content to the spill file
+    void spill(ContentStore store){
+        content = content.spill(store);
+    }
+
+    //the content for an image: neither brought back to the heap nor counted as a use
+    String imageContent(){
+        return content.uncached();
+    }
+
+    //only through VirtualDisk hooks: the sizes of the ancestors are updated by the caller
+    void append(String text){
+        content = content.append(text);
+        imageSlot = -1; //no longer the content in the image
+    }
+
+    public int getImageSlot(){
+        return imageSlot;
+    }
+
+    //in a block image the content is stored in a compressed block, not in the graph
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        ObjectOutputStream.PutField fields = out.putFields();
+        fields.put("type", type);
+        if (out instanceof DiskImage.ImageOutputStream image) {
+            fields.put("content", null);
+            out.writeFields();
+            out.writeInt(image.storeContent(this));
+        } else {
+            fields.put("content", imageContent());
+            out.writeFields();
+        }
+    }
+
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        ObjectInputStream.GetField fields = in.readFields();
+        type = (String) fields.get("type", null);
+        imageSlot = -1;
+        if (in instanceof DiskImage.ImageInputStream image) {
+            imageSlot = in.readInt();
+            content = Rope.of(image.content(imageSlot));
+        } else {
+            content = Rope.of((String) fields.get("content", null));
+        }
+    }
+}
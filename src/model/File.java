@@ -0,0 +1,46 @@
+package hk.edu.polyu.comp.comp2021.cvfs.model;
+
+import java.io.Serializable;
+
+// Base class for File - Documents & Directory
+abstract class File implements Serializable{
+    private static final long serialVersionUID = 7864370010769480658L;
+    protected String name;
+    protected transient Directory parent; //restored by the parent's readObject
+    protected int id; //assigned by the VirtualDisk, 0 until attached
+    protected int epoch; //disk epoch in which the live tree owns this object
+
+    public File(String name) {
+        setName(name);
+    }
+
+    //shallow copy that keeps name and id, children/content are shared
+    protected File(File other) {
+        this.name = other.name;
+        this.id = other.id;
+    }
+
+    public void setName(String name) {
+        //can only be alphanumeric and 10 characters long
+        if(!isValidName(name))
+            throw new IllegalArgumentException("Name can only contain alphanumeric characters");
+
+        this.name = name;
+    }
+
+    public static boolean isValidName(String name) {
+        return name.matches("[a-zA-Z0-9]{1,10}");
+    }
+
+    public String getName() { return name; }
+
+    public Directory getParent() { return parent; }
+
+    //copy used by copy-on-write before the live tree changes a shared object
+    public abstract File copyForWrite();
+
+    public int getId() { return id; }
+
+    //implementation in Document and File
+    public abstract int getSize();
+}
@@ -0,0 +1,140 @@
+package hk.edu.polyu.comp.comp2021.cvfs.model;
+
+import java.util.List;
+
+// The children of one directory as columns, for evaluating a criterion on all of them at once
+// Sizes are gathered into an int[] once, and a criterion answers with a bit mask
+// (bit i of word i / 64 set = file i matches). Size comparisons run over the column on
+// IntVector lanes (SizeVectors) when the JVM has jdk.incubator.vector, as a straight
+// loop without a call or a branch per file otherwise, and the masks of the operands
+// of a negation or binary criterion are combined a word (64 files) at a time.
+class FileBatch {
+    //-Dcvfs.vectorSizes=false keeps the scalar loop even when the module is there
+    static final boolean VECTOR = Boolean.parseBoolean(System.getProperty("cvfs.vectorSizes", "true"))
+            && ModuleLayer.boot().findModule("jdk.incubator.vector").isPresent();
+
+    private final List<File> files;
+    private final int[] sizes;
+
+    FileBatch(List<File> files) {
+        this.files = files;
+        this.sizes = new int[files.size()];
+        for (int i = 0; i < sizes.length; i++) {
+            sizes[i] = files.get(i).getSize();
+        }
+    }
+
+    public int size() {
+        return sizes.length;
+    }
+
+    public File get(int i) {
+        return files.get(i);
+    }
+
+    public int[] sizes() {
+        return sizes;
+    }
+
+    public long[] emptyMask() {
+        return new long[(sizes.length + 63) >>> 6];
+    }
+
+    //every file of the batch
+    public long[] fullMask() {
+        long[] mask = emptyMask();
+        for (int w = 0; w < mask.length; w++) {
+            mask[w] = -1L;
+        }
+        int tail = sizes.length & 63;
+        if (tail != 0) {
+            mask[mask.length - 1] = (1L << tail) - 1;
+        }
+        return mask;
+    }
+
+    public static boolean test(long[] mask, int i) {
+        return (mask[i >>> 6] & (1L << i)) != 0;
+    }
+
+    public static void set(long[] mask, int i) {
+        mask[i >>> 6] |= 1L << i;
+    }
+
+    // Size comparison over the column. One pass finds "greater than" and "less than",
+    // as lane compare masks or from the sign bit of a long subtraction (sizes and value
+    // are never negative); the six operators are word-wise combinations of the two.
+    public long[] compareSizes(String op, int value) {
+        return compareSizes(op, value, VECTOR);
+    }
+
+    long[] compareSizes(String op, int value, boolean vector) {
+        long[] greater = emptyMask();
+        long[] less = emptyMask();
+        int start = vector ? SizeVectors.compare(sizes, value, greater, less) : 0;
+        for (int i = start; i < sizes.length; i++) {
+            long s = sizes[i];
+            greater[i >>> 6] |= (((long) value - s) >>> 63) << i;
+            less[i >>> 6] |= ((s - value) >>> 63) << i;
+        }
+        long[] full = fullMask();
+        long[] mask = greater;
+        for (int w = 0; w < mask.length; w++) {
+            long gt = greater[w];
+            long lt = less[w];
+            switch (op) {
+                case ">":
+                    mask[w] = gt;
+                    break;
+                case "<":
+                    mask[w] = lt;
+                    break;
+                case ">=":
+                    mask[w] = ~lt & full[w];
+                    break;
+                case "<=":
+                    mask[w] = ~gt & full[w];
+                    break;
+                case "==":
+                    mask[w] = ~(gt | lt) & full[w];
+                    break;
+                case "!=":
+                    mask[w] = gt | lt;
+                    break;
+                default:
+                    throw new IllegalArgumentException("Invalid criteria for size.");
+            }
+        }
+        return mask;
+    }
+
+    public static long[] and(long[] a, long[] b) {
+        for (int w = 0; w < a.length; w++) {
+            a[w] &= b[w];
+        }
+        return a;
+    }
+
+    public static long[] or(long[] a, long[] b) {
+        for (int w = 0; w < a.length; w++) {
+            a[w] |= b[w];
+        }
+        return a;
+    }
+
+    public static long[] andNot(long[] a, long[] b) {
+        for (int w = 0; w < a.length; w++) {
+            a[w] &= ~b[w];
+        }
+        return a;
+    }
+
+    public static boolean isEmpty(long[] mask) {
+        for (long word : mask) {
+            if (word != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
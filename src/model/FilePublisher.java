@@ -0,0 +1,219 @@
+package hk.edu.polyu.comp.comp2021.cvfs.model;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Flow;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+// The files list/rList/search/rSearch would print, published one entry at a time
+// The tree is walked lazily: a directory is read (and the criterion evaluated over its
+// children as one batch) only when the subscriber has asked for more entries than have
+// been found so far, and cancelling stops the walk. Entries come in the order the
+// commands print them. Every subscription walks its own copy-on-write snapshot of the
+// working directory taken when it subscribed, so later commands do not change it.
+class FilePublisher implements Flow.Publisher<FilePublisher.Entry> {
+    private final CVFS cvfs;
+    private final Criteria criteria; //null lists everything
+    private final boolean recursive;
+    private final Executor executor;
+
+    // One published file, detached from the tree
+    static class Entry {
+        private final String path; //below the working directory, "a/b/doc"
+        private final int depth;
+        private final String name;
+        private final String type; //"Directory" or the type of the document
+        private final int size;
+
+        Entry(String path, int depth, File file) {
+            this.path = path;
+            this.depth = depth;
+            this.name = file.getName();
+            this.type = file instanceof Document doc ? doc.getType() : "Directory";
+            this.size = file.getSize();
+        }
+
+        public String getPath() {
+            return path;
+        }
+
+        public int getDepth() {
+            return depth;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public String getType() {
+            return type;
+        }
+
+        public int getSize() {
+            return size;
+        }
+
+        public boolean isDirectory() {
+            return type.equals("Directory");
+        }
+
+        //the line rList/rSearch print for this file
+        @Override
+        public String toString() {
+            return "\t".repeat(depth) + name + " (" + type + ") " + size + " bytes";
+        }
+    }
+
+    //entries are delivered on the thread that calls request(), or on the executor
+    FilePublisher(CVFS cvfs, Criteria criteria, boolean recursive, Executor executor) {
+        this.cvfs = cvfs;
+        this.criteria = criteria;
+        this.recursive = recursive;
+        this.executor = executor;
+    }
+
+    @Override
+    public void subscribe(Flow.Subscriber<? super Entry> subscriber) {
+        Directory start;
+        synchronized (cvfs) {
+            start = cvfs.streamSnapshot();
+        }
+        Subscription subscription = new Subscription(subscriber, new Walk(start));
+        subscriber.onSubscribe(subscription);
+    }
+
+    // Depth-first walk of the snapshot, one directory level per frame
+    private class Walk {
+        private final Deque<Frame> stack = new ArrayDeque<>();
+
+        Walk(Directory start) {
+            stack.push(new Frame(start, "", 0, criteria != null && criteria.mustMatchAll(start)));
+        }
+
+        //the next entry, null when the walk is done
+        Entry next() {
+            while (!stack.isEmpty()) {
+                Frame frame = stack.peek();
+                if (frame.mask == null && !frame.all) {
+                    frame.evaluate();
+                }
+                if (frame.index == frame.files.size()) {
+                    stack.pop();
+                    continue;
+                }
+                int i = frame.index++;
+                File file = frame.files.get(i);
+                CommandStats.global().nodeVisited();
+                boolean matches = frame.all || FileBatch.test(frame.mask, i);
+                if (recursive && file instanceof Directory dir && !dir.getContents().isEmpty()) {
+                    if (criteria == null) {
+                        stack.push(new Frame(dir, frame.prefix + dir.getName() + "/", frame.depth + 1, true));
+                    } else if (frame.all || criteria.canMatchAny(dir)) {
+                        stack.push(new Frame(dir, frame.prefix + dir.getName() + "/", frame.depth + 1,
+                                frame.all || criteria.mustMatchAll(dir)));
+                    }
+                }
+                if (matches) {
+                    return new Entry(frame.prefix + file.getName(), frame.depth, file);
+                }
+            }
+            return null;
+        }
+
+        private class Frame {
+            final List<File> files;
+            final String prefix;
+            final int depth;
+            final boolean all; //everything in here matches
+            long[] mask;
+            int index;
+
+            Frame(Directory dir, String prefix, int depth, boolean all) {
+                this.files = dir.getContents();
+                this.prefix = prefix;
+                this.depth = depth;
+                this.all = all || criteria == null;
+            }
+
+            //criteria are shared with the live disk, evaluate them while no command runs
+            void evaluate() {
+                synchronized (cvfs) {
+                    mask = criteria.evaluate(new FileBatch(files));
+                }
+            }
+        }
+    }
+
+    // Demand is counted; whoever brings the count of pending drains from 0 to 1 delivers,
+    // so onNext is never called concurrently or reentrantly, even from request() in onNext.
+    private class Subscription implements Flow.Subscription {
+        private final Flow.Subscriber<? super Entry> subscriber;
+        private final Walk walk;
+        private final AtomicLong demand = new AtomicLong();
+        private final AtomicInteger pending = new AtomicInteger();
+        private volatile boolean cancelled;
+        private volatile long invalidRequest;
+
+        Subscription(Flow.Subscriber<? super Entry> subscriber, Walk walk) {
+            this.subscriber = subscriber;
+            this.walk = walk;
+        }
+
+        @Override
+        public void request(long n) {
+            if (n <= 0) {
+                invalidRequest = n;
+            } else {
+                demand.accumulateAndGet(n, (a, b) -> a + b < 0 ? Long.MAX_VALUE : a + b);
+            }
+            if (pending.getAndIncrement() == 0) {
+                if (executor == null) {
+                    drain();
+                } else {
+                    executor.execute(this::drain);
+                }
+            }
+        }
+
+        @Override
+        public void cancel() {
+            cancelled = true;
+        }
+
+        private void drain() {
+            int missed = 1;
+            while (true) {
+                if (!cancelled && invalidRequest != 0) {
+                    cancelled = true;
+                    subscriber.onError(new IllegalArgumentException("Requested " + invalidRequest + " entries, must be positive."));
+                }
+                while (!cancelled && demand.get() > 0) {
+                    Entry entry;
+                    try {
+                        entry = walk.next();
+                    } catch (RuntimeException e) {
+                        cancelled = true;
+                        subscriber.onError(e);
+                        break;
+                    }
+                    if (entry == null) {
+                        cancelled = true;
+                        subscriber.onComplete();
+                        break;
+                    }
+                    if (demand.get() != Long.MAX_VALUE) {
+                        demand.decrementAndGet();
+                    }
+                    subscriber.onNext(entry);
+                }
+                missed = pending.addAndGet(-missed);
+                if (missed == 0) {
+                    return;
+                }
+            }
+        }
+    }
+}
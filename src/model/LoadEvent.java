@@ -0,0 +1,30 @@
+package hk.edu.polyu.comp.comp2021.cvfs.model;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Enabled;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+// JDK Flight Recorder event, disabled by default like the others (see CommandEvent)
+
+@Name(LoadEvent.NAME)
+@Label("CVFS Load")
+@Category({"CVFS", "Persistence"})
+@Enabled(false)
+@StackTrace(false)
+class LoadEvent extends Event {
+    static final String NAME = "hk.edu.polyu.comp.comp2021.cvfs.Load";
+
+    @Label("Disk")
+    String disk;
+
+    @Label("Image Path")
+    String path;
+
+    @Label("Bytes Read")
+    @DataAmount
+    long bytes;
+}
@@ -0,0 +1,87 @@
+package hk.edu.polyu.comp.comp2021.cvfs.model;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+
+// Ordered log of the mutating commands a replication leader has applied
+// A record is the command lines that replay one change on a replica: the change
+// directory line for the directory it ran in and the command itself, or a whole
+// begin ... commit batch. Records are numbered from 1 without gaps. Only the last
+// RETAINED records are kept; a follower that is further behind, or that follows an
+// older history (after newDisk, load, useDisk or rollback), catches up from a
+// snapshot of the disk instead, and gets the records after the snapshot from here.
+class MutationLog {
+    static final int RETAINED = Integer.getInteger("cvfs.replicationLog", 10000);
+
+    private final Deque<Record> records = new ArrayDeque<>();
+    private long lastSeq;
+    private long history = ThreadLocalRandom.current().nextLong(); //new when the log no longer continues the followers' disk
+
+    static class Record {
+        final long seq;
+        final long time; //leader clock, for the lag of the followers
+        final List<String> lines;
+
+        Record(long seq, long time, List<String> lines) {
+            this.seq = seq;
+            this.time = time;
+            this.lines = lines;
+        }
+    }
+
+    public synchronized long append(List<String> lines) {
+        records.addLast(new Record(++lastSeq, System.currentTimeMillis(), List.copyOf(lines)));
+        if (records.size() > RETAINED) {
+            records.removeFirst();
+        }
+        notifyAll();
+        return lastSeq;
+    }
+
+    //the disk was replaced, every follower needs a new snapshot
+    public synchronized void resync() {
+        records.clear();
+        history = ThreadLocalRandom.current().nextLong();
+        notifyAll();
+    }
+
+    public synchronized long lastSeq() {
+        return lastSeq;
+    }
+
+    public synchronized long history() {
+        return history;
+    }
+
+    // Records after seq, at most max of them, waiting up to timeoutMillis for one to
+    // arrive. Returns null if the records after seq are no longer kept.
+    public synchronized List<Record> after(long seq, int max, long timeoutMillis) throws InterruptedException {
+        if (lastSeq <= seq && timeoutMillis > 0) {
+            wait(timeoutMillis);
+        }
+        List<Record> found = new ArrayList<>();
+        if (lastSeq <= seq) {
+            return found;
+        }
+        if (records.isEmpty() || records.peekFirst().seq > seq + 1) {
+            return null;
+        }
+        for (Record record : records) {
+            if (record.seq > seq) {
+                found.add(record);
+                if (found.size() == max) {
+                    break;
+                }
+            }
+        }
+        return found;
+    }
+
+    //wake up the senders, e.g. because the window opened again
+    public synchronized void wakeUp() {
+        notifyAll();
+    }
+}
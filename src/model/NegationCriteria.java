@@ -0,0 +1,60 @@
+package hk.edu.polyu.comp.comp2021.cvfs.model;
+
+import java.util.Map;
+
+//[REQ11]  Command: newNegaLon / newBinaryCri
+class NegationCriteria extends Criteria{
+    private static final long serialVersionUID = 1L;
+    private Criteria origCriteria;
+    private String name;
+
+    public NegationCriteria(String name, CriteriaManager critM, String origCriteria) {
+        super(name, critM);
+        this.origCriteria = critM.searchCri(origCriteria);
+        critM.appendCri(this);
+    }
+
+    @Override
+    public boolean evaluate(File file){
+        return !origCriteria.evaluate(file);
+    }
+
+    @Override
+    protected boolean evaluateMemo(File file, Map<Criteria, Boolean> memo){
+        return !origCriteria.evaluate(file, memo);
+    }
+
+    @Override
+    public long[] evaluate(FileBatch batch, long[] within){
+        return FileBatch.andNot(within.clone(), origCriteria.evaluate(batch, within));
+    }
+
+    Criteria getOrigCriteria(){
+        return origCriteria;
+    }
+
+    @Override
+    public String print(){
+        return String.format("!(%s)", origCriteria.print());
+    }
+
+    @Override
+    public boolean canMatchAny(Directory dir){
+        return !origCriteria.mustMatchAll(dir);
+    }
+
+    @Override
+    public boolean mustMatchAll(Directory dir){
+        return !origCriteria.canMatchAny(dir);
+    }
+
+    @Override
+    public void prepare(VirtualDisk disk){
+        origCriteria.prepare(disk);
+    }
+
+    @Override
+    public void release(){
+        origCriteria.release();
+    }
+}
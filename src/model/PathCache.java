@@ -0,0 +1,109 @@
+package hk.edu.polyu.comp.comp2021.cvfs.model;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+// Bounded LRU cache of resolved changeDir paths, one per VirtualDisk
+// Keys are normalized absolute paths ($/root/a/b). An entry remembers the directory
+// object and the disk's path generation when it was stored. The generation moves on
+// whenever a directory is renamed, deleted, moved or replaced by copy-on-write, so
+// an entry is only used while the directory it names is still that object at that path.
+class PathCache {
+    static final int DEFAULT_CAPACITY = Integer.getInteger("cvfs.pathCache", 256);
+
+    private final int capacity;
+    private final Map<String, Entry> entries;
+    private long hits;
+    private long misses;
+
+    private static class Entry {
+        final Directory dir;
+        final int generation;
+
+        Entry(Directory dir, int generation) {
+            this.dir = dir;
+            this.generation = generation;
+        }
+    }
+
+    PathCache() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    PathCache(int capacity) {
+        this.capacity = capacity;
+        this.entries = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                return size() > PathCache.this.capacity;
+            }
+        };
+    }
+
+    //the cached directory, null if unknown or stale
+    public Directory get(String path, int generation) {
+        Entry entry = entries.get(path);
+        if (entry != null && entry.generation == generation) {
+            hits++;
+            return entry.dir;
+        }
+        if (entry != null) {
+            entries.remove(path);
+        }
+        misses++;
+        return null;
+    }
+
+    public void put(String path, Directory dir, int generation) {
+        if (capacity > 0) {
+            entries.put(path, new Entry(dir, generation));
+        }
+    }
+
+    public long getHits() {
+        return hits;
+    }
+
+    public long getMisses() {
+        return misses;
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    // Normalize a path into the names below the root. "." is dropped and ".." removes
+    // the previous name (lexically, like cd -L). Absolute paths start with $ and skip
+    // the root name; relative ones start from the given names of the working directory.
+    static List<String> normalize(String path, List<String> base) {
+        List<String> names = new ArrayList<>();
+        String[] parts = path.split("/");
+        int start = 0;
+        if (path.charAt(0) == '$') {
+            start = 2; //$ and the root name
+        } else {
+            names.addAll(base);
+        }
+        for (int i = start; i < parts.length; i++) {
+            String part = parts[i];
+            if (part.isEmpty() || part.equals(".")) {
+                continue;
+            }
+            if (part.equals("..")) {
+                if (names.isEmpty()) {
+                    throw new IllegalArgumentException("Already at the root directory.");
+                }
+                names.remove(names.size() - 1);
+            } else {
+                names.add(part);
+            }
+        }
+        return names;
+    }
+
+    static String key(List<String> names) {
+        return "$/root/" + String.join("/", names);
+    }
+}
@@ -0,0 +1,293 @@
+package hk.edu.polyu.comp.comp2021.cvfs.model;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+// How a search evaluates a criterion, chosen by CriteriaManager.plan
+// The criterion is turned into a tree of plan nodes with an estimated selectivity
+// (fraction of files matching, from DiskStats) and cost (per file evaluated). The two
+// operands of a binary criterion are put in the order that does the least work: for
+// && the cheap operand that rejects most files first, for || the cheap operand that
+// accepts most. The second operand is then only evaluated on the files the first one
+// left open. The strategy is one of:
+//  - index: content criteria are answered from the trigram content index
+//  - pruned traversal: subtrees whose summaries cannot match are skipped
+//  - scan: every file is evaluated
+class QueryPlan {
+    static final int INDEX_MIN_DOCUMENTS = 128; //below this a full scan is cheaper than building the index
+
+    enum Strategy {
+        SCAN("scan"), INDEX("index"), PRUNED("pruned traversal");
+
+        private final String label;
+
+        Strategy(String label) {
+            this.label = label;
+        }
+
+        @Override
+        public String toString() {
+            return label;
+        }
+    }
+
+    private final Criteria criteria;
+    private final Node root;
+    private final Strategy strategy;
+    private final boolean pruning;
+    private final long estimatedRows;
+    private final long estimatedMatches;
+    private long rowsVisited;
+    private long matches;
+
+    private QueryPlan(Criteria criteria, Node root, Strategy strategy, boolean pruning,
+                      long estimatedRows, long estimatedMatches) {
+        this.criteria = criteria;
+        this.root = root;
+        this.strategy = strategy;
+        this.pruning = pruning;
+        this.estimatedRows = estimatedRows;
+        this.estimatedMatches = estimatedMatches;
+    }
+
+    static QueryPlan of(Criteria criteria, VirtualDisk disk, Directory dir, boolean recursive) {
+        DiskStats stats = disk.getStats();
+        boolean index = disk.hasContentIndex() || stats.getDocuments() >= INDEX_MIN_DOCUMENTS;
+        Node root = node(criteria, stats, index);
+
+        boolean pruning = recursive && root.prunable;
+        Strategy strategy;
+        if (index && root.usesContent) {
+            strategy = Strategy.INDEX;
+        } else if (pruning) {
+            strategy = Strategy.PRUNED;
+        } else {
+            strategy = Strategy.SCAN;
+        }
+
+        long direct = dir.getContents().size();
+        long scope = recursive ? dir.getEntryCount() : direct;
+        long rows = scope;
+        if (pruning) {
+            //the first level is always read, deeper levels only where the summaries let the search in
+            rows = direct + Math.round((scope - direct) * Math.min(1, 2 * root.selectivity));
+        }
+        return new QueryPlan(criteria, root, strategy, pruning, rows, Math.round(scope * root.selectivity));
+    }
+
+    public Criteria getCriteria() {
+        return criteria;
+    }
+
+    public Strategy getStrategy() {
+        return strategy;
+    }
+
+    //whether the traversal may skip subtrees by their summaries
+    public boolean prunes() {
+        return pruning;
+    }
+
+    public void prepare(VirtualDisk disk) {
+        if (strategy == Strategy.INDEX) {
+            criteria.prepare(disk);
+        }
+    }
+
+    public void release() {
+        criteria.release();
+    }
+
+    //matches of a batch, counting the rows visited and matched
+    public long[] evaluate(FileBatch batch) {
+        long[] mask = root.evaluate(batch, batch.fullMask());
+        rowsVisited += batch.size();
+        for (long word : mask) {
+            matches += Long.bitCount(word);
+        }
+        return mask;
+    }
+
+    //rows the search walked through without evaluating (inside subtrees that match entirely)
+    public void visited(int rows, int matched) {
+        rowsVisited += rows;
+        matches += matched;
+    }
+
+    public long getEstimatedRows() {
+        return estimatedRows;
+    }
+
+    public long getEstimatedMatches() {
+        return estimatedMatches;
+    }
+
+    public long getRowsVisited() {
+        return rowsVisited;
+    }
+
+    public long getMatches() {
+        return matches;
+    }
+
+    //the plan tree, one node per line
+    public List<String> describe() {
+        List<String> lines = new ArrayList<>();
+        lines.add("Plan for " + criteria.getCriName() + ": " + strategy);
+        root.describe(lines, 1);
+        return lines;
+    }
+
+    private static Node node(Criteria criteria, DiskStats stats, boolean index) {
+        if (criteria instanceof NegationCriteria negation) {
+            return new Not(node(negation.getOrigCriteria(), stats, index));
+        }
+        if (criteria instanceof BinaryCriteria binary) {
+            Node b = node(binary.getCritB(), stats, index);
+            Node c = node(binary.getCritC(), stats, index);
+            boolean and = binary.getLogicOp().equals("&&");
+            return rank(b, and) >= rank(c, and) ? new Binary(and, b, c, false) : new Binary(and, c, b, true);
+        }
+        return new Leaf(criteria, stats, index);
+    }
+
+    //work saved per unit of cost by evaluating a node first
+    private static double rank(Node node, boolean and) {
+        double decided = and ? 1 - node.selectivity : node.selectivity;
+        return decided / node.cost;
+    }
+
+    private static String format(double value) {
+        return String.format(Locale.ROOT, "%.2f", value);
+    }
+
+    private abstract static class Node {
+        double selectivity;
+        double cost;
+        boolean prunable;    //its summaries can rule subtrees out
+        boolean usesContent;
+
+        //the files of within that match, a fresh mask
+        abstract long[] evaluate(FileBatch batch, long[] within);
+
+        abstract void describe(List<String> lines, int level);
+
+        String estimate() {
+            return " (selectivity " + format(selectivity) + ", cost " + format(cost) + ")";
+        }
+    }
+
+    private static class Leaf extends Node {
+        private final Criteria criteria;
+
+        Leaf(Criteria criteria, DiskStats stats, boolean index) {
+            this.criteria = criteria;
+            String attr = criteria instanceof SimpleCriteria simple ? simple.getAttrName() : "";
+            String val = criteria instanceof SimpleCriteria simple ? simple.getVal().replace("\"", "") : "";
+            prunable = !attr.equals("content");
+            usesContent = attr.equals("content");
+            switch (attr) {
+                case "IsDocument":
+                    selectivity = stats.documentFraction();
+                    cost = 1;
+                    break;
+                case "type":
+                    selectivity = stats.typeFraction(val);
+                    cost = 1;
+                    break;
+                case "size":
+                    selectivity = stats.sizeFraction(((SimpleCriteria) criteria).getOp(), Integer.parseInt(val));
+                    cost = 0.5;
+                    break;
+                case "name":
+                    selectivity = val.isEmpty() ? 1 : 0.1;
+                    cost = 2;
+                    break;
+                case "content":
+                    selectivity = val.isEmpty() ? stats.documentFraction() : 0.05 * stats.documentFraction();
+                    cost = index ? 2 : 20;
+                    break;
+                default:
+                    selectivity = 0.5;
+                    cost = 1;
+            }
+            selectivity = Math.max(0, Math.min(1, selectivity));
+        }
+
+        //size criteria run as one column compare, the others file by file over within
+        @Override
+        long[] evaluate(FileBatch batch, long[] within) {
+            return criteria.evaluate(batch, within);
+        }
+
+        @Override
+        void describe(List<String> lines, int level) {
+            lines.add("  ".repeat(level) + criteria.getCriName() + ": " + criteria.print().trim() + estimate());
+        }
+    }
+
+    private static class Not extends Node {
+        private final Node child;
+
+        Not(Node child) {
+            this.child = child;
+            selectivity = 1 - child.selectivity;
+            cost = child.cost;
+            prunable = child.prunable;
+            usesContent = child.usesContent;
+        }
+
+        @Override
+        long[] evaluate(FileBatch batch, long[] within) {
+            return FileBatch.andNot(within.clone(), child.evaluate(batch, within));
+        }
+
+        @Override
+        void describe(List<String> lines, int level) {
+            lines.add("  ".repeat(level) + "NOT" + estimate());
+            child.describe(lines, level + 1);
+        }
+    }
+
+    private static class Binary extends Node {
+        private final boolean and;
+        private final Node first;
+        private final Node second;
+        private final boolean reordered;
+
+        Binary(boolean and, Node first, Node second, boolean reordered) {
+            this.and = and;
+            this.first = first;
+            this.second = second;
+            this.reordered = reordered;
+            if (and) {
+                selectivity = first.selectivity * second.selectivity;
+                cost = first.cost + first.selectivity * second.cost;
+                prunable = first.prunable || second.prunable;
+            } else {
+                selectivity = first.selectivity + second.selectivity - first.selectivity * second.selectivity;
+                cost = first.cost + (1 - first.selectivity) * second.cost;
+                prunable = first.prunable && second.prunable;
+            }
+            usesContent = first.usesContent || second.usesContent;
+        }
+
+        @Override
+        long[] evaluate(FileBatch batch, long[] within) {
+            long[] matched = first.evaluate(batch, within);
+            if (and) {
+                return FileBatch.isEmpty(matched) ? matched : second.evaluate(batch, matched);
+            }
+            long[] open = FileBatch.andNot(within.clone(), matched);
+            return FileBatch.isEmpty(open) ? matched : FileBatch.or(matched, second.evaluate(batch, open));
+        }
+
+        @Override
+        void describe(List<String> lines, int level) {
+            lines.add("  ".repeat(level) + (and ? "AND" : "OR") + (reordered ? " (operands reordered)" : "") + estimate());
+            first.describe(lines, level + 1);
+            second.describe(lines, level + 1);
+        }
+    }
+}
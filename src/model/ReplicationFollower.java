@@ -0,0 +1,198 @@
+package hk.edu.polyu.comp.comp2021.cvfs.model;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+// Keeps a CVFS a read-only copy of a replication leader's disk
+// Connects to the leader, says where its history and log position are, then loads
+// the snapshot and applies the records the leader streams, acknowledging each batch.
+// A lost connection is retried; a record that fails to apply (the copy diverged)
+// drops the position so the next connection starts from a snapshot again.
+class ReplicationFollower {
+    private static final long RETRY_MILLIS = 200;
+
+    private final CVFS cvfs;
+    private final String host;
+    private final int port;
+    private final Thread thread;
+    private final PrintStream console;
+    private volatile boolean running = true;
+    private volatile Socket socket;
+
+    private volatile long history;
+    private volatile long appliedSeq;
+    private volatile long recordsApplied;
+    private volatile long snapshotsLoaded;
+    private volatile long lagMillis;
+    private volatile boolean connected;
+
+    ReplicationFollower(CVFS cvfs, String host, int port) {
+        this.cvfs = cvfs;
+        this.host = host;
+        this.port = port;
+        this.thread = new Thread(this::follow, "cvfs-replication-follow");
+        thread.setDaemon(true);
+        //the output of replayed commands is not shown, everything else goes through
+        console = System.out;
+        System.setOut(new PrintStream(new OutputStream() {
+            @Override
+            public void write(int b) {
+                if (Thread.currentThread() != thread) {
+                    console.write(b);
+                }
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) {
+                if (Thread.currentThread() != thread) {
+                    console.write(b, off, len);
+                }
+            }
+
+            @Override
+            public void flush() {
+                console.flush();
+            }
+        }, true));
+        thread.start();
+    }
+
+    public void stop() {
+        running = false;
+        Socket current = socket;
+        if (current != null) {
+            try {
+                current.close();
+            } catch (IOException e) {
+                //closing anyway
+            }
+        }
+        try {
+            thread.join(1000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        System.setOut(console);
+    }
+
+    public long getAppliedSeq() {
+        return appliedSeq;
+    }
+
+    public long getLagMillis() {
+        return lagMillis;
+    }
+
+    public List<String> status() {
+        List<String> lines = new ArrayList<>();
+        lines.add("Following " + host + ":" + port + (connected ? "" : " (reconnecting)")
+                + ", applied record " + appliedSeq + ", lag " + lagMillis + " ms");
+        lines.add("  records applied: " + recordsApplied + ", snapshots loaded: " + snapshotsLoaded);
+        return lines;
+    }
+
+    private void follow() {
+        while (running) {
+            try (Socket s = new Socket(host, port)) {
+                socket = s;
+                s.setTcpNoDelay(true);
+                DataInputStream in = new DataInputStream(new BufferedInputStream(s.getInputStream()));
+                DataOutputStream out = new DataOutputStream(new BufferedOutputStream(s.getOutputStream()));
+                out.writeLong(history);
+                out.writeLong(appliedSeq);
+                out.flush();
+                connected = true;
+                while (running) {
+                    byte type = in.readByte();
+                    if (type == ReplicationLeader.SNAPSHOT) {
+                        loadSnapshot(in);
+                        ack(out, appliedSeq, System.currentTimeMillis());
+                    } else if (type == ReplicationLeader.RECORDS) {
+                        if (!applyRecords(in, out)) {
+                            //diverged, start over from a snapshot
+                            history = 0;
+                            appliedSeq = 0;
+                            break;
+                        }
+                    } else {
+                        throw new IOException("Unexpected frame from leader.");
+                    }
+                }
+            } catch (IOException | ClassNotFoundException e) {
+                //leader not reachable or gone
+            } finally {
+                connected = false;
+            }
+            if (running) {
+                try {
+                    Thread.sleep(RETRY_MILLIS);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }
+    }
+
+    private void loadSnapshot(DataInputStream in) throws IOException, ClassNotFoundException {
+        long newHistory = in.readLong();
+        long seq = in.readLong();
+        byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        //images are read from a file, the index sits at its end
+        Path temp = Files.createTempFile("cvfs-replica", ".img");
+        try {
+            Files.write(temp, bytes);
+            CVFS image = (CVFS) DiskImage.read(temp.toString());
+            synchronized (cvfs) {
+                cvfs.installReplica(image);
+            }
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+        history = newHistory;
+        appliedSeq = seq;
+        snapshotsLoaded++;
+    }
+
+    private boolean applyRecords(DataInputStream in, DataOutputStream out) throws IOException {
+        int count = in.readInt();
+        long lastTime = 0;
+        for (int i = 0; i < count; i++) {
+            long seq = in.readLong();
+            long time = in.readLong();
+            List<String> lines = new ArrayList<>();
+            for (int n = in.readInt(); n > 0; n--) {
+                lines.add(in.readUTF());
+            }
+            if (seq <= appliedSeq) {
+                continue; //already in the snapshot
+            }
+            if (seq != appliedSeq + 1 || !cvfs.applyReplicated(lines)) {
+                return false;
+            }
+            appliedSeq = seq;
+            recordsApplied++;
+            lastTime = time;
+            lagMillis = System.currentTimeMillis() - time;
+        }
+        ack(out, appliedSeq, lastTime == 0 ? System.currentTimeMillis() : lastTime);
+        return true;
+    }
+
+    private static void ack(DataOutputStream out, long seq, long time) throws IOException {
+        out.writeByte(ReplicationLeader.ACK);
+        out.writeLong(seq);
+        out.writeLong(time);
+        out.flush();
+    }
+}
@@ -0,0 +1,213 @@
+package hk.edu.polyu.comp.comp2021.cvfs.model;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+// Streams the mutation log of a CVFS to follower processes over TCP on localhost
+// Protocol (DataOutputStream framing):
+//  follower -> leader  hello:    history (long), last applied seq (long)
+//  leader -> follower  SNAPSHOT: history, seq, length (int), disk image bytes
+//                      RECORDS:  count (int), then per record seq, time, line count, lines (UTF)
+//  follower -> leader  ACK:      seq, leader time of that record
+// Records are sent in batches of up to MAX_BATCH without waiting for the previous
+// batch to be acknowledged, as long as less than WINDOW records are unacknowledged.
+class ReplicationLeader {
+    static final byte SNAPSHOT = 'S';
+    static final byte RECORDS = 'R';
+    static final byte ACK = 'A';
+    static final int MAX_BATCH = 64;
+    static final int WINDOW = 1024;
+
+    private final CVFS cvfs;
+    private final MutationLog log = new MutationLog();
+    private final ServerSocket server;
+    private final List<Link> followers = new CopyOnWriteArrayList<>();
+    private volatile boolean running = true;
+
+    ReplicationLeader(CVFS cvfs, int port) throws IOException {
+        this.cvfs = cvfs;
+        this.server = new ServerSocket(port, 50, InetAddress.getLoopbackAddress());
+        Thread accept = new Thread(this::accept, "cvfs-replication-leader");
+        accept.setDaemon(true);
+        accept.start();
+    }
+
+    public int getPort() {
+        return server.getLocalPort();
+    }
+
+    public MutationLog getLog() {
+        return log;
+    }
+
+    public int followerCount() {
+        return followers.size();
+    }
+
+    public void stop() {
+        running = false;
+        try {
+            server.close();
+        } catch (IOException e) {
+            //closing anyway
+        }
+        for (Link link : followers) {
+            link.close();
+        }
+        log.wakeUp();
+    }
+
+    //one line per connected follower
+    public List<String> status() {
+        List<String> lines = new ArrayList<>();
+        lines.add("Leader on port " + getPort() + ", last record " + log.lastSeq() + ", followers: " + followers.size());
+        for (Link link : followers) {
+            lines.add("  " + link.name + ": sent " + link.sent + ", acknowledged " + link.acked
+                    + ", lag " + (log.lastSeq() - link.acked) + " records / " + link.lagMillis + " ms"
+                    + ", snapshots " + link.snapshots);
+        }
+        return lines;
+    }
+
+    private void accept() {
+        while (running) {
+            try {
+                Socket socket = server.accept();
+                socket.setTcpNoDelay(true);
+                Link link = new Link(socket);
+                followers.add(link);
+                Thread sender = new Thread(link::send, "cvfs-replication-send");
+                sender.setDaemon(true);
+                sender.start();
+            } catch (IOException e) {
+                //server socket closed by stop()
+            }
+        }
+    }
+
+    // One connected follower: a sender thread and an acknowledgement reader
+    private class Link {
+        private final Socket socket;
+        private final String name;
+        private DataOutputStream out;
+        private volatile long sent;
+        private volatile long acked;
+        private volatile long lagMillis;
+        private volatile int snapshots;
+
+        Link(Socket socket) {
+            this.socket = socket;
+            this.name = socket.getRemoteSocketAddress().toString();
+        }
+
+        void send() {
+            try {
+                DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+                out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+                long history = in.readLong();
+                sent = in.readLong();
+                acked = sent;
+                Thread acks = new Thread(() -> readAcks(in), "cvfs-replication-ack");
+                acks.setDaemon(true);
+                acks.start();
+
+                while (running && !socket.isClosed()) {
+                    if (history != log.history()) {
+                        history = sendSnapshot();
+                        continue;
+                    }
+                    if (sent - acked >= WINDOW) {
+                        synchronized (this) {
+                            wait(100);
+                        }
+                        continue;
+                    }
+                    List<MutationLog.Record> records = log.after(sent, MAX_BATCH, 100);
+                    if (records == null) {
+                        history = sendSnapshot();
+                    } else if (!records.isEmpty()) {
+                        sendRecords(records);
+                    }
+                }
+            } catch (IOException | InterruptedException e) {
+                //the follower went away, it reconnects and catches up
+            } finally {
+                close();
+            }
+        }
+
+        //a consistent copy of the disk and the log position it corresponds to
+        private long sendSnapshot() throws IOException {
+            Object image;
+            long seq;
+            long history;
+            synchronized (cvfs) {
+                image = cvfs.replicaImage();
+                seq = log.lastSeq();
+                history = log.history();
+            }
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DiskImage.write(image, bytes);
+            out.writeByte(SNAPSHOT);
+            out.writeLong(history);
+            out.writeLong(seq);
+            out.writeInt(bytes.size());
+            bytes.writeTo(out);
+            out.flush();
+            sent = seq;
+            snapshots++;
+            return history;
+        }
+
+        private void sendRecords(List<MutationLog.Record> records) throws IOException {
+            out.writeByte(RECORDS);
+            out.writeInt(records.size());
+            for (MutationLog.Record record : records) {
+                out.writeLong(record.seq);
+                out.writeLong(record.time);
+                out.writeInt(record.lines.size());
+                for (String line : record.lines) {
+                    out.writeUTF(line);
+                }
+            }
+            out.flush();
+            sent = records.get(records.size() - 1).seq;
+        }
+
+        private void readAcks(DataInputStream in) {
+            try {
+                while (true) {
+                    if (in.readByte() != ACK) {
+                        throw new IOException("Unexpected frame from follower.");
+                    }
+                    acked = in.readLong();
+                    lagMillis = System.currentTimeMillis() - in.readLong();
+                    synchronized (this) {
+                        notifyAll();
+                    }
+                }
+            } catch (IOException e) {
+                close();
+            }
+        }
+
+        void close() {
+            followers.remove(this);
+            try {
+                socket.close();
+            } catch (IOException e) {
+                //already closed
+            }
+        }
+    }
+}
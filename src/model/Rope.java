@@ -0,0 +1,307 @@
+package hk.edu.polyu.comp.comp2021.cvfs.model;
+
+// Immutable text kept as a height-balanced tree of chunks, the content of a Document
+// Appending builds the new text into chunks of at most CHUNK characters and joins
+// them on the right: O(log n) nodes are copied, everything else is shared with the
+// old rope, so a copy-on-write copy of a document keeps its content for free. A range
+// read only visits the chunks it overlaps. Content given in one piece (newDoc, images)
+// stays a single chunk however long it is, so ordinary documents cost one extra object.
+// A ContentStore can move the text of a rope to its spill file (Spilled leaves).
+// Ropes are not serialized: Document writes its content as one String.
+abstract class Rope {
+    static final int CHUNK = 1024;
+
+    static Rope of(String text) {
+        return new Leaf(text);
+    }
+
+    abstract int length();
+
+    abstract int height();
+
+    //append the characters [from, to) of this rope, keep: spilled leaves read whole stay cached
+    abstract void appendTo(StringBuilder out, int from, int to, boolean keep);
+
+    //the characters [from, to)
+    String substring(int from, int to) {
+        if (from < 0 || to > length() || from > to) {
+            throw new IndexOutOfBoundsException("Range " + from + ".." + to + " of " + length());
+        }
+        StringBuilder out = new StringBuilder(to - from);
+        appendTo(out, from, to, true);
+        return out.toString();
+    }
+
+    //the whole text, what comes from the spill file is not kept (images read every document once)
+    String uncached() {
+        StringBuilder out = new StringBuilder(length());
+        appendTo(out, 0, length(), false);
+        return out.toString();
+    }
+
+    @Override
+    public String toString() {
+        return substring(0, length());
+    }
+
+    //this text followed by the given one
+    Rope append(String text) {
+        if (text.isEmpty()) {
+            return this;
+        }
+        if (length() == 0) {
+            return build(text, 0, text.length());
+        }
+        //short appends fill up the last chunk instead of adding a new one
+        if (lastLeaf() instanceof Leaf last && last.text.length() + text.length() <= CHUNK) {
+            return withLastLeaf(new Leaf(last.text + text));
+        }
+        return concat(this, build(text, 0, text.length()));
+    }
+
+    abstract Rope lastLeaf();
+
+    //true if no part of the text is in a spill file
+    abstract boolean resident();
+
+    //characters held on the heap, a spilled leaf only counts while its text is cached
+    abstract int heapLength();
+
+    //the same text with every part still on the heap written to the store's spill file
+    abstract Rope spill(ContentStore store);
+
+    abstract Rope withLastLeaf(Leaf leaf);
+
+    //a balanced tree over the chunks of text[from, to)
+    private static Rope build(String text, int from, int to) {
+        int chunks = (to - from + CHUNK - 1) / CHUNK;
+        if (chunks <= 1) {
+            return new Leaf(text.substring(from, to));
+        }
+        int mid = from + chunks / 2 * CHUNK;
+        return new Node(build(text, from, mid), build(text, mid, to));
+    }
+
+    //AVL join: descend the taller side until the heights are close, rebalance on the way up
+    static Rope concat(Rope left, Rope right) {
+        if (left.length() == 0) {
+            return right;
+        }
+        if (right.length() == 0) {
+            return left;
+        }
+        if (left.height() > right.height() + 1) {
+            Node node = (Node) left;
+            return balanced(node.left, concat(node.right, right));
+        }
+        if (right.height() > left.height() + 1) {
+            Node node = (Node) right;
+            return balanced(concat(left, node.left), node.right);
+        }
+        return new Node(left, right);
+    }
+
+    //a node over two subtrees whose heights differ by at most two
+    private static Rope balanced(Rope left, Rope right) {
+        if (left.height() > right.height() + 1) {
+            Node l = (Node) left;
+            if (l.left.height() >= l.right.height()) {
+                return new Node(l.left, new Node(l.right, right));
+            }
+            Node lr = (Node) l.right;
+            return new Node(new Node(l.left, lr.left), new Node(lr.right, right));
+        }
+        if (right.height() > left.height() + 1) {
+            Node r = (Node) right;
+            if (r.right.height() >= r.left.height()) {
+                return new Node(new Node(left, r.left), r.right);
+            }
+            Node rl = (Node) r.left;
+            return new Node(new Node(left, rl.left), new Node(rl.right, r.right));
+        }
+        return new Node(left, right);
+    }
+
+    static final class Leaf extends Rope {
+        private final String text;
+
+        Leaf(String text) {
+            this.text = text;
+        }
+
+        @Override
+        int length() {
+            return text.length();
+        }
+
+        @Override
+        int height() {
+            return 0;
+        }
+
+        @Override
+        void appendTo(StringBuilder out, int from, int to, boolean keep) {
+            out.append(text, from, to);
+        }
+
+        @Override
+        public String toString() {
+            return text;
+        }
+
+        @Override
+        Rope lastLeaf() {
+            return this;
+        }
+
+        @Override
+        Rope withLastLeaf(Leaf leaf) {
+            return leaf;
+        }
+
+        @Override
+        boolean resident() {
+            return true;
+        }
+
+        @Override
+        int heapLength() {
+            return text.length();
+        }
+
+        @Override
+        Rope spill(ContentStore store) {
+            return text.isEmpty() ? this : store.write(text);
+        }
+    }
+
+    // Text in a spill file. Reading all of it keeps a copy until the store evicts the
+    // document again; reading a range goes to the file.
+    static final class Spilled extends Rope {
+        private final ContentStore store;
+        final long offset; //byte offset in the spill file
+        private final int length;
+        private volatile String cached;
+
+        Spilled(ContentStore store, long offset, int length) {
+            this.store = store;
+            this.offset = offset;
+            this.length = length;
+        }
+
+        @Override
+        int length() {
+            return length;
+        }
+
+        @Override
+        int height() {
+            return 0;
+        }
+
+        @Override
+        void appendTo(StringBuilder out, int from, int to, boolean keep) {
+            String text = cached;
+            if (text == null && keep && from == 0 && to == length) {
+                text = store.read(this, 0, length);
+                cached = text;
+            }
+            if (text != null) {
+                out.append(text, from, to);
+            } else {
+                out.append(store.read(this, from, to));
+            }
+        }
+
+        @Override
+        Rope lastLeaf() {
+            return this;
+        }
+
+        @Override
+        Rope withLastLeaf(Leaf leaf) {
+            return leaf;
+        }
+
+        @Override
+        boolean resident() {
+            return false;
+        }
+
+        @Override
+        int heapLength() {
+            return cached == null ? 0 : length;
+        }
+
+        //already written, only the copy on the heap goes
+        @Override
+        Rope spill(ContentStore store) {
+            cached = null;
+            return this;
+        }
+    }
+
+    static final class Node extends Rope {
+        private final Rope left;
+        private final Rope right;
+        private final int length;
+        private final int height;
+
+        Node(Rope left, Rope right) {
+            this.left = left;
+            this.right = right;
+            this.length = left.length() + right.length();
+            this.height = Math.max(left.height(), right.height()) + 1;
+        }
+
+        @Override
+        int length() {
+            return length;
+        }
+
+        @Override
+        int height() {
+            return height;
+        }
+
+        @Override
+        void appendTo(StringBuilder out, int from, int to, boolean keep) {
+            int split = left.length();
+            if (from < split) {
+                left.appendTo(out, from, Math.min(to, split), keep);
+            }
+            if (to > split) {
+                right.appendTo(out, Math.max(from, split) - split, to - split, keep);
+            }
+        }
+
+        @Override
+        Rope lastLeaf() {
+            return right.lastLeaf();
+        }
+
+        @Override
+        Rope withLastLeaf(Leaf leaf) {
+            return new Node(left, right.withLastLeaf(leaf));
+        }
+
+        @Override
+        boolean resident() {
+            return left.resident() && right.resident();
+        }
+
+        @Override
+        int heapLength() {
+            return left.heapLength() + right.heapLength();
+        }
+
+        //a subtree entirely on the heap becomes one piece of the spill file
+        @Override
+        Rope spill(ContentStore store) {
+            if (resident()) {
+                return store.write(toString());
+            }
+            return new Node(left.spill(store), right.spill(store));
+        }
+    }
+}
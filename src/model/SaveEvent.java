@@ -0,0 +1,30 @@
+package hk.edu.polyu.comp.comp2021.cvfs.model;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Enabled;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+// JDK Flight Recorder event, disabled by default like the others (see CommandEvent)
+
+@Name(SaveEvent.NAME)
+@Label("CVFS Save")
+@Category({"CVFS", "Persistence"})
+@Enabled(false)
+@StackTrace(false)
+class SaveEvent extends Event {
+    static final String NAME = "hk.edu.polyu.comp.comp2021.cvfs.Save";
+
+    @Label("Disk")
+    String disk;
+
+    @Label("Image Path")
+    String path;
+
+    @Label("Bytes Written")
+    @DataAmount
+    long bytes;
+}
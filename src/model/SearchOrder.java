@@ -0,0 +1,127 @@
+package hk.edu.polyu.comp.comp2021.cvfs.model;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+// Ordering options of search/rSearch: [orderBy name|size [asc|desc]] [top K]
+// "top K" alone means the K largest. Ties are broken by the path below the working
+// directory, so the output never depends on the order of the directory contents.
+class SearchOrder {
+    private final boolean bySize;
+    private final boolean descending;
+    private final int limit; //-1 when unlimited
+
+    SearchOrder(boolean bySize, boolean descending, int limit) {
+        this.bySize = bySize;
+        this.descending = descending;
+        this.limit = limit;
+    }
+
+    //parse the options following the criterion name, null if there are none
+    static SearchOrder parse(String[] args, int from) {
+        if (from >= args.length) {
+            return null;
+        }
+        boolean bySize = true;
+        boolean descending = true;
+        int limit = -1;
+        int i = from;
+        if (args[i].equals("orderBy")) {
+            if (i + 1 >= args.length || !args[i + 1].matches("name|size")) {
+                throw new IllegalArgumentException("orderBy needs name or size.");
+            }
+            bySize = args[i + 1].equals("size");
+            descending = bySize; //largest first, names alphabetically
+            i += 2;
+            if (i < args.length && args[i].matches("asc|desc")) {
+                descending = args[i].equals("desc");
+                i++;
+            }
+        }
+        if (i < args.length && args[i].equals("top")) {
+            if (i + 1 >= args.length || !args[i + 1].matches("\\d{1,9}") || Integer.parseInt(args[i + 1]) == 0) {
+                throw new IllegalArgumentException("top needs a positive number.");
+            }
+            limit = Integer.parseInt(args[i + 1]);
+            i += 2;
+        }
+        if (i != args.length) {
+            throw new IllegalArgumentException("Command invalid");
+        }
+        return new SearchOrder(bySize, descending, limit);
+    }
+
+    public boolean isBySize() {
+        return bySize;
+    }
+
+    public boolean isDescending() {
+        return descending;
+    }
+
+    public int getLimit() {
+        return limit;
+    }
+
+    // One match, with the path prefix of its directory. The full path is only
+    // built when two matches tie on the key.
+    static class Match {
+        final String prefix;
+        final File file;
+
+        Match(String prefix, File file) {
+            this.prefix = prefix;
+            this.file = file;
+        }
+
+        String path() {
+            return prefix + file.getName();
+        }
+    }
+
+    //best first
+    Comparator<Match> comparator() {
+        Comparator<Match> key = bySize
+                ? Comparator.comparingInt(m -> m.file.getSize())
+                : Comparator.comparing(m -> m.file.getName());
+        if (descending) {
+            key = key.reversed();
+        }
+        return key.thenComparing(Match::path);
+    }
+
+    // Collects the matches in order. With a limit this is a bounded heap holding
+    // the current K best with the worst on top, so memory stays O(K).
+    class Results {
+        private final Comparator<Match> order = comparator();
+        private final PriorityQueue<Match> heap = new PriorityQueue<>(order.reversed());
+
+        void offer(String prefix, File file) {
+            Match match = new Match(prefix, file);
+            if (limit < 0 || heap.size() < limit) {
+                heap.add(match);
+            } else if (order.compare(match, heap.peek()) < 0) {
+                heap.poll();
+                heap.add(match);
+            }
+        }
+
+        // True if no file of the subtree can enter the results any more, from the
+        // size range in the directory summary. Only possible once the heap is full.
+        boolean cannotImprove(Directory dir) {
+            if (!bySize || limit < 0 || heap.size() < limit) {
+                return false;
+            }
+            int worst = heap.peek().file.getSize();
+            return descending ? dir.maxSizeBelow() < worst : dir.minSizeBelow() > worst;
+        }
+
+        List<Match> sorted() {
+            List<Match> result = new ArrayList<>(heap);
+            result.sort(order);
+            return result;
+        }
+    }
+}
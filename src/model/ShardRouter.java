@@ -0,0 +1,351 @@
+package hk.edu.polyu.comp.comp2021.cvfs.model;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+// Runs the commands of one logical disk on several shard processes (ShardServer)
+// Every directory directly under root lives, with its whole subtree, on the shard its
+// name hashes to; so does every document directly under root. Inside such a directory
+// a command goes to that one shard. At the root, list/rList/search/rSearch and
+// deleteWhere/rDeleteWhere run on all shards in parallel and their output is merged:
+// the entries sorted by name (each with its indented subtree) and the totals added up.
+// The working directory is kept here as a path and sent along with every command.
+class ShardRouter {
+    static final Set<String> SCATTERED = Set.of("list", "rList", "search", "rSearch", "deleteWhere", "rDeleteWhere");
+    static final Set<String> ROUTED = Set.of("newDoc", "newDir", "appendDoc", "readDoc", "delete", "rename",
+            "setQuota", "move", "copy");
+    static final Set<String> INSIDE = Set.of("du", "explain"); //only below a top-level directory
+    static final Set<String> BROADCAST = Set.of("newDisk", "newSimpleCri", "newNegation", "newBinaryCri");
+
+    private static final Pattern TOTAL = Pattern.compile("(Total [^:]*: )(\\d+)(.*)");
+    private static final int EMPTY_ROOT = new Directory("root").getSize();
+
+    private final List<Shard> shards = new ArrayList<>();
+    private final ExecutorService pool;
+    private final List<String> path = new ArrayList<>(); //names below root of the working directory
+    private long capacity;
+
+    ShardRouter(List<String> addresses) {
+        try {
+            for (String address : addresses) {
+                int colon = address.lastIndexOf(':');
+                if (colon <= 0) {
+                    throw new IllegalArgumentException("Shards must be given as host:port.");
+                }
+                int port;
+                try {
+                    port = Integer.parseInt(address.substring(colon + 1));
+                } catch (NumberFormatException e) {
+                    throw new IllegalArgumentException("Invalid port for shard " + address + ".");
+                }
+                Shard shard = new Shard(address, address.substring(0, colon), port);
+                shards.add(shard);
+                long shardCapacity = shard.usage();
+                capacity = shards.size() == 1 ? shardCapacity : Math.min(capacity, shardCapacity);
+            }
+        } catch (IOException e) {
+            close();
+            throw new IllegalArgumentException("Cannot connect to shard " + addresses.get(shards.size()) + ": " + e.getMessage());
+        } catch (RuntimeException e) {
+            close();
+            throw e;
+        }
+        pool = Executors.newFixedThreadPool(shards.size(), task -> {
+            Thread thread = new Thread(task, "cvfs-shard-router");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    static boolean accepts(String commandName) {
+        return commandName.equals("changeDir") || commandName.equals("printAllCriteria") || SCATTERED.contains(commandName)
+                || ROUTED.contains(commandName) || INSIDE.contains(commandName) || BROADCAST.contains(commandName);
+    }
+
+    public void close() {
+        for (Shard shard : shards) {
+            shard.close();
+        }
+        if (pool != null) {
+            pool.shutdownNow();
+        }
+    }
+
+    public void execute(String command) {
+        String[] sCommand = command.split(" ");
+        String commandName = sCommand[0];
+        if (commandName.equals("changeDir")) {
+            changeDir(sCommand);
+        } else if (BROADCAST.contains(commandName)) {
+            broadcast(command, commandName.equals("newDisk"));
+        } else if (commandName.equals("printAllCriteria")) {
+            print(run(shards.get(0), command)); //every shard has the same criteria
+        } else if (!path.isEmpty() && (SCATTERED.contains(commandName) || ROUTED.contains(commandName) || INSIDE.contains(commandName))) {
+            checkSameShard(sCommand);
+            print(run(owner(path.get(0)), command));
+        } else if (SCATTERED.contains(commandName)) {
+            print(merge(runAll(command)));
+        } else if (ROUTED.contains(commandName) && sCommand.length > 1 && !sCommand[1].equals(".")) {
+            checkSameShard(sCommand);
+            print(run(owner(sCommand[1]), command));
+        } else {
+            throw new IllegalArgumentException("Command not supported on a sharded disk.");
+        }
+    }
+
+    //the shard a top-level name lives on
+    private Shard owner(String topLevelName) {
+        return shards.get(Math.floorMod(topLevelName.hashCode(), shards.size()));
+    }
+
+    private void changeDir(String[] sCommand) {
+        if (sCommand.length != 2) {
+            throw new IllegalArgumentException("Command invalid");
+        }
+        if (sCommand[1].equals("..")) {
+            if (path.isEmpty()) {
+                System.out.println("Already at the root directory.");
+            } else {
+                path.remove(path.size() - 1);
+                System.out.println("Changed to parent directory: " + (path.isEmpty() ? "root" : path.get(path.size() - 1)));
+            }
+            return;
+        }
+        List<String> names = PathCache.normalize(sCommand[1], path);
+        if (!names.isEmpty()) {
+            //the shard checks that the directory exists
+            print(run(owner(names.get(0)), names, "changeDir $"));
+        }
+        path.clear();
+        path.addAll(names);
+    }
+
+    //move, copy and rename cannot take a file to another shard
+    private void checkSameShard(String[] sCommand) {
+        String source = path.isEmpty() ? sCommand[1] : path.get(0);
+        String target;
+        if (sCommand[0].equals("rename") && sCommand.length == 3) {
+            target = path.isEmpty() ? sCommand[2] : path.get(0);
+        } else if ((sCommand[0].equals("move") && sCommand.length == 3) || (sCommand[0].equals("copy") && sCommand.length == 4)) {
+            List<String> destination = PathCache.normalize(sCommand[2], path);
+            target = !destination.isEmpty() ? destination.get(0) : sCommand[0].equals("copy") ? sCommand[3] : sCommand[1];
+        } else {
+            return;
+        }
+        if (owner(source) != owner(target)) {
+            throw new IllegalArgumentException("Cannot " + sCommand[0] + " " + sCommand[1] + " to another shard.");
+        }
+    }
+
+    //newDisk and the criteria commands are run by every shard
+    private void broadcast(String command, boolean newDisk) {
+        List<String> outputs = runAll(command);
+        if (newDisk) {
+            capacity = Integer.parseInt(command.split(" ")[1]); //the shards accepted it
+            path.clear();
+        }
+        print(outputs.get(0));
+    }
+
+    private String run(Shard shard, String command) {
+        return run(shard, path, command);
+    }
+
+    private String run(Shard shard, List<String> dir, String command) {
+        try {
+            return shard.run(limit(shard), List.of("changeDir " + (dir.isEmpty() ? "$" : PathCache.key(dir)), command));
+        } catch (IOException e) {
+            throw unreachable(shard);
+        }
+    }
+
+    //the same command on every shard in parallel, the outputs in shard order
+    private List<String> runAll(String command) {
+        List<CompletableFuture<String>> futures = new ArrayList<>();
+        for (Shard shard : shards) {
+            long limit = limit(shard);
+            futures.add(CompletableFuture.supplyAsync(() -> {
+                try {
+                    return shard.run(limit, List.of("changeDir $", command));
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }, pool));
+        }
+        List<String> outputs = new ArrayList<>();
+        for (int i = 0; i < futures.size(); i++) {
+            try {
+                outputs.add(futures.get(i).join());
+            } catch (CompletionException e) {
+                throw unreachable(shards.get(i));
+            }
+        }
+        for (String output : outputs) {
+            checkError(output);
+        }
+        return outputs;
+    }
+
+    // How far a shard may grow: its own usage plus what the logical disk has left.
+    // Every shard has an empty root of its own, the logical disk has one.
+    private long limit(Shard shard) {
+        long used = EMPTY_ROOT;
+        for (Shard s : shards) {
+            used += s.used - EMPTY_ROOT;
+        }
+        return shard.used + Math.max(0, capacity - used);
+    }
+
+    private static IllegalArgumentException unreachable(Shard shard) {
+        return new IllegalArgumentException("Shard " + shard.address + " is not reachable.");
+    }
+
+    //the output of a shard, or its error as the error of the command
+    private static void print(String output) {
+        checkError(output);
+        System.out.print(output);
+    }
+
+    private static void checkError(String output) {
+        for (String line : output.split("\n")) {
+            if (line.startsWith("Error: ")) {
+                throw new IllegalArgumentException(line.substring("Error: ".length()).trim());
+            }
+        }
+    }
+
+    // Merge the outputs of a command run from the root of every shard: entries (a line
+    // and the indented lines of its subtree) in name order, then the totals summed.
+    static String merge(List<String> outputs) {
+        List<List<String>> entries = new ArrayList<>();
+        Map<String, long[]> totals = new LinkedHashMap<>();
+        Map<String, String> units = new LinkedHashMap<>();
+        for (String output : outputs) {
+            List<String> entry = null;
+            for (String line : output.replace("\r", "").split("\n")) {
+                Matcher total = TOTAL.matcher(line);
+                if (line.isEmpty()) {
+                    continue;
+                } else if (total.matches()) {
+                    totals.computeIfAbsent(total.group(1), k -> new long[1])[0] += Long.parseLong(total.group(2));
+                    units.put(total.group(1), total.group(3));
+                } else if (line.startsWith("\t") && entry != null) {
+                    entry.add(line);
+                } else {
+                    entry = new ArrayList<>();
+                    entry.add(line);
+                    entries.add(entry);
+                }
+            }
+        }
+        entries.sort(Comparator.comparing(entry -> entryName(entry.get(0))));
+        StringBuilder merged = new StringBuilder();
+        for (List<String> entry : entries) {
+            for (String line : entry) {
+                merged.append(line).append('\n');
+            }
+        }
+        for (Map.Entry<String, long[]> total : totals.entrySet()) {
+            merged.append(total.getKey()).append(total.getValue()[0]).append(units.get(total.getKey())).append('\n');
+        }
+        return merged.toString();
+    }
+
+    //list prints name(type), the other commands name (type)
+    private static String entryName(String line) {
+        int end = line.length();
+        int space = line.indexOf(' ');
+        int paren = line.indexOf('(');
+        if (space >= 0) {
+            end = space;
+        }
+        if (paren >= 0 && paren < end) {
+            end = paren;
+        }
+        return line.substring(0, end);
+    }
+
+    public List<String> status() {
+        List<String> lines = new ArrayList<>();
+        long used = EMPTY_ROOT;
+        for (Shard shard : shards) {
+            used += shard.used - EMPTY_ROOT;
+        }
+        lines.add("Sharded disk on " + shards.size() + " shards, working directory " + PathCache.key(path)
+                + ", used " + used + " of " + capacity + " bytes");
+        for (int i = 0; i < shards.size(); i++) {
+            Shard shard = shards.get(i);
+            lines.add("  shard " + i + " " + shard.address + ": " + shard.used + " bytes, " + shard.requests + " requests");
+        }
+        return lines;
+    }
+
+    // The connection to one shard, used by one request at a time
+    private static class Shard {
+        private final String address;
+        private final Socket socket;
+        private final DataInputStream in;
+        private final DataOutputStream out;
+        private volatile long used;
+        private volatile long requests;
+
+        Shard(String address, String host, int port) throws IOException {
+            this.address = address;
+            this.socket = new Socket(host, port);
+            socket.setTcpNoDelay(true);
+            in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+        }
+
+        //the lines run as one unit on the shard, returns their output
+        synchronized String run(long limit, List<String> lines) throws IOException {
+            out.writeByte(ShardServer.COMMANDS);
+            out.writeLong(limit);
+            out.writeInt(lines.size());
+            for (String line : lines) {
+                out.writeUTF(line);
+            }
+            out.flush();
+            byte[] output = new byte[in.readInt()];
+            in.readFully(output);
+            used = in.readLong();
+            requests++;
+            return new String(output, StandardCharsets.UTF_8);
+        }
+
+        //refresh the usage, returns the size of the shard's disk
+        synchronized long usage() throws IOException {
+            out.writeByte(ShardServer.USAGE);
+            out.flush();
+            used = in.readLong();
+            requests++;
+            return in.readLong();
+        }
+
+        void close() {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                //closing anyway
+            }
+        }
+    }
+}
@@ -0,0 +1,126 @@
+package hk.edu.polyu.comp.comp2021.cvfs.model;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+
+// Serves one shard of a sharded disk: runs the commands a ShardRouter sends on its own CVFS
+// Protocol (DataOutputStream framing), one request at a time per connection:
+//  COMMANDS: space limit (long), line count (int), lines (UTF)
+//                                 -> output (int length, UTF-8 bytes), bytes used (long)
+//  USAGE:                         -> bytes used (long), capacity (long)
+// The limit is how far this shard may grow before the logical disk is full; the
+// router works it out from the usage of all shards, so the capacity checks of the
+// commands themselves (newDoc, newDir, copy) keep the whole disk within its size.
+class ShardServer {
+    static final byte COMMANDS = 'C';
+    static final byte USAGE = 'U';
+
+    private final CVFS cvfs;
+    private final ServerSocket server;
+    private volatile boolean running = true;
+    private VirtualDisk limited; //the disk the router's limits apply to
+    private long capacity; //its size before the first limit, the size of the logical disk
+
+    ShardServer(CVFS cvfs, int port) throws IOException {
+        this.cvfs = cvfs;
+        this.server = new ServerSocket(port, 50, InetAddress.getLoopbackAddress());
+        Thread accept = new Thread(this::accept, "cvfs-shard");
+        accept.setDaemon(true);
+        accept.start();
+    }
+
+    public int getPort() {
+        return server.getLocalPort();
+    }
+
+    public void stop() {
+        running = false;
+        try {
+            server.close();
+        } catch (IOException e) {
+            //closing anyway
+        }
+    }
+
+    private void accept() {
+        while (running) {
+            try {
+                Socket socket = server.accept();
+                socket.setTcpNoDelay(true);
+                Thread worker = new Thread(() -> serve(socket), "cvfs-shard-connection");
+                worker.setDaemon(true);
+                worker.start();
+            } catch (IOException e) {
+                //server socket closed by stop()
+            }
+        }
+    }
+
+    private void serve(Socket socket) {
+        try (socket) {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            while (running) {
+                byte type = in.readByte();
+                if (type == COMMANDS) {
+                    long limit = in.readLong();
+                    String[] lines = new String[in.readInt()];
+                    for (int i = 0; i < lines.length; i++) {
+                        lines[i] = in.readUTF();
+                    }
+                    synchronized (cvfs) {
+                        byte[] output = run(limit, lines).getBytes(StandardCharsets.UTF_8);
+                        out.writeInt(output.length);
+                        out.write(output);
+                        out.writeLong(cvfs.getCurrentDisk().getRootDirectory().getSize());
+                    }
+                } else if (type == USAGE) {
+                    synchronized (cvfs) {
+                        out.writeLong(cvfs.getCurrentDisk().getRootDirectory().getSize());
+                        out.writeLong(capacity());
+                    }
+                } else {
+                    throw new IOException("Unexpected request.");
+                }
+                out.flush();
+            }
+        } catch (EOFException e) {
+            //router disconnected
+        } catch (IOException e) {
+            //connection lost, the router reconnects
+        }
+    }
+
+    //the size the disk in use was created with, newDisk replaces the disk
+    private long capacity() {
+        VirtualDisk disk = cvfs.getCurrentDisk();
+        if (disk != limited) {
+            limited = disk;
+            capacity = disk.getMaxSize();
+        }
+        return capacity;
+    }
+
+    //run the lines as one unit, stopping at the first error
+    private String run(long limit, String[] lines) {
+        capacity();
+        limited.setMaxSize((int) Math.min(Integer.MAX_VALUE, limit));
+        return ThreadOutput.capture(() -> {
+            for (String line : lines) {
+                CommandProcessor processor = new CommandProcessor(cvfs);
+                processor.executeCommand(line);
+                if (processor.flag) {
+                    break;
+                }
+            }
+        });
+    }
+}
@@ -0,0 +1,218 @@
+package hk.edu.polyu.comp.comp2021.cvfs.model;
+
+import java.io.Serializable;
+import java.util.BitSet;
+
+class SimpleCriteria extends Criteria implements Serializable{
+    private static final long serialVersionUID = 4067304688935317380L;
+    private String attrName;
+    private String op;
+    private String val;
+    private transient BitSet candidates; //documents the content index allows, null = all
+
+    public SimpleCriteria(){
+        super();
+    }
+
+    public SimpleCriteria(String criName, String attrName, String op, String val, CriteriaManager critM){
+        super(criName, critM);
+        this.attrName = attrName;
+        this.op = op;
+        this.val = val;
+
+        validate();
+        critM.appendCri(this);
+    }
+
+    //check if command is correct
+    public void validate(){
+        if(attrName.equals("IsDocument")){
+            if(!op.equals("is") || !val.equals("Document")){
+                throw new IllegalArgumentException("Invalid criteria for IsDocument.");
+            }
+            return;
+        }
+
+        switch(this.attrName){
+            case "name":
+                if(!op.equals("contains")||!val.matches("^\".*\"$")){
+                    throw new IllegalArgumentException("Invalid");
+                }
+                break;
+            case "type":
+                if(!op.equals("equals")||!val.matches("^\".*\"$")){
+                    throw new IllegalArgumentException("Invalid");
+                };
+                break;
+            case "content":
+                if(!op.equals("contains")||!val.matches("^\".*\"$")){
+                    throw new IllegalArgumentException("Invalid");
+                }
+                break;
+            case "size":
+                if(!op.matches(">|<|>=|<=|==|!=")||!val.matches("\\d+")){
+                    throw new IllegalArgumentException("Invalid criteria for size.");
+                }
+                break;
+            default:
+                throw new IllegalArgumentException("Invaild attribute name");
+        }
+    }
+
+    //check if
+    //[REQ 10]
+    public boolean evaluate(File file){
+        CommandStats.global().criteriaEvaluated();
+        if(attrName.equals("IsDocument")){
+            return file instanceof Document;
+        }
+        //newSimpleCriteria
+
+        switch(attrName){
+            case "name":
+                return file.getName().contains(val.replace("\"",""));
+            case "content":
+                if(file instanceof Document doc){
+                    if(candidates != null && doc.getId() != 0 && !candidates.get(doc.getId())){
+                        return false;
+                    }
+                    return doc.getContent().contains(val.replace("\"",""));
+                }
+                return false;
+            case "type":
+                if(file instanceof Document doc) {
+                    return doc.getType().equals(val.replace("\"",""));
+                }
+                else if(file instanceof Directory dir){
+                    return dir.getClass().getSimpleName().equals(val.replace("\"",""));
+                }
+            case "size":
+                int fileSize = file.getSize();
+                int criteriaSize = Integer.parseInt(val);
+                switch(op){
+                    case ">":
+                        return fileSize > criteriaSize;
+                    case "<":
+                        return fileSize < criteriaSize;
+                    case ">=":
+                        return fileSize >= criteriaSize;
+                    case "<=":
+                        return fileSize <= criteriaSize;
+                    case "==":
+                        return fileSize == criteriaSize;
+                    case "!=":
+                        return fileSize != criteriaSize;
+                }
+            default:
+                throw new IllegalArgumentException("Invalid attribute name.");
+        }
+    }
+
+    public String print(){
+        return String.format("%s: %s %s %s", attrName, op, val, "");
+    }
+
+    String getAttrName(){
+        return attrName;
+    }
+
+    String getOp(){
+        return op;
+    }
+
+    String getVal(){
+        return val;
+    }
+
+    //size comparisons run over the size column, everything else file by file
+    @Override
+    public long[] evaluate(FileBatch batch, long[] within){
+        if(!attrName.equals("size")){
+            return super.evaluate(batch, within);
+        }
+        CommandStats.global().criteriaEvaluated(batch.size());
+        return FileBatch.and(batch.compareSizes(op, Integer.parseInt(val)), within);
+    }
+
+    @Override
+    public boolean canMatchAny(Directory dir){
+        switch(attrName){
+            case "IsDocument":
+                return dir.hasDocuments();
+            case "name":
+                long wanted = Directory.nameMask(val.replace("\"",""));
+                return (dir.getNameMask() & wanted) == wanted;
+            case "content":
+                return dir.hasDocuments() && (candidates == null || !candidates.isEmpty());
+            case "type":
+                return (dir.getTypeMask() & Document.typeBit(val.replace("\"",""))) != 0;
+            case "size":
+                int n = Integer.parseInt(val);
+                int lo = dir.minSizeBelow();
+                int hi = dir.maxSizeBelow();
+                switch(op){
+                    case ">":
+                        return hi > n;
+                    case "<":
+                        return lo < n;
+                    case ">=":
+                        return hi >= n;
+                    case "<=":
+                        return lo <= n;
+                    case "==":
+                        return lo <= n && n <= hi;
+                    case "!=":
+                        return lo != n || hi != n;
+                }
+                return true;
+            default:
+                return true;
+        }
+    }
+
+    @Override
+    public boolean mustMatchAll(Directory dir){
+        switch(attrName){
+            case "IsDocument":
+                return !dir.hasSubdirectories();
+            case "name":
+                return val.replace("\"","").isEmpty();
+            case "type":
+                int bit = Document.typeBit(val.replace("\"",""));
+                return bit != 0 && dir.getTypeMask() == bit;
+            case "size":
+                int n = Integer.parseInt(val);
+                int lo = dir.minSizeBelow();
+                int hi = dir.maxSizeBelow();
+                switch(op){
+                    case ">":
+                        return lo > n;
+                    case "<":
+                        return hi < n;
+                    case ">=":
+                        return lo >= n;
+                    case "<=":
+                        return hi <= n;
+                    case "==":
+                        return lo == n && hi == n;
+                    case "!=":
+                        return n < lo || n > hi;
+                }
+                return false;
+            default:
+                return false;
+        }
+    }
+
+    @Override
+    public void prepare(VirtualDisk disk){
+        if(attrName.equals("content")){
+            candidates = disk.getContentIndex().candidates(val.replace("\"",""));
+        }
+    }
+
+    @Override
+    public void release(){
+        candidates = null;
+    }
+}
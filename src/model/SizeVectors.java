@@ -0,0 +1,34 @@
+package hk.edu.polyu.comp.comp2021.cvfs.model;
+
+import jdk.incubator.vector.IntVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+// The size column comparison of FileBatch on IntVector lanes
+// Needs --add-modules jdk.incubator.vector; FileBatch only touches this class when the
+// module is in the boot layer and keeps its scalar loop otherwise. A lane count is a
+// power of two no larger than 64, so the compare mask of one vector (toLong, lane j in
+// bit j) always lands inside a single 64-bit word of the match masks.
+final class SizeVectors {
+    private static final VectorSpecies<Integer> SPECIES = IntVector.SPECIES_PREFERRED;
+
+    private SizeVectors() {
+    }
+
+    static int lanes() {
+        return SPECIES.length();
+    }
+
+    //sets the greater/less bits of the whole vectors, returns where the scalar tail starts
+    static int compare(int[] sizes, int value, long[] greater, long[] less) {
+        IntVector v = IntVector.broadcast(SPECIES, value);
+        int bound = SPECIES.loopBound(sizes.length);
+        int i = 0;
+        for (; i < bound; i += SPECIES.length()) {
+            IntVector s = IntVector.fromArray(SPECIES, sizes, i);
+            greater[i >>> 6] |= s.compare(VectorOperators.GT, v).toLong() << i;
+            less[i >>> 6] |= s.compare(VectorOperators.LT, v).toLong() << i;
+        }
+        return i;
+    }
+}
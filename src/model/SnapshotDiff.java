@@ -0,0 +1,94 @@
+package hk.edu.polyu.comp.comp2021.cvfs.model;
+
+import java.util.ArrayList;
+import java.util.List;
+
+// Differences between two versions of a directory tree (snapshots or the live tree)
+// Versions taken with snapshot share every subtree that did not change since, so
+// whenever both sides hold the same object, or the same child list, the subtree
+// is skipped without looking inside. Children are paired by name and id first,
+// then by id alone, which is how renames are found.
+class SnapshotDiff {
+    private final List<String> changes = new ArrayList<>();
+    private int directoriesCompared;
+
+    static SnapshotDiff of(Directory before, Directory after) {
+        SnapshotDiff diff = new SnapshotDiff();
+        diff.compare(before, after, "");
+        return diff;
+    }
+
+    public List<String> getChanges() {
+        return changes;
+    }
+
+    //directories whose children actually had to be paired, for testing the sharing
+    public int getDirectoriesCompared() {
+        return directoriesCompared;
+    }
+
+    private void compare(Directory before, Directory after, String prefix) {
+        if (before == after || before.getContents() == after.getContents()) {
+            return;
+        }
+        directoriesCompared++;
+        List<File> removed = new ArrayList<>(before.getContents());
+        List<File> added = new ArrayList<>(after.getContents());
+
+        //unchanged names first, then what is left with the same id was renamed
+        for (File newer : after.getContents()) {
+            File older = take(removed, newer, true);
+            if (older != null) {
+                added.remove(newer);
+                changed(older, newer, prefix, prefix + newer.getName());
+            }
+        }
+        for (File newer : new ArrayList<>(added)) {
+            File older = newer.getId() == 0 ? null : take(removed, newer, false);
+            if (older != null) {
+                added.remove(newer);
+                changes.add("Renamed: " + prefix + older.getName() + " -> " + prefix + newer.getName());
+                changed(older, newer, prefix, prefix + newer.getName());
+            }
+        }
+
+        for (File older : removed) {
+            changes.add("Removed: " + prefix + older.getName() + describe(older));
+        }
+        for (File newer : added) {
+            changes.add("Added: " + prefix + newer.getName() + describe(newer));
+        }
+    }
+
+    //the same file in both versions, possibly with new content
+    private void changed(File older, File newer, String prefix, String path) {
+        if (older == newer) {
+            return;
+        }
+        if (older instanceof Directory a && newer instanceof Directory b) {
+            compare(a, b, path + "/");
+        } else if (older instanceof Document && newer instanceof Document && older.getSize() != newer.getSize()) {
+            changes.add("Resized: " + path + " " + older.getSize() + " -> " + newer.getSize() + " bytes");
+        } else if (older instanceof Directory != newer instanceof Directory) {
+            changes.add("Removed: " + prefix + older.getName() + describe(older));
+            changes.add("Added: " + path + describe(newer));
+        }
+    }
+
+    //remove and return the counterpart of a file, matched by id (and name)
+    private static File take(List<File> candidates, File file, boolean sameName) {
+        for (int i = 0; i < candidates.size(); i++) {
+            File c = candidates.get(i);
+            boolean sameId = c.getId() == file.getId();
+            if (sameName ? sameId && c.getName().equals(file.getName()) : sameId) {
+                return candidates.remove(i);
+            }
+        }
+        return null;
+    }
+
+    private static String describe(File file) {
+        String type = file instanceof Document doc ? doc.getType() : "Directory";
+        return " (" + type + ") " + file.getSize() + " bytes";
+    }
+}
@@ -0,0 +1,221 @@
+package hk.edu.polyu.comp.comp2021.cvfs.model;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.TreeSet;
+
+// A criterion registered on a subtree by "watch", kept up to date incrementally
+// The matching files are remembered by their path below the watched directory
+// (ids are shared by copies, paths are not). The disk reports every attach,
+// detach and rename, and only the changed file, its subtree and its ancestors
+// (whose sizes changed) are evaluated again. Changes are collected as a batch of
+// added and removed paths, delivered to the listener after each command or read
+// with the changes command.
+class StandingQuery {
+    private final Criteria criteria;
+    private Directory scope;
+    private final TreeSet<String> matched = new TreeSet<>();
+    private final Map<String, Boolean> pending = new LinkedHashMap<>(); //path -> added (true) / removed (false)
+    private Listener listener;
+
+    interface Listener {
+        void changed(List<String> added, List<String> removed);
+    }
+
+    StandingQuery(Criteria criteria, Directory scope) {
+        this.criteria = criteria;
+        this.scope = scope;
+        seed(scope, "");
+    }
+
+    private void seed(Directory dir, String prefix) {
+        for (File entity : dir.getContents()) {
+            String path = prefix + entity.getName();
+            if (criteria.evaluate(entity)) {
+                matched.add(path);
+            }
+            if (entity instanceof Directory sub) {
+                seed(sub, path + "/");
+            }
+        }
+    }
+
+    public Criteria getCriteria() {
+        return criteria;
+    }
+
+    public Directory getScope() {
+        return scope;
+    }
+
+    public int matchCount() {
+        return matched.size();
+    }
+
+    public void subscribe(Listener listener) {
+        this.listener = listener;
+    }
+
+    //a file (or a whole subtree) was attached somewhere on the disk
+    void attached(File file) {
+        String path = pathOf(file);
+        if (path == null) {
+            return;
+        }
+        evaluateSubtree(file, path);
+        ancestorsChanged(file.getParent());
+    }
+
+    //a file (or a whole subtree) was detached from a directory
+    void detached(Directory from, File file) {
+        if (file instanceof Directory dir && dir.contains(scope)) {
+            //the watched directory itself is gone
+            for (String path : new ArrayList<>(matched)) {
+                removed(path);
+            }
+            return;
+        }
+        String prefix = from == scope ? "" : pathOf(from);
+        if (prefix == null) {
+            return;
+        }
+        if (!prefix.isEmpty()) {
+            prefix += "/";
+        }
+        for (String path : new ArrayList<>(subtree(prefix + file.getName()))) {
+            removed(path);
+        }
+        ancestorsChanged(from);
+    }
+
+    //a file was renamed in place, its subtree keeps its matches under the new path
+    void renamed(File file, String oldName) {
+        String path = pathOf(file);
+        if (path == null) {
+            return;
+        }
+        String oldPath = path.substring(0, path.length() - file.getName().length()) + oldName;
+        for (String old : new ArrayList<>(subtree(oldPath))) {
+            removed(old);
+            if (!old.equals(oldPath)) {
+                added(path + old.substring(oldPath.length()));
+            }
+        }
+        evaluate(file, path);
+    }
+
+    //copy-on-write replaced the watched directory by its private copy
+    void replaced(File old, File copy) {
+        if (old == scope) {
+            scope = (Directory) copy;
+        }
+    }
+
+    // The whole tree was replaced (rollback). Evaluate the new scope from scratch
+    // and report the difference; a null scope no longer exists and matches nothing.
+    void rebase(Directory newScope) {
+        TreeSet<String> before = new TreeSet<>(matched);
+        matched.clear();
+        scope = newScope;
+        if (newScope != null) {
+            seed(newScope, "");
+        }
+        TreeSet<String> after = new TreeSet<>(matched);
+        for (String path : before) {
+            if (!after.contains(path)) {
+                removed(path);
+            }
+        }
+        for (String path : after) {
+            if (!before.contains(path)) {
+                added(path);
+            }
+        }
+    }
+
+    //hand the batch of the last command to the listener, if there is one
+    void flush() {
+        if (listener != null && !pending.isEmpty()) {
+            List<String> added = new ArrayList<>();
+            List<String> removed = new ArrayList<>();
+            drain(added, removed);
+            listener.changed(added, removed);
+        }
+    }
+
+    //take the collected changes, clearing them
+    void drain(List<String> added, List<String> removed) {
+        for (Map.Entry<String, Boolean> e : pending.entrySet()) {
+            (e.getValue() ? added : removed).add(e.getKey());
+        }
+        pending.clear();
+    }
+
+    private void evaluateSubtree(File file, String path) {
+        evaluate(file, path);
+        if (file instanceof Directory dir) {
+            for (File entity : dir.getContents()) {
+                evaluateSubtree(entity, path + "/" + entity.getName());
+            }
+        }
+    }
+
+    //the sizes of the ancestors below the watched directory changed
+    private void ancestorsChanged(Directory dir) {
+        for (Directory d = dir; d != null && d != scope; d = d.getParent()) {
+            evaluate(d, pathOf(d));
+        }
+    }
+
+    private void evaluate(File file, String path) {
+        boolean now = criteria.evaluate(file);
+        if (now && !matched.contains(path)) {
+            matched.add(path);
+            added(path);
+        } else if (!now && matched.contains(path)) {
+            removed(path);
+        }
+    }
+
+    //a path and everything below it (names are alphanumeric, so '/' + 1 == '0' ends the range)
+    private NavigableSet<String> subtree(String path) {
+        NavigableSet<String> below = new TreeSet<>(matched.subSet(path + "/", true, path + "0", false));
+        if (matched.contains(path)) {
+            below.add(path);
+        }
+        return below;
+    }
+
+    private void added(String path) {
+        matched.add(path);
+        if (pending.get(path) == Boolean.FALSE) {
+            pending.remove(path);
+        } else {
+            pending.put(path, true);
+        }
+    }
+
+    private void removed(String path) {
+        matched.remove(path);
+        if (pending.get(path) == Boolean.TRUE) {
+            pending.remove(path);
+        } else {
+            pending.put(path, false);
+        }
+    }
+
+    //path below the watched directory, null if the file is not inside it
+    private String pathOf(File file) {
+        StringBuilder path = new StringBuilder(file.getName());
+        for (Directory dir = file.getParent(); dir != null; dir = dir.getParent()) {
+            if (dir == scope) {
+                return path.toString();
+            }
+            path.insert(0, dir.getName() + "/");
+        }
+        return null;
+    }
+}
@@ -0,0 +1,67 @@
+package hk.edu.polyu.comp.comp2021.cvfs.model;
+
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+
+// Captures what one thread prints to System.out while commands run for a remote caller
+// Commands print their results directly, so a shard server runs them with its thread's
+// output redirected into a buffer; other threads keep printing to the console.
+final class ThreadOutput {
+    private static final ThreadLocal<ByteArrayOutputStream> CAPTURE = new ThreadLocal<>();
+
+    private ThreadOutput() {
+    }
+
+    //run and return everything the current thread printed meanwhile
+    static String capture(Runnable task) {
+        install();
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        CAPTURE.set(buffer);
+        try {
+            task.run();
+        } finally {
+            System.out.flush();
+            CAPTURE.remove();
+        }
+        return buffer.toString();
+    }
+
+    //System.out may have been replaced since the last capture, wrap the current one
+    private static synchronized void install() {
+        if (!(System.out instanceof Dispatch)) {
+            System.setOut(new Dispatch(System.out));
+        }
+    }
+
+    private static class Dispatch extends PrintStream {
+        Dispatch(PrintStream console) {
+            super(new OutputStream() {
+                @Override
+                public void write(int b) {
+                    ByteArrayOutputStream buffer = CAPTURE.get();
+                    if (buffer != null) {
+                        buffer.write(b);
+                    } else {
+                        console.write(b);
+                    }
+                }
+
+                @Override
+                public void write(byte[] b, int off, int len) {
+                    ByteArrayOutputStream buffer = CAPTURE.get();
+                    if (buffer != null) {
+                        buffer.write(b, off, len);
+                    } else {
+                        console.write(b, off, len);
+                    }
+                }
+
+                @Override
+                public void flush() {
+                    console.flush();
+                }
+            }, true);
+        }
+    }
+}
@@ -0,0 +1,250 @@
+package hk.edu.polyu.comp.comp2021.cvfs.model;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+// Batch of mutations started by "begin" and applied by "commit"
+// Operations are only staged while the batch is open. On commit they are validated
+// together against a name overlay of the touched directories, the disk capacity is
+// checked once with the net size change, quotas once per touched ancestor, and then
+// everything is applied. If applying still fails, the applied part is undone.
+class Transaction {
+    private final VirtualDisk disk;
+    private final List<Op> ops = new ArrayList<>();
+    private final List<String> commands = new ArrayList<>();
+    private final List<String> directories = new ArrayList<>(); //where each command was staged
+
+    public Transaction(VirtualDisk disk) {
+        this.disk = disk;
+    }
+
+    public VirtualDisk getDisk() {
+        return disk;
+    }
+
+    public int size() {
+        return ops.size();
+    }
+
+    //the staged command lines, in order, so the batch can be recorded as one unit
+    public List<String> getCommands() {
+        return commands;
+    }
+
+    public void stageNewDoc(Directory dir, String name, String type, String content) {
+        stage(new AddOp(dir, new Document(name, type, content)), dir, "newDoc " + name + " " + type + " " + content);
+    }
+
+    public void stageNewDir(Directory dir, String name) {
+        stage(new AddOp(dir, new Directory(name)), dir, "newDir " + name);
+    }
+
+    public void stageDelete(Directory dir, String name) {
+        stage(new DeleteOp(dir, name), dir, "delete " + name);
+    }
+
+    public void stageRename(Directory dir, String oldName, String newName) {
+        if (!File.isValidName(newName)) {
+            throw new IllegalArgumentException("Name can only contain alphanumeric characters");
+        }
+        stage(new RenameOp(dir, oldName, newName), dir, "rename " + oldName + " " + newName);
+    }
+
+    private void stage(Op op, Directory dir, String command) {
+        ops.add(op);
+        commands.add(command);
+        directories.add(disk.pathString(dir));
+    }
+
+    //command lines that replay the batch elsewhere: begin, each command in its directory, commit
+    public List<String> record() {
+        List<String> lines = new ArrayList<>();
+        lines.add("begin");
+        for (int i = 0; i < commands.size(); i++) {
+            lines.add("changeDir " + directories.get(i));
+            lines.add(commands.get(i));
+        }
+        lines.add("commit");
+        return lines;
+    }
+
+    //validate and apply the whole batch, nothing is changed if validation fails
+    public void commit() {
+        Overlay overlay = new Overlay();
+        for (Op op : ops) {
+            op.validate(overlay);
+        }
+
+        if (overlay.netBytes > 0 && !disk.hasSpaceFor(overlay.netBytes)) {
+            throw new IllegalArgumentException("Batch rejected: not enough space on the disk.");
+        }
+        for (Map.Entry<Directory, int[]> e : overlay.ancestorDeltas().entrySet()) {
+            int[] delta = e.getValue();
+            if (!e.getKey().withinQuota(delta[0], delta[1])) {
+                throw new IllegalArgumentException("Batch rejected: quota of directory " + e.getKey().getName() + " exceeded.");
+            }
+        }
+
+        Deque<Op> applied = new ArrayDeque<>();
+        try {
+            for (Op op : ops) {
+                op.dir = disk.writable(op.dir);
+                op.apply(disk);
+                applied.push(op);
+            }
+        } catch (RuntimeException e) {
+            while (!applied.isEmpty()) {
+                applied.pop().undo(disk);
+            }
+            throw e;
+        }
+    }
+
+    // Names of the touched directories as they will be after the staged operations,
+    // plus the size change each operation brings to its directory.
+    private static class Overlay {
+        private final Map<Directory, Map<String, File>> names = new IdentityHashMap<>();
+        private final Map<Directory, int[]> deltas = new IdentityHashMap<>();
+        private int netBytes;
+
+        Map<String, File> of(Directory dir) {
+            return names.computeIfAbsent(dir, d -> {
+                Map<String, File> view = new HashMap<>();
+                for (File entity : d.getContents()) {
+                    view.put(entity.getName(), entity);
+                }
+                return view;
+            });
+        }
+
+        void change(Directory dir, int bytes, int entries) {
+            int[] delta = deltas.computeIfAbsent(dir, d -> new int[2]);
+            delta[0] += bytes;
+            delta[1] += entries;
+            netBytes += bytes;
+        }
+
+        //sum the changes of every directory into each of its ancestors
+        Map<Directory, int[]> ancestorDeltas() {
+            Map<Directory, int[]> total = new IdentityHashMap<>();
+            for (Map.Entry<Directory, int[]> e : deltas.entrySet()) {
+                for (Directory dir = e.getKey(); dir != null; dir = dir.getParent()) {
+                    int[] sum = total.computeIfAbsent(dir, d -> new int[2]);
+                    sum[0] += e.getValue()[0];
+                    sum[1] += e.getValue()[1];
+                }
+            }
+            return total;
+        }
+    }
+
+    private abstract static class Op {
+        protected Directory dir;
+
+        Op(Directory dir) {
+            this.dir = dir;
+        }
+
+        abstract void validate(Overlay overlay);
+
+        abstract void apply(VirtualDisk disk);
+
+        abstract void undo(VirtualDisk disk);
+    }
+
+    private static class AddOp extends Op {
+        private final File entity;
+
+        AddOp(Directory dir, File entity) {
+            super(dir);
+            this.entity = entity;
+        }
+
+        void validate(Overlay overlay) {
+            Map<String, File> view = overlay.of(dir);
+            if (view.containsKey(entity.getName())) {
+                throw new IllegalArgumentException("Batch rejected: the filename " + entity.getName() + " has already existed");
+            }
+            view.put(entity.getName(), entity);
+            overlay.change(dir, entity.getSize(), 1);
+        }
+
+        void apply(VirtualDisk disk) {
+            dir.addEntity(entity);
+            disk.fileAdded(entity);
+        }
+
+        void undo(VirtualDisk disk) {
+            dir.removeEntity(entity.getName());
+            disk.fileRemoved(dir, entity);
+        }
+    }
+
+    private static class DeleteOp extends Op {
+        private final String name;
+        private File removed;
+
+        DeleteOp(Directory dir, String name) {
+            super(dir);
+            this.name = name;
+        }
+
+        void validate(Overlay overlay) {
+            File entity = overlay.of(dir).remove(name);
+            if (entity == null) {
+                throw new IllegalArgumentException("Batch rejected: " + name + " not found in the directory.");
+            }
+            int entries = entity instanceof Directory sub ? 1 + sub.getEntryCount() : 1;
+            overlay.change(dir, -entity.getSize(), -entries);
+        }
+
+        void apply(VirtualDisk disk) {
+            removed = dir.findFile(name);
+            dir.removeEntity(name);
+            disk.fileRemoved(dir, removed);
+        }
+
+        void undo(VirtualDisk disk) {
+            dir.addEntity(removed);
+            disk.fileAdded(removed);
+        }
+    }
+
+    private static class RenameOp extends Op {
+        private final String oldName;
+        private final String newName;
+
+        RenameOp(Directory dir, String oldName, String newName) {
+            super(dir);
+            this.oldName = oldName;
+            this.newName = newName;
+        }
+
+        void validate(Overlay overlay) {
+            Map<String, File> view = overlay.of(dir);
+            if (!view.containsKey(oldName)) {
+                throw new IllegalArgumentException("Batch rejected: " + oldName + " not found in the directory.");
+            }
+            if (view.containsKey(newName)) {
+                throw new IllegalArgumentException("Batch rejected: the filename " + newName + " has already existed");
+            }
+            view.put(newName, view.remove(oldName));
+        }
+
+        void apply(VirtualDisk disk) {
+            File file = disk.own(dir, dir.findFile(oldName));
+            dir.renameEntity(oldName, newName);
+            disk.fileRenamed(file, oldName);
+        }
+
+        void undo(VirtualDisk disk) {
+            dir.renameEntity(newName, oldName);
+            disk.fileRenamed(dir.findFile(oldName), newName);
+        }
+    }
+}
@@ -0,0 +1,628 @@
+package hk.edu.polyu.comp.comp2021.cvfs.model;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+// VirtualDisk class
+class VirtualDisk implements Serializable {
+    private static final long serialVersionUID = -6787199676542097336L;
+    private String name;
+    private int maxSize;
+    private Directory rootDirectory;
+    private CriteriaManager critM;
+    private int nextId = 1;
+    private int epoch;
+    private transient ContentIndex contentIndex; //built on the first content search
+    private transient ContentStore contentStore; //created when the first file is added
+    private transient Map<String, StandingQuery> watches;
+    private Map<String, Directory> snapshots; //null in images saved before snapshots
+    private transient PathCache pathCache;
+    private transient DiskStats stats; //for the query planner, dropped when files are added or removed
+    private transient int pathGeneration; //moves on when a directory is renamed, removed, moved or replaced
+    private static final int DOCUMENT_BYTES = 112; //Document, its rope leaf and the name and type Strings
+    private static final int DIRECTORY_BYTES = 192; //Directory, its name, contents list and summaries
+
+    public VirtualDisk(int maxSize) {
+        this.name = "default";
+        this.maxSize = maxSize;
+        this.rootDirectory = new Directory("root");
+        this.critM = new CriteriaManager("default");
+    }
+
+    private VirtualDisk(VirtualDisk other) {
+        this.name = other.name;
+        this.maxSize = other.maxSize;
+        this.rootDirectory = other.rootDirectory.snapshot();
+        this.critM = other.critM.copy();
+        this.nextId = other.nextId;
+        this.epoch = other.epoch;
+        this.snapshots = other.snapshots == null ? null : new LinkedHashMap<>(other.snapshots);
+    }
+
+    //O(1) copy to be written by a background save, the live tree copies what it changes from now on
+    public VirtualDisk imageCopy(){
+        VirtualDisk copy = new VirtualDisk(this);
+        shareAll();
+        return copy;
+    }
+
+    //imageCopy that also keeps the content index and statistics built so far, for the image sections
+    public VirtualDisk imageCopyWithIndexes(){
+        VirtualDisk copy = imageCopy();
+        copy.contentIndex = contentIndex == null ? null : contentIndex.snapshot();
+        copy.stats = stats == null ? null : stats.copy();
+        return copy;
+    }
+
+    //a loaded image brings the structures it had when saved, null ones are built when first needed
+    void attach(ContentIndex contentIndex, DiskStats stats){
+        this.contentIndex = contentIndex;
+        //statistics that do not add up to the tree are from another one
+        this.stats = stats != null && stats.entries() == rootDirectory.getEntryCount() ? stats : null;
+    }
+
+    //the directory of this disk at the same place as dir on another disk (or the root)
+    public Directory sameDirectory(VirtualDisk other, Directory dir){
+        Directory found = findDirectory(other.pathFromRoot(dir));
+        return found == null ? rootDirectory : found;
+    }
+
+    public String getName(){
+        return name;
+    }
+
+    public void setName(String name){
+        this.name = name;
+    }
+
+    public Directory getRootDirectory(){
+        return rootDirectory;
+    }
+
+    public int getMaxSize(){
+        return maxSize;
+    }
+
+    //a shard of a sharded disk may only grow as far as the whole disk has space left
+    void setMaxSize(int maxSize){
+        this.maxSize = maxSize;
+    }
+
+
+    public CriteriaManager getCriteriaManager(){
+        return critM;
+    }
+
+    // Copy-on-write. Objects of the live tree whose epoch matches the disk epoch
+    // belong to the live tree alone and can be changed in place. copy and
+    // snapshot share whole subtrees and then move the epoch on, so every older
+    // object is treated as shared and is copied (one level at a time) before a
+    // change goes through it.
+
+    //return the live, privately owned version of a directory of the tree
+    public Directory writable(Directory dir){
+        if(dir.epoch == epoch){
+            return dir;
+        }
+        if(dir == rootDirectory){
+            //the root object itself is never shared, only its child list
+            dir.unshareContents();
+            dir.epoch = epoch;
+            return dir;
+        }
+        if(dir.parent == null){
+            throw new IllegalStateException(dir.getName() + " is not part of the disk.");
+        }
+        return (Directory) own(writable(dir.parent), dir);
+    }
+
+    //return the privately owned version of a child of an owned directory
+    public File own(Directory parent, File child){
+        if(child.epoch == epoch){
+            return child;
+        }
+        File copy = child.copyForWrite();
+        copy.epoch = epoch;
+        parent.replaceEntity(child, copy);
+        if(contentStore != null && child instanceof Document doc){
+            contentStore.replaced(doc, (Document) copy);
+        }
+        if(child instanceof Directory){
+            pathGeneration++;
+        }
+        if(watches != null){
+            for(StandingQuery query : watches.values()){
+                query.replaced(child, copy);
+            }
+        }
+        return copy;
+    }
+
+    //everything reachable so far becomes shared, called after a subtree was shared
+    public void shareAll(){
+        epoch++;
+    }
+
+    //snapshot command: O(1), the live tree copies what it changes from now on
+    public void snapshot(String name){
+        if(!File.isValidName(name)){
+            throw new IllegalArgumentException("Snapshot name can only contain alphanumeric characters");
+        }
+        if(snapshots == null){
+            snapshots = new LinkedHashMap<>();
+        }
+        if(snapshots.containsKey(name)){
+            throw new IllegalArgumentException("Snapshot " + name + " already exists.");
+        }
+        snapshots.put(name, rootDirectory.snapshot());
+        shareAll();
+    }
+
+    //a snapshot by name, "." is the live tree
+    public Directory getSnapshot(String name){
+        if(name.equals(".")){
+            return rootDirectory;
+        }
+        Directory snapshot = snapshots == null ? null : snapshots.get(name);
+        if(snapshot == null){
+            throw new IllegalArgumentException("Snapshot " + name + " not found.");
+        }
+        return snapshot;
+    }
+
+    //rollback command: the live tree becomes the snapshot again, the snapshot is kept
+    public void rollback(String name){
+        Directory snapshot = getSnapshot(name);
+        Map<StandingQuery, List<String>> scopes = new IdentityHashMap<>();
+        if(watches != null){
+            for(StandingQuery query : watches.values()){
+                scopes.put(query, pathFromRoot(query.getScope()));
+            }
+        }
+        if(contentStore != null){
+            forgetContent(rootDirectory);
+        }
+        rootDirectory.restore(snapshot);
+        if(contentStore != null){
+            tierDocuments(rootDirectory);
+        }
+        shareAll();
+        contentIndex = null;
+        stats = null;
+        pathGeneration++;
+        if(watches != null){
+            for(StandingQuery query : watches.values()){
+                query.rebase(findDirectory(scopes.get(query)));
+            }
+        }
+    }
+
+    //names from the root down to a directory, null if it is not in the tree
+    List<String> pathFromRoot(Directory dir){
+        List<String> names = new ArrayList<>();
+        for(Directory d = dir; d != rootDirectory; d = d.getParent()){
+            if(d == null){
+                return null;
+            }
+            names.add(0, d.getName());
+        }
+        return names;
+    }
+
+    //a directory of the tree in the $/root/a/b form changeDir takes
+    public String pathString(Directory dir){
+        List<String> names = pathFromRoot(dir);
+        if(names == null){
+            throw new IllegalStateException(dir.getName() + " is not part of the disk.");
+        }
+        String root = "$/" + rootDirectory.getName();
+        return names.isEmpty() ? root : root + "/" + String.join("/", names);
+    }
+
+    Directory findDirectory(List<String> names){
+        if(names == null){
+            return null;
+        }
+        Directory dir = rootDirectory;
+        for(String name : names){
+            if(!(dir.findFile(name) instanceof Directory sub)){
+                return null;
+            }
+            dir = sub;
+        }
+        return dir;
+    }
+
+    //a cached changeDir resolution, null if there is none or it may be stale
+    public Directory cachedPath(String path){
+        return pathCache == null ? null : pathCache.get(path, pathGeneration);
+    }
+
+    public void cachePath(String path, Directory dir){
+        if(pathCache == null){
+            pathCache = new PathCache();
+        }
+        pathCache.put(path, dir, pathGeneration);
+    }
+
+    public PathCache getPathCache(){
+        if(pathCache == null){
+            pathCache = new PathCache();
+        }
+        return pathCache;
+    }
+
+    //called after a file (or a whole subtree) is attached to the tree
+    public void fileAdded(File file){
+        statsAdded(file);
+        assignIds(file);
+        if(contentIndex != null){
+            indexDocuments(file);
+        }
+        trackContent(file);
+        notifyAttached(file);
+    }
+
+    // Called after a copy of an existing subtree is attached, the files keep their ids.
+    // A directory copy shares its documents, which keep their content tier entries; only
+    // a copied document is a new object to track.
+    public void fileCopied(File file){
+        statsCopied(file);
+        assignIds(file);
+        file.epoch = epoch;
+        if(file instanceof Document doc && contentStore != null){
+            contentStore.track(doc);
+        }
+        notifyAttached(file);
+    }
+
+    //called after a file (or a whole subtree) is detached from the directory from
+    public void fileRemoved(Directory from, File file){
+        filesRemoved(from, List.of(file));
+    }
+
+    //called after several files were detached from the same directory at once
+    public void filesRemoved(Directory from, List<File> files){
+        int documents = 0;
+        int bytes = 0;
+        for(File file : files){
+            if(stats != null){
+                stats.removed(file);
+                bytes += file.getSize();
+            }
+            if(file instanceof Directory){
+                pathGeneration++;
+            }
+            documents += countDocuments(file);
+            if(contentStore != null){
+                forgetContent(file);
+            }
+        }
+        if(stats != null){
+            statsResized(from, -bytes);
+        }
+        if(contentIndex != null){
+            contentIndex.removed(documents);
+            if(contentIndex.needsCompaction()){
+                contentIndex = null;
+            }
+        }
+        for(File file : files){
+            notifyDetached(from, file);
+        }
+    }
+
+    //called after text was appended to a document of dir, growing it by bytes; indexed is the
+    //new text with the characters before it that form grams across the old end
+    public void documentAppended(Directory dir, Document doc, int bytes, String indexed){
+        if(stats != null){
+            stats.resized(doc.getSize() - bytes, doc.getSize());
+            statsResized(dir, bytes);
+        }
+        if(contentIndex != null){
+            contentIndex.addText(doc.getId(), indexed);
+        }
+        getContentStore().track(doc);
+        //the document may start or stop matching watched criteria
+        notifyDetached(dir, doc);
+        notifyAttached(doc);
+    }
+
+    //called after a file was moved from one directory to another, it keeps its id and content
+    public void fileMoved(Directory from, File file){
+        if(file instanceof Directory){
+            pathGeneration++;
+        }
+        if(stats != null){
+            statsMoved(from, file.getParent(), file.getSize());
+        }
+        notifyDetached(from, file);
+        notifyAttached(file);
+    }
+
+    //the statistics take in a new file and the ancestors it made bigger
+    private void statsAdded(File file){
+        if(stats == null){
+            return;
+        }
+        if(file == rootDirectory){
+            stats = null; //a whole new tree, collected again when needed
+            return;
+        }
+        stats.added(file);
+        statsResized(file.getParent(), file.getSize());
+    }
+
+    //a copy is counted from its aggregates, O(depth) like the other changes
+    private void statsCopied(File copy){
+        if(stats == null){
+            return;
+        }
+        if(copy instanceof Directory dir){
+            stats.copied(dir);
+        } else {
+            stats.added(copy);
+        }
+        statsResized(copy.getParent(), copy.getSize());
+    }
+
+    //dir and its ancestors below the root changed size by delta: O(depth)
+    private void statsResized(Directory dir, int delta){
+        for(Directory d = dir; d != null && d != rootDirectory; d = d.parent){
+            stats.resized(d.getSize() - delta, d.getSize());
+        }
+    }
+
+    //bytes left from and its ancestors for to and its ancestors, the common ones kept their size
+    private void statsMoved(Directory from, Directory to, int bytes){
+        Set<Directory> above = Collections.newSetFromMap(new IdentityHashMap<>());
+        for(Directory d = to; d != null; d = d.parent){
+            above.add(d);
+        }
+        Directory common = from;
+        for(; !above.contains(common); common = common.parent){
+            stats.resized(common.getSize() + bytes, common.getSize());
+        }
+        for(Directory d = to; d != common; d = d.parent){
+            stats.resized(d.getSize() - bytes, d.getSize());
+        }
+    }
+
+    //called after a file was renamed in place
+    public void fileRenamed(File file, String oldName){
+        if(file instanceof Directory){
+            pathGeneration++;
+        }
+        if(watches != null){
+            for(StandingQuery query : watches.values()){
+                query.renamed(file, oldName);
+            }
+        }
+    }
+
+    //watch command: keep a criterion evaluated on a subtree as it changes
+    public StandingQuery watch(Criteria criteria, Directory scope){
+        if(watches == null){
+            watches = new LinkedHashMap<>();
+        }
+        if(watches.containsKey(criteria.getCriName())){
+            throw new IllegalArgumentException("Criteria " + criteria.getCriName() + " is already watched.");
+        }
+        StandingQuery query = new StandingQuery(criteria, scope);
+        watches.put(criteria.getCriName(), query);
+        return query;
+    }
+
+    public void unwatch(String criName){
+        if(watches == null || watches.remove(criName) == null){
+            throw new IllegalArgumentException("Criteria " + criName + " is not watched.");
+        }
+    }
+
+    public StandingQuery getWatch(String criName){
+        StandingQuery query = watches == null ? null : watches.get(criName);
+        if(query == null){
+            throw new IllegalArgumentException("Criteria " + criName + " is not watched.");
+        }
+        return query;
+    }
+
+    //standing queries live only on the heap, so a disk with any must not be evicted
+    public boolean hasWatches(){
+        return watches != null && !watches.isEmpty();
+    }
+
+    // Estimated heap bytes of what this disk keeps resident: the File objects of the
+    // live tree and its snapshots (shared subtrees counted once), content still on the
+    // heap at two bytes a char, and the content index if it was built.
+    public long heapFootprint(){
+        Set<File> seen = Collections.newSetFromMap(new IdentityHashMap<>());
+        long bytes = heapFootprint(rootDirectory, seen);
+        if(snapshots != null){
+            for(Directory snapshot : snapshots.values()){
+                bytes += heapFootprint(snapshot, seen);
+            }
+        }
+        if(contentIndex != null){
+            bytes += contentIndex.footprint();
+        }
+        return bytes;
+    }
+
+    private static long heapFootprint(File file, Set<File> seen){
+        if(!seen.add(file)){
+            return 0;
+        }
+        if(file instanceof Document doc){
+            return DOCUMENT_BYTES + 2L * doc.heapLength();
+        }
+        Directory dir = (Directory) file;
+        long bytes = DIRECTORY_BYTES + 4L * dir.getContents().size();
+        for(File entity : dir.getContents()){
+            bytes += heapFootprint(entity, seen);
+        }
+        return bytes;
+    }
+
+    //deliver the changes of the last command to the subscribers
+    public void flushWatches(){
+        if(watches != null){
+            for(StandingQuery query : watches.values()){
+                query.flush();
+            }
+        }
+    }
+
+    private void notifyAttached(File file){
+        if(watches != null){
+            for(StandingQuery query : watches.values()){
+                query.attached(file);
+            }
+        }
+    }
+
+    private void notifyDetached(Directory from, File file){
+        if(watches != null){
+            for(StandingQuery query : watches.values()){
+                query.detached(from, file);
+            }
+        }
+    }
+
+    // The tier of document content; a disk built before (an image) is tracked as a
+    // whole when the store is first needed.
+    public ContentStore getContentStore(){
+        if(contentStore == null){
+            contentStore = new ContentStore();
+            tierDocuments(rootDirectory);
+        }
+        return contentStore;
+    }
+
+    //after a command: move content over the budget to the spill file
+    public void trimContent(){
+        if(contentStore != null){
+            contentStore.trim();
+        }
+    }
+
+    private void trackContent(File file){
+        if(contentStore == null){
+            getContentStore(); //tracks the whole tree, file included
+        } else {
+            tierDocuments(file);
+        }
+    }
+
+    private void tierDocuments(File file){
+        if(file instanceof Document doc){
+            contentStore.track(doc);
+        } else if(file instanceof Directory dir){
+            for(File entity : dir.getContents()){
+                tierDocuments(entity);
+            }
+        }
+    }
+
+    private void forgetContent(File file){
+        if(file instanceof Document doc){
+            contentStore.forget(doc);
+        } else if(file instanceof Directory dir){
+            for(File entity : dir.getContents()){
+                forgetContent(entity);
+            }
+        }
+    }
+
+    public boolean hasContentIndex(){
+        return contentIndex != null;
+    }
+
+    public boolean hasStats(){
+        return stats != null;
+    }
+
+    public DiskStats getStats(){
+        if(stats == null){
+            stats = DiskStats.of(rootDirectory);
+        }
+        return stats;
+    }
+
+    public ContentIndex getContentIndex(){
+        if(contentIndex == null){
+            assignAllIds(rootDirectory);
+            contentIndex = ContentIndex.build(rootDirectory);
+        }
+        return contentIndex;
+    }
+
+    //new files get an id and the current epoch, stops at files that already have one
+    private void assignIds(File file){
+        if(file.id != 0){
+            return;
+        }
+        file.id = nextId++;
+        file.epoch = epoch;
+        if(file instanceof Directory dir){
+            for(File entity : dir.getContents()){
+                assignIds(entity);
+            }
+        }
+    }
+
+    //ids for trees built outside the disk hooks (older images)
+    private void assignAllIds(File file){
+        if(file.id == 0){
+            file.id = nextId++;
+        }
+        if(file instanceof Directory dir){
+            for(File entity : dir.getContents()){
+                assignAllIds(entity);
+            }
+        }
+    }
+
+    private void indexDocuments(File file){
+        if(file instanceof Document doc){
+            contentIndex.add(doc);
+        } else if(file instanceof Directory dir){
+            for(File entity : dir.getContents()){
+                indexDocuments(entity);
+            }
+        }
+    }
+
+    private static int countDocuments(File file){
+        if(file instanceof Directory dir){
+            int count = 0;
+            for(File entity : dir.getContents()){
+                count += countDocuments(entity);
+            }
+            return count;
+        }
+        return 1;
+    }
+
+    public boolean hasSpaceFor(int size){
+        CapacityCheckEvent event = new CapacityCheckEvent();
+        event.begin();
+        int used = rootDirectory.getSize();
+        boolean granted = (used + size) <= maxSize;
+        if(event.shouldCommit()){
+            event.disk = name;
+            event.requested = size;
+            event.used = used;
+            event.capacity = maxSize;
+            event.granted = granted;
+            event.commit();
+        }
+        return granted;
+    }
+}
@@ -0,0 +1,531 @@
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Flow;
+
+// Micro benchmarks of the CVFS, run with: java CVFSBenchmark [documents] [entries]
+// Not part of the unit tests, numbers depend on the machine.
+public class CVFSBenchmark {
+    private static final String ALPHABET = "abcdefghijklmnopqrstuvwxyz";
+
+    public static void main(String[] args) {
+        int documents = args.length > 0 ? Integer.parseInt(args[0]) : 20000;
+        contentSearch(documents);
+        selectiveSearch(documents);
+        imageFormat(documents);
+        warmStart(documents);
+        treeFootprint(args.length > 1 ? Integer.parseInt(args[1]) : 1_000_000);
+        sizeBatch(documents);
+        firstHits(documents);
+        appendGrowth(documents);
+        tieredContent(documents / 10);
+        shardedSearch(documents, 1);
+        shardedSearch(documents, 4);
+    }
+
+    //content contains: trigram index vs scanning every Document.getContent()
+    private static void contentSearch(int documents) {
+        Random random = new Random(42);
+        VirtualDisk disk = new VirtualDisk(Integer.MAX_VALUE);
+        Directory root = disk.getRootDirectory();
+        int perDir = 100;
+        Directory dir = null;
+        for (int i = 0; i < documents; i++) {
+            if (i % perDir == 0) {
+                dir = new Directory("d" + i / perDir);
+                root.addEntity(dir);
+                disk.fileAdded(dir);
+            }
+            StringBuilder content = new StringBuilder();
+            for (int j = 0; j < 400; j++) {
+                content.append(ALPHABET.charAt(random.nextInt(ALPHABET.length())));
+            }
+            Document doc = new Document("f" + i, "txt", content.toString());
+            dir.addEntity(doc);
+            disk.fileAdded(doc);
+        }
+
+        CriteriaManager critM = disk.getCriteriaManager();
+        SimpleCriteria criteria = new SimpleCriteria("cc", "content", "contains", "\"qzxw\"", critM);
+
+        long start = System.nanoTime();
+        disk.getContentIndex();
+        long buildTime = System.nanoTime() - start;
+
+        int rounds = 20;
+        int bruteMatches = 0;
+        start = System.nanoTime();
+        for (int r = 0; r < rounds; r++) {
+            bruteMatches = count(criteria, root);
+        }
+        long bruteTime = (System.nanoTime() - start) / rounds;
+
+        int indexedMatches = 0;
+        start = System.nanoTime();
+        for (int r = 0; r < rounds; r++) {
+            criteria.prepare(disk);
+            indexedMatches = count(criteria, root);
+            criteria.release();
+        }
+        long indexedTime = (System.nanoTime() - start) / rounds;
+
+        ContentIndex index = disk.getContentIndex();
+        System.out.println("Content search over " + documents + " documents");
+        System.out.printf("  index build: %.1f ms, %d grams, %d posting bytes%n",
+                buildTime / 1e6, index.gramCount(), index.postingBytes());
+        System.out.printf("  brute force: %.3f ms (%d matches)%n", bruteTime / 1e6, bruteMatches);
+        System.out.printf("  indexed:     %.3f ms (%d matches)%n", indexedTime / 1e6, indexedMatches);
+    }
+
+    //rSearch for a rare type: full traversal vs skipping subtrees by their summaries
+    private static void selectiveSearch(int documents) {
+        VirtualDisk disk = new VirtualDisk(Integer.MAX_VALUE);
+        Directory root = disk.getRootDirectory();
+        int perDir = 100;
+        Directory dir = null;
+        for (int i = 0; i < documents; i++) {
+            if (i % perDir == 0) {
+                Directory group = new Directory("g" + i / (perDir * 10));
+                Directory existing = (Directory) root.findFile(group.getName());
+                if (existing == null) {
+                    root.addEntity(group);
+                    existing = group;
+                }
+                dir = new Directory("d" + i / perDir);
+                existing.addEntity(dir);
+            }
+            String type = i == documents / 2 ? "java" : "txt";
+            dir.addEntity(new Document("f" + i, type, "content" + i));
+        }
+        disk.fileAdded(root);
+
+        SimpleCriteria criteria = new SimpleCriteria("jv", "type", "equals", "\"java\"", disk.getCriteriaManager());
+        int rounds = 20;
+        int fullMatches = 0;
+        long start = System.nanoTime();
+        for (int r = 0; r < rounds; r++) {
+            fullMatches = count(criteria, root);
+        }
+        long fullTime = (System.nanoTime() - start) / rounds;
+
+        int prunedMatches = 0;
+        long[] visited = new long[1];
+        start = System.nanoTime();
+        for (int r = 0; r < rounds; r++) {
+            visited[0] = 0;
+            prunedMatches = countPruned(criteria, root, visited);
+        }
+        long prunedTime = (System.nanoTime() - start) / rounds;
+
+        System.out.println("Selective rSearch over " + documents + " documents");
+        System.out.printf("  full scan: %.3f ms (%d matches, %d nodes)%n", fullTime / 1e6, fullMatches,
+                root.getEntryCount());
+        System.out.printf("  pruned:    %.3f ms (%d matches, %d nodes)%n", prunedTime / 1e6, prunedMatches, visited[0]);
+    }
+
+    //save image: plain serialization vs compressed blocks
+    private static void imageFormat(int documents) {
+        Random random = new Random(7);
+        VirtualDisk disk = new VirtualDisk(Integer.MAX_VALUE);
+        Directory root = disk.getRootDirectory();
+        String[] words = {"public", "class", "return", "static", "void", "int", "String", "new", "if", "else"};
+        for (int i = 0; i < documents; i++) {
+            StringBuilder content = new StringBuilder();
+            for (int j = 0; j < 80; j++) {
+                content.append(words[random.nextInt(words.length)]).append(' ');
+            }
+            root.addEntity(new Document("f" + i, "java", content.toString()));
+        }
+        disk.fileAdded(root);
+
+        try {
+            java.io.ByteArrayOutputStream plain = new java.io.ByteArrayOutputStream();
+            long start = System.nanoTime();
+            try (java.io.ObjectOutputStream oos = new java.io.ObjectOutputStream(plain)) {
+                oos.writeObject(disk);
+            }
+            long plainTime = System.nanoTime() - start;
+
+            java.io.ByteArrayOutputStream blocks = new java.io.ByteArrayOutputStream();
+            start = System.nanoTime();
+            DiskImage.write(disk, blocks);
+            long blockTime = System.nanoTime() - start;
+
+            System.out.println("Disk image of " + documents + " documents");
+            System.out.printf("  plain:      %.1f ms, %d bytes%n", plainTime / 1e6, plain.size());
+            System.out.printf("  compressed: %.1f ms, %d bytes%n", blockTime / 1e6, blocks.size());
+        } catch (java.io.IOException e) {
+            throw new java.io.UncheckedIOException(e);
+        }
+    }
+
+    //load: content index attached from the image section vs built again from the contents
+    private static void warmStart(int documents) {
+        Random random = new Random(11);
+        VirtualDisk disk = new VirtualDisk(Integer.MAX_VALUE);
+        Directory root = disk.getRootDirectory();
+        for (int i = 0; i < documents; i++) {
+            StringBuilder content = new StringBuilder();
+            for (int c = 0; c < 400; c++) {
+                content.append(ALPHABET.charAt(random.nextInt(ALPHABET.length())));
+            }
+            root.addEntity(new Document("f" + i, "txt", content.toString()));
+        }
+        disk.fileAdded(root);
+        disk.getContentIndex();
+        disk.getStats();
+
+        try {
+            java.nio.file.Path image = java.nio.file.Files.createTempFile("cvfs-bench", ".dat");
+            try (OutputStream out = new java.io.BufferedOutputStream(java.nio.file.Files.newOutputStream(image))) {
+                DiskImage.write(disk, out);
+            }
+            long start = System.nanoTime();
+            VirtualDisk loaded = (VirtualDisk) DiskImage.read(image.toString());
+            long loadTime = System.nanoTime() - start;
+            boolean attached = loaded.hasContentIndex();
+            start = System.nanoTime();
+            ContentIndex.build(loaded.getRootDirectory());
+            long buildTime = System.nanoTime() - start;
+            java.nio.file.Files.delete(image);
+
+            System.out.println("Warm start from an image of " + documents + " documents");
+            System.out.printf("  load with sections:   %.1f ms (content index %s)%n", loadTime / 1e6,
+                    attached ? "attached" : "missing");
+            System.out.printf("  content index rebuild: %.1f ms%n", buildTime / 1e6);
+        } catch (IOException | ClassNotFoundException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    //heap bytes per entry: Directory/Document objects vs the CompactTree arrays
+    private static void treeFootprint(int entries) {
+        int perDir = 100;
+        long before = usedHeap();
+        Directory root = new Directory("root");
+        Directory dir = null;
+        for (int i = 0; i < entries; i++) {
+            if (i % perDir == 0) {
+                dir = new Directory("d" + i / perDir);
+                root.addEntity(dir);
+            } else {
+                dir.addEntity(new Document("f" + i, "txt", "x"));
+            }
+        }
+        long objects = usedHeap() - before;
+
+        before = usedHeap();
+        CompactTree tree = new CompactTree();
+        int node = -1;
+        for (int i = 0; i < entries; i++) {
+            if (i % perDir == 0) {
+                node = tree.addDirectory(CompactTree.ROOT, "d" + i / perDir);
+            } else {
+                tree.addDocument(node, "f" + i, "txt", "x");
+            }
+        }
+        tree.trim();
+        long compact = usedHeap() - before;
+
+        System.out.println("Tree footprint with " + entries + " entries");
+        System.out.printf("  objects: %.1f bytes/entry%n", (double) objects / entries);
+        System.out.printf("  compact: %.1f bytes/entry (%.1f by its own count)%n",
+                (double) compact / entries, (double) tree.footprint() / entries);
+        //keep both alive until measured
+        if (root.getEntryCount() != tree.entryCount()) {
+            throw new IllegalStateException("trees differ");
+        }
+    }
+
+    //(size > a && !(size >= b)) over one directory: file by file vs the batch masks
+    private static void sizeBatch(int documents) {
+        Random random = new Random(7);
+        CriteriaManager critM = new CriteriaManager("bench");
+        List<File> files = new ArrayList<>();
+        for (int i = 0; i < documents; i++) {
+            files.add(new Document("f" + i, "txt", "x".repeat(random.nextInt(200))));
+        }
+        new SimpleCriteria("s1", "size", ">", "100", critM);
+        new SimpleCriteria("s2", "size", ">=", "300", critM);
+        new NegationCriteria("s3", critM, "s2");
+        Criteria criteria = new BinaryCriteria("s4", "s1", "s3", critM, "&&");
+
+        int rounds = 200;
+        int single = 0;
+        long start = System.nanoTime();
+        for (int r = 0; r < rounds; r++) {
+            single = 0;
+            for (File file : files) {
+                if (criteria.evaluate(file)) {
+                    single++;
+                }
+            }
+        }
+        long singleTime = (System.nanoTime() - start) / rounds;
+
+        FileBatch batch = new FileBatch(files);
+        int batched = 0;
+        start = System.nanoTime();
+        for (int r = 0; r < rounds; r++) {
+            batched = 0;
+            for (long word : criteria.evaluate(batch)) {
+                batched += Long.bitCount(word);
+            }
+        }
+        long batchTime = (System.nanoTime() - start) / rounds;
+
+        System.out.println("Size criteria over " + documents + " files");
+        System.out.printf("  file by file: %.3f ms (%d matches)%n", singleTime / 1e6, single);
+        System.out.printf("  batch masks:  %.3f ms (%d matches)%n", batchTime / 1e6, batched);
+        System.out.printf("  size column, scalar loop: %.3f ms%n", compareTime(batch, false, rounds) / 1e6);
+        if (FileBatch.VECTOR) {
+            System.out.printf("  size column, IntVector x%d: %.3f ms%n", SizeVectors.lanes(), compareTime(batch, true, rounds) / 1e6);
+        } else {
+            System.out.println("  size column, IntVector: run with --add-modules jdk.incubator.vector");
+        }
+    }
+
+    private static long compareTime(FileBatch batch, boolean vector, int rounds) {
+        long sink = 0;
+        long start = System.nanoTime();
+        for (int r = 0; r < rounds; r++) {
+            sink += batch.compareSizes(">", 100 + (r & 7), vector)[0];
+        }
+        long time = (System.nanoTime() - start) / rounds;
+        return sink == 42 ? time + 1 : time;
+    }
+
+    //the first 10 rSearch matches through a publisher vs the whole rSearch
+    private static void firstHits(int documents) {
+        CVFS cvfs = new CVFS();
+        PrintStream console = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        run(cvfs, "newDisk " + Integer.MAX_VALUE);
+        for (int d = 0; d < 100; d++) {
+            run(cvfs, "changeDir $");
+            run(cvfs, "newDir dir" + d);
+            run(cvfs, "changeDir dir" + d);
+            for (int i = d; i < documents; i += 100) {
+                run(cvfs, "newDoc f" + i + " " + (i % 2 == 0 ? "txt" : "java") + " x");
+            }
+        }
+        run(cvfs, "changeDir $");
+        run(cvfs, "newSimpleCri s1 type equals \"txt\"");
+
+        int rounds = 50;
+        long start = System.nanoTime();
+        for (int r = 0; r < rounds; r++) {
+            run(cvfs, "rSearch s1");
+        }
+        long fullTime = (System.nanoTime() - start) / rounds;
+        System.setOut(console);
+
+        int[] taken = new int[1];
+        start = System.nanoTime();
+        for (int r = 0; r < rounds; r++) {
+            taken[0] = 0;
+            cvfs.publish("s1", true, null).subscribe(new Flow.Subscriber<>() {
+                private Flow.Subscription subscription;
+
+                @Override
+                public void onSubscribe(Flow.Subscription s) {
+                    subscription = s;
+                    s.request(10);
+                }
+
+                @Override
+                public void onNext(FilePublisher.Entry entry) {
+                    if (++taken[0] == 10) {
+                        subscription.cancel();
+                    }
+                }
+
+                @Override
+                public void onError(Throwable error) {
+                    throw new IllegalStateException(error);
+                }
+
+                @Override
+                public void onComplete() {
+                }
+            });
+        }
+        long firstTime = (System.nanoTime() - start) / rounds;
+
+        System.out.println("rSearch over " + documents + " documents");
+        System.out.printf("  whole output:         %.3f ms%n", fullTime / 1e6);
+        System.out.printf("  first %d, published:  %.3f ms%n", taken[0], firstTime / 1e6);
+    }
+
+    //appendDoc on a rope vs rebuilding the whole String content for every append
+    private static void appendGrowth(int appends) {
+        String piece = "x".repeat(100);
+        CVFS cvfs = new CVFS();
+        run(cvfs, "newDisk " + Integer.MAX_VALUE);
+        run(cvfs, "newDoc big txt x");
+        long start = System.nanoTime();
+        for (int i = 0; i < appends; i++) {
+            run(cvfs, "appendDoc big " + piece);
+        }
+        long ropeTime = System.nanoTime() - start;
+
+        String content = "x";
+        start = System.nanoTime();
+        for (int i = 0; i < appends; i++) {
+            content = content + piece;
+        }
+        long copyTime = System.nanoTime() - start;
+
+        System.out.println(appends + " appends of 100 characters (" + content.length() + " characters in the end)");
+        System.out.printf("  appendDoc (rope):        %.1f ms%n", ropeTime / 1e6);
+        System.out.printf("  String copy per append: %.1f ms%n", copyTime / 1e6);
+    }
+
+    //heap held by document content with everything resident vs a 1M character cache and a spill file
+    private static void tieredContent(int documents) {
+        CVFS cvfs = new CVFS();
+        PrintStream console = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        run(cvfs, "newDisk " + Integer.MAX_VALUE);
+        Random random = new Random(5);
+        for (int i = 0; i < documents; i++) {
+            StringBuilder content = new StringBuilder();
+            for (int c = 0; c < 10000; c++) {
+                content.append(ALPHABET.charAt(random.nextInt(ALPHABET.length())));
+            }
+            run(cvfs, "newDoc f" + i + " txt " + content);
+        }
+        long resident = usedHeap();
+        long start = System.nanoTime();
+        run(cvfs, "contentCache " + (1 << 20));
+        long spillTime = System.nanoTime() - start;
+        long tiered = usedHeap();
+        run(cvfs, "newSimpleCri s1 size > 100");
+        start = System.nanoTime();
+        run(cvfs, "rSearch s1");
+        long sizeSearch = System.nanoTime() - start;
+        run(cvfs, "newSimpleCri s2 content contains \"qqq\"");
+        run(cvfs, "rSearch s2"); //builds the content index
+        long loads = cvfs.getCurrentDisk().getContentStore().getLoads();
+        start = System.nanoTime();
+        run(cvfs, "rSearch s2");
+        long contentSearch = System.nanoTime() - start;
+        System.setOut(console);
+
+        System.out.println("Content of " + documents + " documents of 10000 characters");
+        System.out.printf("  heap, all resident:      %.1f MB%n", resident / 1e6);
+        System.out.printf("  heap, 1M character cache: %.1f MB (spilling took %.1f ms)%n", tiered / 1e6, spillTime / 1e6);
+        System.out.printf("  size rSearch:    %.1f ms, no spill reads%n", sizeSearch / 1e6);
+        System.out.printf("  content rSearch: %.1f ms, reading back %d documents%n", contentSearch / 1e6,
+                cvfs.getCurrentDisk().getContentStore().getLoads() - loads);
+    }
+
+    //rSearch from the root of a disk spread over shard processes on localhost (java ... Application --shard 0)
+    private static void shardedSearch(int documents, int shardCount) {
+        List<Process> processes = new ArrayList<>();
+        PrintStream console = System.out;
+        try {
+            List<String> addresses = new ArrayList<>();
+            String java = Paths.get(System.getProperty("java.home"), "bin", "java").toString();
+            for (int i = 0; i < shardCount; i++) {
+                Process process = new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"),
+                        "hk.edu.polyu.comp.comp2021.cvfs.Application", "--shard", "0").start();
+                processes.add(process);
+                String ready = new BufferedReader(new InputStreamReader(process.getInputStream())).readLine();
+                addresses.add("localhost:" + ready.replaceAll("\\D", ""));
+            }
+
+            Random random = new Random(11);
+            CVFS cvfs = new CVFS();
+            System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+            run(cvfs, "shard connect " + String.join(" ", addresses));
+            run(cvfs, "newDisk " + Integer.MAX_VALUE);
+            long start = System.nanoTime();
+            int dirs = 64;
+            for (int d = 0; d < dirs; d++) {
+                run(cvfs, "changeDir $");
+                run(cvfs, "newDir top" + d);
+                run(cvfs, "changeDir top" + d);
+                for (int i = d; i < documents; i += dirs) {
+                    run(cvfs, "newDoc f" + i + " txt " + "x".repeat(1 + random.nextInt(200)));
+                }
+            }
+            long loadTime = System.nanoTime() - start;
+            run(cvfs, "changeDir $");
+            run(cvfs, "newSimpleCri s1 size > 430");
+            run(cvfs, "newSimpleCri s2 type equals \"txt\"");
+            run(cvfs, "newBinaryCri s3 s1 && s2");
+
+            int rounds = 20;
+            run(cvfs, "rSearch s3"); //warm up
+            start = System.nanoTime();
+            for (int r = 0; r < rounds; r++) {
+                run(cvfs, "rSearch s3");
+            }
+            long searchTime = (System.nanoTime() - start) / rounds;
+            run(cvfs, "shard disconnect");
+            System.setOut(console);
+
+            System.out.println("Sharded disk, " + documents + " documents on " + shardCount + " shard processes");
+            System.out.printf("  load:    %.1f ms%n", loadTime / 1e6);
+            System.out.printf("  rSearch: %.3f ms from the root%n", searchTime / 1e6);
+        } catch (IOException e) {
+            System.setOut(console);
+            System.out.println("Sharded disk: cannot start shard processes: " + e.getMessage());
+        } finally {
+            System.setOut(console);
+            for (Process process : processes) {
+                process.destroy();
+            }
+        }
+    }
+
+    private static void run(CVFS cvfs, String command) {
+        CommandProcessor processor = new CommandProcessor(cvfs);
+        processor.executeCommand(command);
+        if (processor.flag) {
+            throw new IllegalStateException("failed: " + command);
+        }
+    }
+
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    private static int countPruned(Criteria criteria, Directory dir, long[] visited) {
+        int matches = 0;
+        for (File entity : dir.getContents()) {
+            visited[0]++;
+            if (criteria.evaluate(entity)) {
+                matches++;
+            }
+            if (entity instanceof Directory sub && criteria.canMatchAny(sub)) {
+                matches += countPruned(criteria, sub, visited);
+            }
+        }
+        return matches;
+    }
+
+    private static int count(Criteria criteria, Directory dir) {
+        int matches = 0;
+        for (File entity : dir.getContents()) {
+            if (criteria.evaluate(entity)) {
+                matches++;
+            }
+            if (entity instanceof Directory sub) {
+                matches += count(criteria, sub);
+            }
+        }
+        return matches;
+    }
+}
@@ -3,7 +3,11 @@ import org.junit.Before;
 import org.junit.Test;
 
 import java.io.ByteArrayOutputStream;
+import java.io.IOException;
 import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Flow;
 
 import static org.junit.Assert.*;
 
@@ -579,6 +583,1663 @@ public class CVFSTest {
         assertTrue(commandProcessor.flag);
     }
 
+    @Test
+    public void testStats() {
+        commandProcessor.executeCommand("stats reset");
+        commandProcessor.executeCommand("newDir dir1");
+        commandProcessor.executeCommand("newDoc doc1 txt content");
+        commandProcessor.executeCommand("rList");
+        outputStreamCaptor.reset();
+        commandProcessor.executeCommand("stats");
+        String output = outputStreamCaptor.toString();
+        assertTrue(output.contains("newDir"));
+        assertTrue(output.contains("rList"));
+        assertEquals(2, CommandStats.global().getNodesVisited());
+        assertEquals(1, (long) CommandStats.global().getCommandCounts().get("newDoc"));
+    }
+
+    @Test
+    public void testStatsReset() {
+        commandProcessor.executeCommand("newDir dir1");
+        commandProcessor.executeCommand("stats reset");
+        assertNull(CommandStats.global().getCommandCounts().get("newDir"));
+        assertEquals(0, CommandStats.global().getNodesVisited());
+    }
+
+    @Test
+    public void testStatsHistogram() {
+        CommandStats.Histogram histogram = new CommandStats.Histogram();
+        for (int i = 1; i <= 1000; i++) {
+            histogram.record(i * 1000L);
+        }
+        long p50 = histogram.percentile(50);
+        assertTrue(p50 >= 500000 && p50 <= 500000 * 1.07);
+        assertEquals(1000000, histogram.percentile(100));
+        assertEquals(1000000, histogram.max());
+    }
+
+    @Test
+    public void testFlightRecorderEvents() throws Exception {
+        java.nio.file.Path dir = java.nio.file.Files.createTempDirectory("cvfs-jfr");
+        java.nio.file.Path dump = dir.resolve("events.jfr");
+        String image = dir.resolve("disk").toString();
+        try (jdk.jfr.Recording recording = new jdk.jfr.Recording()) {
+            recording.enable(CommandEvent.NAME).withThreshold(java.time.Duration.ZERO);
+            recording.enable(CriteriaEvaluationEvent.NAME).withThreshold(java.time.Duration.ZERO);
+            recording.enable(SaveEvent.NAME).withThreshold(java.time.Duration.ZERO);
+            recording.enable(LoadEvent.NAME).withThreshold(java.time.Duration.ZERO);
+            recording.enable(ChangeDirEvent.NAME).withThreshold(java.time.Duration.ZERO);
+            recording.enable(CapacityCheckEvent.NAME).withThreshold(java.time.Duration.ZERO);
+            recording.start();
+            commandProcessor.executeCommand("newDir dir1");
+            commandProcessor.executeCommand("changeDir dir1");
+            commandProcessor.executeCommand("newDoc doc1 txt content");
+            commandProcessor.executeCommand("changeDir $");
+            commandProcessor.executeCommand("newSimpleCri AB name contains \"doc\"");
+            commandProcessor.executeCommand("rSearch AB");
+            commandProcessor.executeCommand("save " + image);
+            commandProcessor.executeCommand("load " + image);
+            recording.stop();
+            recording.dump(dump);
+        }
+
+        java.util.Map<String, java.util.List<jdk.jfr.consumer.RecordedEvent>> events = new java.util.HashMap<>();
+        for (jdk.jfr.consumer.RecordedEvent e : jdk.jfr.consumer.RecordingFile.readAllEvents(dump)) {
+            events.computeIfAbsent(e.getEventType().getName(), k -> new java.util.ArrayList<>()).add(e);
+        }
+        assertEquals(8, events.get(CommandEvent.NAME).size());
+        assertEquals("newDir", events.get(CommandEvent.NAME).get(0).getString("command"));
+        assertEquals("default", events.get(CommandEvent.NAME).get(0).getString("disk"));
+        assertTrue(events.get(CommandEvent.NAME).get(0).getBoolean("succeeded"));
+
+        jdk.jfr.consumer.RecordedEvent search = events.get(CriteriaEvaluationEvent.NAME).get(0);
+        assertEquals("AB", search.getString("criterion"));
+        assertEquals(2, search.getLong("nodesVisited"));
+        assertEquals(1, search.getLong("matches"));
+
+        jdk.jfr.consumer.RecordedEvent capacity = events.get(CapacityCheckEvent.NAME).get(1);
+        assertEquals(54, capacity.getLong("requested"));
+        assertEquals(80, capacity.getLong("used"));
+        assertEquals(1000, capacity.getLong("capacity"));
+        assertTrue(capacity.getBoolean("granted"));
+
+        assertEquals("dir1", events.get(ChangeDirEvent.NAME).get(0).getString("resolved"));
+        assertTrue(events.get(SaveEvent.NAME).get(0).getLong("bytes") > 0);
+        assertEquals(events.get(SaveEvent.NAME).get(0).getLong("bytes"), events.get(LoadEvent.NAME).get(0).getLong("bytes"));
+    }
+
+    @Test
+    public void testMountAndUseDisk() {
+        commandProcessor.executeCommand("newDoc doc1 txt content");
+        commandProcessor.executeCommand("mount tenant1 500");
+        commandProcessor.executeCommand("useDisk tenant1");
+        assertEquals("tenant1", cvfs.getCurrentDisk().getName());
+        assertNull(cvfs.getWorkingDirectory().findFile("doc1"));
+        commandProcessor.executeCommand("newDoc doc2 txt content");
+        commandProcessor.executeCommand("useDisk default");
+        assertNotNull(cvfs.getWorkingDirectory().findFile("doc1"));
+        assertNull(cvfs.getWorkingDirectory().findFile("doc2"));
+        assertFalse(commandProcessor.flag);
+    }
+
+    @Test
+    public void testIdleDiskEviction() throws Exception {
+        cvfs.getDiskRegistry().setImageDirectory(java.nio.file.Files.createTempDirectory("cvfs-disks"));
+        commandProcessor.executeCommand("mount t1 1000");
+        commandProcessor.executeCommand("mount t2 1000");
+        commandProcessor.executeCommand("useDisk t1");
+        commandProcessor.executeCommand("newDoc doc1 txt content");
+        commandProcessor.executeCommand("useDisk t2");
+        commandProcessor.executeCommand("diskBudget 100");
+        assertTrue(cvfs.getDiskRegistry().isResident("t2"));
+        assertFalse(cvfs.getDiskRegistry().isResident("t1"));
+        assertFalse(cvfs.getDiskRegistry().isResident("default"));
+
+        commandProcessor.executeCommand("useDisk t1");
+        assertTrue(cvfs.getDiskRegistry().isResident("t1"));
+        assertFalse(cvfs.getDiskRegistry().isResident("t2"));
+        assertEquals("content", ((Document) cvfs.getWorkingDirectory().findFile("doc1")).getContent());
+        assertFalse(commandProcessor.flag);
+    }
+
+    @Test
+    public void testWatchedDiskStaysResident() throws Exception {
+        cvfs.getDiskRegistry().setImageDirectory(java.nio.file.Files.createTempDirectory("cvfs-disks"));
+        commandProcessor.executeCommand("mount t1 100000");
+        commandProcessor.executeCommand("useDisk t1");
+        VirtualDisk disk = cvfs.getCurrentDisk();
+        long empty = disk.heapFootprint();
+        commandProcessor.executeCommand("newDoc doc1 txt " + "x".repeat(1000));
+        assertTrue(disk.heapFootprint() >= empty + 2000);
+        commandProcessor.executeCommand("newSimpleCri TX type equals \"txt\"");
+        commandProcessor.executeCommand("watch TX");
+        commandProcessor.executeCommand("useDisk default");
+        commandProcessor.executeCommand("diskBudget 100");
+        assertTrue(cvfs.getDiskRegistry().isResident("t1"));
+        assertEquals(0, cvfs.getDiskRegistry().getEvictions());
+
+        commandProcessor.executeCommand("useDisk t1");
+        commandProcessor.executeCommand("unwatch TX");
+        outputStreamCaptor.reset();
+        commandProcessor.executeCommand("useDisk default");
+        assertFalse(cvfs.getDiskRegistry().isResident("t1"));
+        assertTrue(outputStreamCaptor.toString().startsWith("Disk 't1' evicted to "));
+        assertFalse(commandProcessor.flag);
+    }
+
+    @Test
+    public void testUnmountDiskInUse() {
+        commandProcessor.executeCommand("unmount default");
+        assertTrue(commandProcessor.flag);
+    }
+
+    @Test
+    public void testIncrementalAggregates() {
+        commandProcessor.executeCommand("newDir dir1");
+        commandProcessor.executeCommand("changeDir dir1");
+        commandProcessor.executeCommand("newDir dir2");
+        commandProcessor.executeCommand("changeDir dir2");
+        commandProcessor.executeCommand("newDoc doc1 txt content");
+        Directory root = cvfs.getCurrentDisk().getRootDirectory();
+        assertEquals(174, root.getSize());
+        assertEquals(3, root.getEntryCount());
+        commandProcessor.executeCommand("changeDir $");
+        commandProcessor.executeCommand("changeDir dir1");
+        commandProcessor.executeCommand("delete dir2");
+        assertEquals(80, root.getSize());
+        assertEquals(1, root.getEntryCount());
+        assertEquals(root.getSize(), root.recomputeSize());
+    }
+
+    @Test
+    public void testQuota() {
+        commandProcessor.executeCommand("newDir dir1");
+        commandProcessor.executeCommand("setQuota dir1 140 2");
+        commandProcessor.executeCommand("changeDir dir1");
+        commandProcessor.executeCommand("newDoc doc1 txt content");
+        outputStreamCaptor.reset();
+        commandProcessor.executeCommand("newDoc doc2 txt content");
+        assertEquals("Quota of directory dir1 exceeded.", outputStreamCaptor.toString().trim());
+        assertNull(cvfs.getWorkingDirectory().findFile("doc2"));
+        commandProcessor.executeCommand("newDir dir2");
+        commandProcessor.executeCommand("changeDir dir2");
+        outputStreamCaptor.reset();
+        commandProcessor.executeCommand("newDir dir3");
+        assertEquals("Quota of directory dir1 exceeded.", outputStreamCaptor.toString().trim());
+    }
+
+    @Test
+    public void testDu() {
+        commandProcessor.executeCommand("newDir dir1");
+        commandProcessor.executeCommand("setQuota dir1 500 10");
+        commandProcessor.executeCommand("changeDir dir1");
+        commandProcessor.executeCommand("newDoc doc1 txt content");
+        commandProcessor.executeCommand("changeDir $");
+        outputStreamCaptor.reset();
+        commandProcessor.executeCommand("du");
+        String expectedOutput = "root: 134 bytes, 2 entries\n" +
+                "dir1: 94 bytes, 1 entries (quota: 500 bytes, 10 entries)";
+        assertEquals(expectedOutput, outputStreamCaptor.toString().trim());
+    }
+
+    @Test
+    public void testQuotaBelowUsage() {
+        commandProcessor.executeCommand("newDir dir1");
+        commandProcessor.executeCommand("setQuota dir1 10 1");
+        assertTrue(commandProcessor.flag);
+    }
+
+    @Test
+    public void testContentCri() {
+        commandProcessor.executeCommand("newDoc doc1 txt HelloWorld");
+        commandProcessor.executeCommand("newDoc doc2 txt GoodbyeWorld");
+        commandProcessor.executeCommand("newDoc doc3 java HelloJava");
+        commandProcessor.executeCommand("newSimpleCri cc content contains \"Hello\"");
+        commandProcessor.executeCommand("search cc");
+        String expectedOutput = "doc1 (txt) 60 bytes\n" +
+                "doc3 (java) 58 bytes\n" +
+                "Total files found: 2\n" +
+                "Total size: 118 bytes";
+        assertEquals(expectedOutput, outputStreamCaptor.toString().trim());
+    }
+
+    @Test
+    public void testContentCriComposition() {
+        commandProcessor.executeCommand("newDoc doc1 txt HelloWorld");
+        commandProcessor.executeCommand("newDoc doc2 txt GoodbyeWorld");
+        commandProcessor.executeCommand("newDoc doc3 java HelloJava");
+        commandProcessor.executeCommand("newSimpleCri cc content contains \"Hello\"");
+        commandProcessor.executeCommand("newSimpleCri tt type equals \"txt\"");
+        commandProcessor.executeCommand("newNegation nc cc");
+        commandProcessor.executeCommand("newBinaryCri bc cc && tt");
+        commandProcessor.executeCommand("search nc");
+        commandProcessor.executeCommand("search bc");
+        String expectedOutput = "doc2 (txt) 64 bytes\n" +
+                "Total files found: 1\n" +
+                "Total size: 64 bytes\n" +
+                "doc1 (txt) 60 bytes\n" +
+                "Total files found: 1\n" +
+                "Total size: 60 bytes";
+        assertEquals(expectedOutput, outputStreamCaptor.toString().trim());
+    }
+
+    @Test
+    public void testContentIndexMaintained() {
+        commandProcessor.executeCommand("newDoc doc1 txt HelloWorld");
+        commandProcessor.executeCommand("newSimpleCri cc content contains \"World\"");
+        commandProcessor.executeCommand("search cc");
+        ContentIndex index = cvfs.getCurrentDisk().getContentIndex();
+        commandProcessor.executeCommand("delete doc1");
+        commandProcessor.executeCommand("newDir dir1");
+        commandProcessor.executeCommand("changeDir dir1");
+        commandProcessor.executeCommand("newDoc doc1 txt NewWorld");
+        assertSame(index, cvfs.getCurrentDisk().getContentIndex());
+        Document doc = (Document) cvfs.getWorkingDirectory().findFile("doc1");
+        assertTrue(index.candidates("World").get(doc.getId()));
+        assertFalse(index.candidates("Hello").get(doc.getId()));
+        outputStreamCaptor.reset();
+        commandProcessor.executeCommand("changeDir $");
+        commandProcessor.executeCommand("rSearch cc");
+        String expectedOutput = "doc1 (txt) 56 bytes\n" +
+                "Total number of file/directory: 0\n" +
+                "Total size: 0 bytes";
+        assertEquals(expectedOutput, outputStreamCaptor.toString().trim());
+    }
+
+    @Test
+    public void testPostingList() {
+        ContentIndex.PostingList list = new ContentIndex.PostingList();
+        list.add(3);
+        list.add(200);
+        list.add(70000);
+        list.add(5);
+        list.add(200);
+        assertEquals(4, list.size());
+        assertEquals("[3, 5, 200, 70000]", java.util.Arrays.toString(list.decode()));
+    }
+
+    @Test
+    public void testContentCriInvalid() {
+        commandProcessor.executeCommand("newSimpleCri cc content equals \"abc\"");
+        assertTrue(commandProcessor.flag);
+    }
+
+    @Test
+    public void testBatchCommit() {
+        commandProcessor.executeCommand("newDoc doc1 txt content");
+        commandProcessor.executeCommand("begin");
+        commandProcessor.executeCommand("newDoc doc2 txt content");
+        commandProcessor.executeCommand("newDir dir1");
+        commandProcessor.executeCommand("rename doc1 doc3");
+        commandProcessor.executeCommand("delete doc2");
+        assertNull(cvfs.getWorkingDirectory().findFile("dir1"));
+        assertNotNull(cvfs.getWorkingDirectory().findFile("doc1"));
+        outputStreamCaptor.reset();
+        commandProcessor.executeCommand("commit");
+        assertEquals("Batch committed: 4 operations.", outputStreamCaptor.toString().trim());
+        assertNotNull(cvfs.getWorkingDirectory().findFile("dir1"));
+        assertNotNull(cvfs.getWorkingDirectory().findFile("doc3"));
+        assertNull(cvfs.getWorkingDirectory().findFile("doc1"));
+        assertNull(cvfs.getWorkingDirectory().findFile("doc2"));
+        assertEquals(134, cvfs.getWorkingDirectory().getSize());
+        assertFalse(commandProcessor.flag);
+    }
+
+    @Test
+    public void testBatchRejectedAtomically() {
+        commandProcessor.executeCommand("newDisk 200");
+        commandProcessor.executeCommand("begin");
+        commandProcessor.executeCommand("newDoc doc1 txt content");
+        commandProcessor.executeCommand("newDoc doc2 txt content");
+        commandProcessor.executeCommand("newDoc doc3 txt content");
+        commandProcessor.executeCommand("commit");
+        assertTrue(commandProcessor.flag);
+        assertNull(cvfs.getWorkingDirectory().findFile("doc1"));
+        assertEquals(40, cvfs.getWorkingDirectory().getSize());
+        assertFalse(cvfs.inTransaction());
+    }
+
+    @Test
+    public void testBatchNetSizeCheck() {
+        commandProcessor.executeCommand("newDisk 150");
+        commandProcessor.executeCommand("newDoc doc1 txt content");
+        commandProcessor.executeCommand("newDoc doc2 txt content");
+        commandProcessor.executeCommand("begin");
+        commandProcessor.executeCommand("delete doc1");
+        commandProcessor.executeCommand("newDoc doc3 txt content");
+        commandProcessor.executeCommand("commit");
+        assertFalse(commandProcessor.flag);
+        assertNotNull(cvfs.getWorkingDirectory().findFile("doc3"));
+    }
+
+    @Test
+    public void testBatchAbort() {
+        commandProcessor.executeCommand("begin");
+        commandProcessor.executeCommand("newDir dir1");
+        outputStreamCaptor.reset();
+        commandProcessor.executeCommand("abort");
+        assertEquals("Batch aborted: 1 operations discarded.", outputStreamCaptor.toString().trim());
+        assertNull(cvfs.getWorkingDirectory().findFile("dir1"));
+        commandProcessor.executeCommand("commit");
+        assertTrue(commandProcessor.flag);
+    }
+
+    @Test
+    public void testBatchDuplicateName() {
+        commandProcessor.executeCommand("begin");
+        commandProcessor.executeCommand("newDir dir1");
+        commandProcessor.executeCommand("newDoc dir1 txt content");
+        commandProcessor.executeCommand("commit");
+        assertTrue(commandProcessor.flag);
+        assertNull(cvfs.getWorkingDirectory().findFile("dir1"));
+    }
+
+    @Test
+    public void testMove() {
+        commandProcessor.executeCommand("newDir dir1");
+        commandProcessor.executeCommand("newDir dir2");
+        commandProcessor.executeCommand("changeDir dir1");
+        commandProcessor.executeCommand("newDoc doc1 txt content");
+        commandProcessor.executeCommand("move doc1 $/root/dir2");
+        assertNull(cvfs.getWorkingDirectory().findFile("doc1"));
+        assertEquals(40, cvfs.getWorkingDirectory().getSize());
+        commandProcessor.executeCommand("changeDir ..");
+        commandProcessor.executeCommand("move dir1 dir2");
+        Directory dir2 = (Directory) cvfs.getWorkingDirectory().findFile("dir2");
+        assertNotNull(dir2.findFile("doc1"));
+        assertNotNull(dir2.findFile("dir1"));
+        assertEquals(134, dir2.getSize());
+        assertEquals(174, cvfs.getWorkingDirectory().getSize());
+        assertFalse(commandProcessor.flag);
+    }
+
+    @Test
+    public void testMoveIntoItself() {
+        commandProcessor.executeCommand("newDir dir1");
+        commandProcessor.executeCommand("changeDir dir1");
+        commandProcessor.executeCommand("newDir dir2");
+        commandProcessor.executeCommand("changeDir $");
+        commandProcessor.executeCommand("move dir1 $/root/dir1/dir2");
+        assertTrue(commandProcessor.flag);
+        assertNotNull(cvfs.getWorkingDirectory().findFile("dir1"));
+    }
+
+    @Test
+    public void testCopyIntoItself() {
+        commandProcessor.executeCommand("newDir dir1");
+        commandProcessor.executeCommand("changeDir dir1");
+        commandProcessor.executeCommand("newDir sub");
+        commandProcessor.executeCommand("changeDir $");
+        commandProcessor.executeCommand("copy dir1 $/root/dir1 dir2");
+        assertTrue(commandProcessor.flag);
+        commandProcessor.flag = false;
+        commandProcessor.executeCommand("copy dir1 $/root/dir1/sub dir2");
+        assertTrue(commandProcessor.flag);
+        Directory dir1 = (Directory) cvfs.getWorkingDirectory().findFile("dir1");
+        assertNull(dir1.findFile("dir2"));
+        assertEquals(1, dir1.getEntryCount());
+        outputStreamCaptor.reset();
+        commandProcessor.executeCommand("rList");
+        assertTrue(outputStreamCaptor.toString().startsWith("dir1 (Directory) 80 bytes\n\tsub (Directory) 40 bytes\nTotal"));
+    }
+
+    @Test
+    public void testCopyIsCopyOnWrite() {
+        commandProcessor.executeCommand("newDir dir1");
+        commandProcessor.executeCommand("changeDir dir1");
+        commandProcessor.executeCommand("newDir sub");
+        commandProcessor.executeCommand("newDoc doc1 txt content");
+        commandProcessor.executeCommand("changeDir $");
+        commandProcessor.executeCommand("copy dir1 $ dir2");
+        Directory root = cvfs.getWorkingDirectory();
+        Directory dir1 = (Directory) root.findFile("dir1");
+        Directory dir2 = (Directory) root.findFile("dir2");
+        assertSame(dir1.findFile("doc1"), dir2.findFile("doc1"));
+        assertEquals(dir1.getSize(), dir2.getSize());
+        assertEquals(40 + 2 * dir1.getSize(), root.getSize());
+
+        commandProcessor.executeCommand("changeDir $/root/dir2/sub");
+        commandProcessor.executeCommand("newDoc doc2 txt content");
+        commandProcessor.executeCommand("changeDir ..");
+        commandProcessor.executeCommand("rename doc1 doc3");
+        commandProcessor.executeCommand("changeDir $");
+        root = cvfs.getWorkingDirectory();
+        dir1 = (Directory) root.findFile("dir1");
+        dir2 = (Directory) root.findFile("dir2");
+        assertNotNull(dir1.findFile("doc1"));
+        assertNull(((Directory) dir1.findFile("sub")).findFile("doc2"));
+        assertNotNull(dir2.findFile("doc3"));
+        assertNotNull(((Directory) dir2.findFile("sub")).findFile("doc2"));
+        assertEquals(134, dir1.getSize());
+        assertEquals(188, dir2.getSize());
+        assertEquals(362, root.getSize());
+        assertEquals(root.getSize(), root.recomputeSize());
+        assertFalse(commandProcessor.flag);
+    }
+
+    @Test
+    public void testCopyDocument() {
+        commandProcessor.executeCommand("newDoc doc1 txt content");
+        commandProcessor.executeCommand("copy doc1 $ doc2");
+        commandProcessor.executeCommand("rename doc2 doc3");
+        assertNotNull(cvfs.getWorkingDirectory().findFile("doc1"));
+        assertEquals("content", ((Document) cvfs.getWorkingDirectory().findFile("doc3")).getContent());
+        commandProcessor.executeCommand("copy doc1 $");
+        assertTrue(commandProcessor.flag);
+    }
+
+    @Test
+    public void testCopyNotEnoughSpace() {
+        commandProcessor.executeCommand("newDisk 150");
+        commandProcessor.executeCommand("newDoc doc1 txt content");
+        commandProcessor.executeCommand("copy doc1 $ doc2");
+        commandProcessor.executeCommand("copy doc1 $ doc3");
+        assertTrue(commandProcessor.flag);
+        assertNotNull(cvfs.getWorkingDirectory().findFile("doc2"));
+        assertNull(cvfs.getWorkingDirectory().findFile("doc3"));
+    }
+
+    @Test
+    public void testMultiSearch() {
+        commandProcessor.executeCommand("newDoc doc1 txt content");
+        commandProcessor.executeCommand("newDir dir1");
+        commandProcessor.executeCommand("changeDir dir1");
+        commandProcessor.executeCommand("newDoc doc2 java content");
+        commandProcessor.executeCommand("changeDir $");
+        commandProcessor.executeCommand("newSimpleCri AA name contains \"doc\"");
+        commandProcessor.executeCommand("newSimpleCri BB type equals \"txt\"");
+        commandProcessor.executeCommand("newBinaryCri CC AA && BB");
+        commandProcessor.executeCommand("newNegation DD AA");
+        outputStreamCaptor.reset();
+        commandProcessor.executeCommand("multiSearch CC DD");
+        String expectedOutput = "Criteria CC:\n" +
+                "doc1 (txt) 54 bytes\n" +
+                "Total files found: 1\n" +
+                "Total size: 54 bytes\n" +
+                "Criteria DD:\n" +
+                "dir1 (Directory) 94 bytes\n" +
+                "Total files found: 1\n" +
+                "Total size: 94 bytes";
+        assertEquals(expectedOutput, outputStreamCaptor.toString().trim());
+    }
+
+    @Test
+    public void testMultiSearchSharesSubCriteria() {
+        commandProcessor.executeCommand("newDoc doc1 txt content");
+        commandProcessor.executeCommand("newDoc doc2 txt content");
+        commandProcessor.executeCommand("newSimpleCri AA name contains \"doc\"");
+        commandProcessor.executeCommand("newSimpleCri BB type equals \"txt\"");
+        commandProcessor.executeCommand("newBinaryCri CC AA && BB");
+        commandProcessor.executeCommand("newBinaryCri DD AA || BB");
+        commandProcessor.executeCommand("stats reset");
+        commandProcessor.executeCommand("multiSearch AA BB CC DD");
+        assertEquals(4, CommandStats.global().getCriteriaEvaluations());
+        assertEquals(2, CommandStats.global().getNodesVisited());
+    }
+
+    @Test
+    public void testMultiSearchUnknownCriteria() {
+        commandProcessor.executeCommand("multiSearch XX");
+        assertTrue(commandProcessor.flag);
+    }
+
+    @Test
+    public void testRSearchPrunesSubtrees() {
+        commandProcessor.executeCommand("newDir txts");
+        commandProcessor.executeCommand("changeDir txts");
+        commandProcessor.executeCommand("newDoc a1 txt aaaa");
+        commandProcessor.executeCommand("newDoc a2 txt aaaa");
+        commandProcessor.executeCommand("changeDir $");
+        commandProcessor.executeCommand("newDir code");
+        commandProcessor.executeCommand("changeDir code");
+        commandProcessor.executeCommand("newDoc Main java aaaa");
+        commandProcessor.executeCommand("changeDir $");
+        commandProcessor.executeCommand("newSimpleCri JV type equals \"java\"");
+        commandProcessor.executeCommand("stats reset");
+        outputStreamCaptor.reset();
+        commandProcessor.executeCommand("rSearch JV");
+        String expectedOutput = "Main (java) 48 bytes\n" +
+                "Total number of file/directory: 0\n" +
+                "Total size: 0 bytes";
+        assertEquals(expectedOutput, outputStreamCaptor.toString().trim());
+        //txts is never entered
+        assertEquals(3, CommandStats.global().getNodesVisited());
+
+        //the summary shrinks again once the last java document is gone
+        commandProcessor.executeCommand("changeDir code");
+        commandProcessor.executeCommand("delete Main");
+        commandProcessor.executeCommand("changeDir $");
+        commandProcessor.executeCommand("stats reset");
+        commandProcessor.executeCommand("rSearch JV");
+        assertEquals(2, CommandStats.global().getNodesVisited());
+    }
+
+    @Test
+    public void testDiskStatsFollowChanges() {
+        commandProcessor.executeCommand("newDisk 100000");
+        VirtualDisk disk = cvfs.getCurrentDisk();
+        disk.getStats();
+        commandProcessor.executeCommand("newDir a");
+        commandProcessor.executeCommand("changeDir a");
+        commandProcessor.executeCommand("newDir b");
+        commandProcessor.executeCommand("newDoc d1 txt " + "x".repeat(100));
+        commandProcessor.executeCommand("changeDir b");
+        commandProcessor.executeCommand("newDoc d2 java hello");
+        commandProcessor.executeCommand("newDoc d3 css body");
+        commandProcessor.executeCommand("appendDoc d2 " + "y".repeat(300));
+        commandProcessor.executeCommand("changeDir $");
+        commandProcessor.executeCommand("copy a $ c");
+        commandProcessor.executeCommand("changeDir $/root/a/b");
+        commandProcessor.executeCommand("move d3 $/root/c");
+        commandProcessor.executeCommand("delete d2");
+        commandProcessor.executeCommand("changeDir $");
+        commandProcessor.executeCommand("newSimpleCri BG size > 200");
+        commandProcessor.executeCommand("rDeleteWhere BG");
+        assertFalse(commandProcessor.flag);
+        //kept up to date all along, never dropped
+        assertTrue(disk.hasStats());
+        assertSameStats(DiskStats.of(disk.getRootDirectory()), disk.getStats());
+    }
+
+    @Test
+    public void testDiskStatsCopyFromAggregates() {
+        commandProcessor.executeCommand("newDisk 100000");
+        VirtualDisk disk = cvfs.getCurrentDisk();
+        disk.getStats();
+        commandProcessor.executeCommand("newDir a");
+        commandProcessor.executeCommand("changeDir a");
+        commandProcessor.executeCommand("newDir b");
+        commandProcessor.executeCommand("newDoc d1 txt " + "x".repeat(100));
+        commandProcessor.executeCommand("changeDir b");
+        commandProcessor.executeCommand("newDoc d2 java hello");
+        commandProcessor.executeCommand("newDoc d3 css body");
+        commandProcessor.executeCommand("changeDir $");
+        commandProcessor.executeCommand("copy a $ c");
+        commandProcessor.executeCommand("copy a $ e");
+        commandProcessor.executeCommand("changeDir $/root/c/b");
+        commandProcessor.executeCommand("delete d3");
+        commandProcessor.executeCommand("changeDir $");
+        assertFalse(commandProcessor.flag);
+
+        //the per-type counts of the directories follow copies and deletes
+        Directory root = disk.getRootDirectory();
+        assertArrayEquals(new int[]{3, 3, 0, 2}, root.getDocumentTypes());
+        assertArrayEquals(new int[]{1, 1, 0, 0}, ((Directory) root.findFile("c")).getDocumentTypes());
+        //counts and types are exact, the sizes below a copy only estimated
+        DiskStats expected = DiskStats.of(root);
+        DiskStats actual = disk.getStats();
+        assertEquals(expected.getDirectories(), actual.getDirectories());
+        assertEquals(expected.getDocuments(), actual.getDocuments());
+        for (String type : List.of("Directory", "txt", "java", "html", "css")) {
+            assertEquals(expected.typeFraction(type), actual.typeFraction(type), 0);
+        }
+        for (int n = 0; n <= 2048; n += 8) {
+            assertEquals(expected.sizeFraction("<=", n), actual.sizeFraction("<=", n), 0.35);
+        }
+    }
+
+    private static void assertSameStats(DiskStats expected, DiskStats actual) {
+        assertEquals(expected.getDirectories(), actual.getDirectories());
+        assertEquals(expected.getDocuments(), actual.getDocuments());
+        for (String type : List.of("Directory", "txt", "java", "html", "css")) {
+            assertEquals(expected.typeFraction(type), actual.typeFraction(type), 0);
+        }
+        for (int n = 0; n <= 2048; n += 8) {
+            assertEquals(expected.sizeFraction("<=", n), actual.sizeFraction("<=", n), 1e-12);
+        }
+    }
+
+    @Test
+    public void testSummariesFollowRenameAndDelete() {
+        commandProcessor.executeCommand("newDir a");
+        commandProcessor.executeCommand("changeDir a");
+        commandProcessor.executeCommand("newDir b");
+        commandProcessor.executeCommand("changeDir b");
+        commandProcessor.executeCommand("newDoc doc txt aaaa");
+        //the new name reaches the summaries of every ancestor
+        commandProcessor.executeCommand("rename doc zz1");
+        commandProcessor.executeCommand("changeDir $");
+        commandProcessor.executeCommand("newSimpleCri ZZ name contains \"zz\"");
+        outputStreamCaptor.reset();
+        commandProcessor.executeCommand("rSearch ZZ");
+        assertTrue(outputStreamCaptor.toString().startsWith("\t\tzz1 (txt) 48 bytes\n"));
+
+        //the directory it left is exact again, its ancestors still cover it
+        commandProcessor.executeCommand("changeDir $/root/a/b");
+        commandProcessor.executeCommand("delete zz1");
+        Directory b = cvfs.getWorkingDirectory();
+        Directory a = b.getParent();
+        assertEquals(0, b.getNameMask() & Directory.nameMask("zz"));
+        assertEquals(-1, b.getMaxDocSize());
+        assertEquals(b.getNameMask(), a.getNameMask() & b.getNameMask());
+        assertEquals(b.getTypeMask(), a.getTypeMask() & b.getTypeMask());
+        commandProcessor.executeCommand("changeDir $");
+        outputStreamCaptor.reset();
+        commandProcessor.executeCommand("rSearch ZZ");
+        assertTrue(outputStreamCaptor.toString().startsWith("Total number of file/directory: 0"));
+    }
+
+    @Test
+    public void testRSearchPruningComposite() {
+        commandProcessor.executeCommand("newDir big");
+        commandProcessor.executeCommand("changeDir big");
+        commandProcessor.executeCommand("newDoc b1 txt aaaaaaaaaaaaaaaaaaaa");
+        commandProcessor.executeCommand("newDoc b2 txt aaaaaaaaaaaaaaaaaaaa");
+        commandProcessor.executeCommand("changeDir $");
+        commandProcessor.executeCommand("newDir small");
+        commandProcessor.executeCommand("changeDir small");
+        commandProcessor.executeCommand("newDoc s1 txt a");
+        commandProcessor.executeCommand("changeDir $");
+        commandProcessor.executeCommand("newSimpleCri SZ size > 60");
+        commandProcessor.executeCommand("newNegation NS SZ");
+        commandProcessor.executeCommand("newBinaryCri AN SZ && IsDocument");
+        commandProcessor.executeCommand("stats reset");
+        outputStreamCaptor.reset();
+        commandProcessor.executeCommand("rSearch AN");
+        String expectedOutput = "b1 (txt) 80 bytes\n" +
+                "\tb2 (txt) 80 bytes\n" +
+                "Total number of file/directory: 0\n" +
+                "Total size: 0 bytes";
+        assertEquals(expectedOutput, outputStreamCaptor.toString().trim());
+        assertEquals(4, CommandStats.global().getNodesVisited());
+
+        //big cannot match and small must match entirely, only the two directories are evaluated
+        commandProcessor.executeCommand("stats reset");
+        outputStreamCaptor.reset();
+        commandProcessor.executeCommand("rSearch NS");
+        expectedOutput = "s1 (txt) 42 bytes\n" +
+                "Total number of file/directory: 0\n" +
+                "Total size: 0 bytes";
+        assertEquals(expectedOutput, outputStreamCaptor.toString().trim());
+        assertEquals(2, CommandStats.global().getCriteriaEvaluations());
+    }
+
+    @Test
+    public void testRSearchTop() {
+        commandProcessor.executeCommand("newDoc small txt a");
+        commandProcessor.executeCommand("newDoc big txt aaaaaaaaaa");
+        commandProcessor.executeCommand("newDir dir1");
+        commandProcessor.executeCommand("changeDir dir1");
+        commandProcessor.executeCommand("newDoc big txt aaaaaaaaaa");
+        commandProcessor.executeCommand("newDoc mid txt aaaaa");
+        commandProcessor.executeCommand("changeDir $");
+        commandProcessor.executeCommand("newSimpleCri AA name contains \"\"");
+        outputStreamCaptor.reset();
+        commandProcessor.executeCommand("rSearch IsDocument top 3");
+        //equal sizes are ordered by path
+        String expectedOutput = "big (txt) 60 bytes\n" +
+                "dir1/big (txt) 60 bytes\n" +
+                "dir1/mid (txt) 50 bytes\n" +
+                "Total number of file/directory: 3\n" +
+                "Total size: 170 bytes";
+        assertEquals(expectedOutput, outputStreamCaptor.toString().trim());
+
+        outputStreamCaptor.reset();
+        commandProcessor.executeCommand("search AA orderBy name");
+        expectedOutput = "big (txt) 60 bytes\n" +
+                "dir1 (Directory) 150 bytes\n" +
+                "small (txt) 42 bytes\n" +
+                "Total files found: 3\n" +
+                "Total size: 252 bytes";
+        assertEquals(expectedOutput, outputStreamCaptor.toString().trim());
+
+        outputStreamCaptor.reset();
+        commandProcessor.executeCommand("rSearch IsDocument orderBy size asc top 1");
+        expectedOutput = "small (txt) 42 bytes\n" +
+                "Total number of file/directory: 1\n" +
+                "Total size: 42 bytes";
+        assertEquals(expectedOutput, outputStreamCaptor.toString().trim());
+    }
+
+    @Test
+    public void testRSearchTopSkipsSmallSubtrees() {
+        commandProcessor.executeCommand("newDoc big1 txt aaaaaaaaaa");
+        commandProcessor.executeCommand("newDoc big2 txt aaaaaaaaaa");
+        commandProcessor.executeCommand("newDir tiny");
+        commandProcessor.executeCommand("changeDir tiny");
+        commandProcessor.executeCommand("newDoc t1 txt a");
+        commandProcessor.executeCommand("newDoc t2 txt a");
+        commandProcessor.executeCommand("changeDir $");
+        commandProcessor.executeCommand("stats reset");
+        commandProcessor.executeCommand("rSearch IsDocument top 2");
+        //no document below tiny can beat the two 60 byte ones
+        assertEquals(3, CommandStats.global().getNodesVisited());
+    }
+
+    @Test
+    public void testSearchOrderInvalid() {
+        commandProcessor.executeCommand("rSearch IsDocument top 0");
+        assertTrue(commandProcessor.flag);
+        commandProcessor.flag = false;
+        commandProcessor.executeCommand("search IsDocument orderBy type");
+        assertTrue(commandProcessor.flag);
+        commandProcessor.flag = false;
+        commandProcessor.executeCommand("search IsDocument top 3 extra");
+        assertTrue(commandProcessor.flag);
+    }
+
+    @Test
+    public void testWatch() {
+        commandProcessor.executeCommand("newDoc old txt content");
+        commandProcessor.executeCommand("newDir dir1");
+        commandProcessor.executeCommand("newSimpleCri TX type equals \"txt\"");
+        outputStreamCaptor.reset();
+        commandProcessor.executeCommand("watch TX");
+        assertEquals("Watching TX: 1 matching files.", outputStreamCaptor.toString().trim());
+
+        commandProcessor.executeCommand("changeDir dir1");
+        commandProcessor.executeCommand("newDoc a txt content");
+        commandProcessor.executeCommand("newDoc b java content");
+        commandProcessor.executeCommand("newDoc tmp txt content");
+        commandProcessor.executeCommand("delete tmp");
+        commandProcessor.executeCommand("changeDir $");
+        commandProcessor.executeCommand("rename dir1 dir2");
+        commandProcessor.executeCommand("delete old");
+        outputStreamCaptor.reset();
+        commandProcessor.executeCommand("changes TX");
+        String expectedOutput = "+ dir2/a\n" +
+                "- old\n" +
+                "Matching files: 1";
+        assertEquals(expectedOutput, outputStreamCaptor.toString().trim());
+
+        outputStreamCaptor.reset();
+        commandProcessor.executeCommand("changes TX");
+        assertEquals("Matching files: 1", outputStreamCaptor.toString().trim());
+    }
+
+    @Test
+    public void testWatchDirectorySizes() {
+        commandProcessor.executeCommand("newDir dir1");
+        commandProcessor.executeCommand("newSimpleCri SZ size > 100");
+        commandProcessor.executeCommand("watch SZ");
+        commandProcessor.executeCommand("changeDir dir1");
+        commandProcessor.executeCommand("newDoc a txt aaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaa");
+        outputStreamCaptor.reset();
+        commandProcessor.executeCommand("changes SZ");
+        //dir1 grew past 100 bytes as well
+        String expectedOutput = "+ dir1/a\n" +
+                "+ dir1\n" +
+                "Matching files: 2";
+        assertEquals(expectedOutput, outputStreamCaptor.toString().trim());
+    }
+
+    @Test
+    public void testWatchListenerIsIncremental() {
+        commandProcessor.executeCommand("newDisk 10000");
+        for (int i = 0; i < 20; i++) {
+            commandProcessor.executeCommand("newDoc d" + i + " txt content");
+        }
+        commandProcessor.executeCommand("newSimpleCri JV type equals \"java\"");
+        commandProcessor.executeCommand("watch JV");
+        List<String> batches = new ArrayList<>();
+        cvfs.getCurrentDisk().getWatch("JV").subscribe((added, removed) -> batches.add(added + " " + removed));
+
+        commandProcessor.executeCommand("stats reset");
+        commandProcessor.executeCommand("begin");
+        commandProcessor.executeCommand("newDoc x java content");
+        commandProcessor.executeCommand("newDoc y java content");
+        commandProcessor.executeCommand("delete d0");
+        commandProcessor.executeCommand("commit");
+        //only the two new files were evaluated, not the whole tree
+        assertEquals(2, CommandStats.global().getCriteriaEvaluations());
+        assertEquals(List.of("[x, y] []"), batches);
+    }
+
+    @Test
+    public void testWatchUnknown() {
+        commandProcessor.executeCommand("changes TX");
+        assertTrue(commandProcessor.flag);
+    }
+
+    @Test
+    public void testSnapshotDiff() {
+        commandProcessor.executeCommand("newDir A");
+        commandProcessor.executeCommand("newDir B");
+        commandProcessor.executeCommand("changeDir A");
+        commandProcessor.executeCommand("newDoc x txt c");
+        commandProcessor.executeCommand("newDoc y txt c");
+        commandProcessor.executeCommand("changeDir $");
+        commandProcessor.executeCommand("snapshot s1");
+        commandProcessor.executeCommand("changeDir A");
+        commandProcessor.executeCommand("rename x xx");
+        commandProcessor.executeCommand("delete y");
+        commandProcessor.executeCommand("newDoc w java cccc");
+        commandProcessor.executeCommand("changeDir $");
+        outputStreamCaptor.reset();
+        commandProcessor.executeCommand("diff s1 .");
+        String expectedOutput = "Renamed: A/x -> A/xx\n" +
+                "Removed: A/y (txt) 42 bytes\n" +
+                "Added: A/w (java) 48 bytes\n" +
+                "Total changes: 3";
+        assertEquals(expectedOutput, outputStreamCaptor.toString().trim());
+
+        //B was never written, it is still shared and not looked into
+        VirtualDisk disk = cvfs.getCurrentDisk();
+        SnapshotDiff diff = SnapshotDiff.of(disk.getSnapshot("s1"), disk.getRootDirectory());
+        assertEquals(2, diff.getDirectoriesCompared());
+    }
+
+    @Test
+    public void testRollback() {
+        commandProcessor.executeCommand("newDir A");
+        commandProcessor.executeCommand("changeDir A");
+        commandProcessor.executeCommand("newDoc x txt c");
+        commandProcessor.executeCommand("snapshot s1");
+        commandProcessor.executeCommand("delete x");
+        commandProcessor.executeCommand("newDoc big txt cccccccccc");
+        commandProcessor.executeCommand("rollback s1");
+        assertEquals("$/root", cvfs.path());
+        assertEquals(122, cvfs.getCurrentDisk().getRootDirectory().getSize());
+        outputStreamCaptor.reset();
+        commandProcessor.executeCommand("diff s1 .");
+        assertEquals("Total changes: 0", outputStreamCaptor.toString().trim());
+
+        //changes after the rollback leave the snapshot alone
+        commandProcessor.executeCommand("changeDir A");
+        commandProcessor.executeCommand("delete x");
+        commandProcessor.executeCommand("changeDir $");
+        outputStreamCaptor.reset();
+        commandProcessor.executeCommand("diff s1 .");
+        String expectedOutput = "Removed: A/x (txt) 42 bytes\n" +
+                "Total changes: 1";
+        assertEquals(expectedOutput, outputStreamCaptor.toString().trim());
+    }
+
+    @Test
+    public void testSnapshotInvalid() {
+        commandProcessor.executeCommand("snapshot s1");
+        commandProcessor.executeCommand("snapshot s1");
+        assertTrue(commandProcessor.flag);
+        commandProcessor.flag = false;
+        commandProcessor.executeCommand("rollback s2");
+        assertTrue(commandProcessor.flag);
+    }
+
+    @Test
+    public void testCompressedImageRoundTrip() throws Exception {
+        String image = java.nio.file.Files.createTempDirectory("cvfs-image").resolve("disk").toString();
+        commandProcessor.executeCommand("newDisk 100000");
+        commandProcessor.executeCommand("newDir dir1");
+        commandProcessor.executeCommand("changeDir dir1");
+        commandProcessor.executeCommand("newDoc doc1 txt " + "abc".repeat(2000));
+        commandProcessor.executeCommand("changeDir $");
+        commandProcessor.executeCommand("newDoc doc2 java hello");
+        //a copy keeps the id of doc2 but not its content
+        commandProcessor.executeCommand("copy doc2 $ doc3");
+        commandProcessor.executeCommand("appendDoc doc3 _world");
+        commandProcessor.executeCommand("snapshot s1");
+        commandProcessor.executeCommand("save " + image);
+        cvfs.awaitSaves();
+        //the repetitive content compresses well
+        assertTrue(new java.io.File(image + ".dat").length() < 6000);
+
+        commandProcessor.executeCommand("delete doc2");
+        commandProcessor.executeCommand("load " + image);
+        assertFalse(commandProcessor.flag);
+        Directory root = cvfs.getCurrentDisk().getRootDirectory();
+        assertEquals("hello", ((Document) root.findFile("doc2")).getContent());
+        Document doc1 = (Document) ((Directory) root.findFile("dir1")).findFile("doc1");
+        assertEquals("abc".repeat(2000), doc1.getContent());
+        //the snapshot still shares its documents with the live tree
+        assertSame(doc1, ((Directory) cvfs.getCurrentDisk().getSnapshot("s1").findFile("dir1")).findFile("doc1"));
+
+        try (java.io.RandomAccessFile file = new java.io.RandomAccessFile(image + ".dat", "r")) {
+            assertEquals("hello", DiskImage.readContent(file, (Document) root.findFile("doc2")));
+            assertEquals(root.findFile("doc2").getId(), root.findFile("doc3").getId());
+            assertEquals("hello_world", DiskImage.readContent(file, (Document) root.findFile("doc3")));
+        }
+    }
+
+    @Test
+    public void testLoadBaselineImage() throws Exception {
+        commandProcessor.executeCommand("load " + baselineImage());
+        assertFalse(commandProcessor.flag);
+        //saved while in dir1
+        assertEquals("dir1", cvfs.getWorkingDirectory().getName());
+        commandProcessor.executeCommand("changeDir $");
+        outputStreamCaptor.reset();
+        commandProcessor.executeCommand("rList");
+        assertEquals(String.join(System.lineSeparator(), "doc1 (txt) 50 bytes", "dir1 (Directory) 176 bytes",
+                "\tdoc2 (java) 50 bytes", "\tdir2 (Directory) 86 bytes", "\t\tdoc3 (css) 46 bytes",
+                "Total number of files/directory: 2", "Total size: 226"), outputStreamCaptor.toString().trim());
+        Document doc3 = (Document) ((Directory) ((Directory) cvfs.getCurrentDisk().getRootDirectory().findFile("dir1")).findFile("dir2")).findFile("doc3");
+        assertEquals("abc", doc3.getContent());
+
+        //and the loaded disk takes new changes
+        commandProcessor.executeCommand("newSimpleCri cc type equals \"java\"");
+        outputStreamCaptor.reset();
+        commandProcessor.executeCommand("rSearch cc");
+        assertTrue(outputStreamCaptor.toString().contains("doc2"));
+        commandProcessor.executeCommand("appendDoc doc1 _more");
+        assertFalse(commandProcessor.flag);
+    }
+
+    @Test
+    public void testBaselineImageAggregates() throws Exception {
+        commandProcessor.executeCommand("load " + baselineImage());
+        //the image has no sizes or entry counts, readObject sums them up again
+        Directory root = cvfs.getCurrentDisk().getRootDirectory();
+        Directory dir1 = (Directory) root.findFile("dir1");
+        Directory dir2 = (Directory) dir1.findFile("dir2");
+        assertEquals(266, root.getSize());
+        assertEquals(root.recomputeSize(), root.getSize());
+        assertEquals(176, dir1.getSize());
+        assertEquals(5, root.getEntryCount());
+        assertEquals(3, dir1.getEntryCount());
+        assertEquals(1, dir2.getEntryCount());
+        assertEquals(-1, dir1.getQuotaBytes());
+        assertEquals(-1, dir1.getQuotaEntries());
+        assertTrue(dir2.hasDocuments());
+
+        //and they are kept up to date from there
+        commandProcessor.executeCommand("newDoc doc4 txt xy");
+        assertEquals(176 + 44, dir1.getSize());
+        assertEquals(4, dir1.getEntryCount());
+        commandProcessor.executeCommand("setQuota . 230 10");
+        outputStreamCaptor.reset();
+        commandProcessor.executeCommand("newDoc doc5 txt xy");
+        assertEquals("Quota of directory dir1 exceeded.", outputStreamCaptor.toString().trim());
+    }
+
+    // A disk saved by the first version of the CVFS (plain serialization, before any
+    // serialVersionUID was declared): doc1, dir1/doc2, dir1/dir2/doc3, saved in dir1.
+    private static final String BASELINE_IMAGE =
+            "rO0ABXNyACpoay5lZHUucG9seXUuY29tcC5jb21wMjAyMS5jdmZzLm1vZGVsLkNWRlPVEZ7OGGJNAwIAA0wAC2NyaXRNYW5h" +
+            "Z2VydAA3TGhrL2VkdS9wb2x5dS9jb21wL2NvbXAyMDIxL2N2ZnMvbW9kZWwvQ3JpdGVyaWFNYW5hZ2VyO0wAC2N1cnJlbnRE" +
+            "aXNrdAAzTGhrL2VkdS9wb2x5dS9jb21wL2NvbXAyMDIxL2N2ZnMvbW9kZWwvVmlydHVhbERpc2s7TAAQd29ya2luZ0RpcmVj" +
+            "dG9yeXQAMUxoay9lZHUvcG9seXUvY29tcC9jb21wMjAyMS9jdmZzL21vZGVsL0RpcmVjdG9yeTt4cHNyADVoay5lZHUucG9s" +
+            "eXUuY29tcC5jb21wMjAyMS5jdmZzLm1vZGVsLkNyaXRlcmlhTWFuYWdlcvr38qLDYbXNAgACTAAGY21OYW1ldAASTGphdmEv" +
+            "bGFuZy9TdHJpbmc7TAAHY3JpTGlzdHQAEExqYXZhL3V0aWwvTGlzdDt4cHQAB2RlZmF1bHRzcgATamF2YS51dGlsLkFycmF5" +
+            "TGlzdHiB0h2Zx2GdAwABSQAEc2l6ZXhwAAAAA3cEAAAAA3NyADRoay5lZHUucG9seXUuY29tcC5jb21wMjAyMS5jdmZzLm1v" +
+            "ZGVsLlNpbXBsZUNyaXRlcmlhOHH4EKlFL4QCAANMAAhhdHRyTmFtZXEAfgAGTAACb3BxAH4ABkwAA3ZhbHEAfgAGeHB0AApJ" +
+            "c0RvY3VtZW50dAACaXN0AAhEb2N1bWVudHNxAH4ADHQABHNpemV0AAE+dAACNDVzcQB+AAx0AAR0eXBldAAGZXF1YWxzdAAG" +
+            "ImphdmEieHNyADFoay5lZHUucG9seXUuY29tcC5jb21wMjAyMS5jdmZzLm1vZGVsLlZpcnR1YWxEaXNroc8F2rQP6EgCAANJ" +
+            "AAdtYXhTaXplTAAFY3JpdE1xAH4AAUwADXJvb3REaXJlY3RvcnlxAH4AA3hwAAAnEHNxAH4ABXEAfgAJc3EAfgAKAAAAAXcE" +
+            "AAAAAXNxAH4ADHEAfgAOcQB+AA9xAH4AEHhzcgAvaGsuZWR1LnBvbHl1LmNvbXAuY29tcDIwMjEuY3Zmcy5tb2RlbC5EaXJl" +
+            "Y3RvcnmRWo7sovpkjwIAAUwACGNvbnRlbnRzcQB+AAd4cgAqaGsuZWR1LnBvbHl1LmNvbXAuY29tcDIwMjEuY3Zmcy5tb2Rl" +
+            "bC5GaWxlbSPa24omW9ICAAFMAARuYW1lcQB+AAZ4cHQABHJvb3RzcQB+AAoAAAACdwQAAAACc3IALmhrLmVkdS5wb2x5dS5j" +
+            "b21wLmNvbXAyMDIxLmN2ZnMubW9kZWwuRG9jdW1lbnSdpi2wAnomsQIAAkwAB2NvbnRlbnRxAH4ABkwABHR5cGVxAH4ABnhx" +
+            "AH4AH3QABGRvYzF0AAVoZWxsb3QAA3R4dHNxAH4AHnQABGRpcjFzcQB+AAoAAAACdwQAAAACc3EAfgAjdAAEZG9jMnQABXdv" +
+            "cmxkdAAEamF2YXNxAH4AHnQABGRpcjJzcQB+AAoAAAABdwQAAAABc3EAfgAjdAAEZG9jM3QAA2FiY3QAA2Nzc3h4eHEAfgAo";
+
+    //the baseline image in a temporary file, as the argument of load
+    private static String baselineImage() throws IOException {
+        java.nio.file.Path dir = java.nio.file.Files.createTempDirectory("cvfs-baseline");
+        java.nio.file.Files.write(dir.resolve("disk.dat"), java.util.Base64.getDecoder().decode(BASELINE_IMAGE));
+        return dir.resolve("disk").toString();
+    }
+
+    @Test
+    public void testCompressedImageChecksum() throws Exception {
+        String image = java.nio.file.Files.createTempDirectory("cvfs-image").resolve("disk").toString();
+        commandProcessor.executeCommand("newDoc doc1 txt content");
+        commandProcessor.executeCommand("save " + image);
+        cvfs.awaitSaves();
+        try (java.io.RandomAccessFile file = new java.io.RandomAccessFile(image + ".dat", "rw")) {
+            file.seek(10);
+            int b = file.read();
+            file.seek(10);
+            file.write(b ^ 0xFF);
+        }
+        outputStreamCaptor.reset();
+        commandProcessor.executeCommand("load " + image);
+        assertTrue(outputStreamCaptor.toString().contains("checksum mismatch"));
+    }
+
+    @Test
+    public void testBackgroundSave() throws Exception {
+        java.nio.file.Path dir = java.nio.file.Files.createTempDirectory("cvfs-save");
+        String image = dir.resolve("disk").toString();
+        commandProcessor.executeCommand("newDir dir1");
+        commandProcessor.executeCommand("changeDir dir1");
+        commandProcessor.executeCommand("newDoc doc1 txt content");
+        commandProcessor.executeCommand("save " + image);
+        //changes made while the image is written are not part of it
+        commandProcessor.executeCommand("delete doc1");
+        commandProcessor.executeCommand("newDoc doc2 txt content");
+        cvfs.awaitSaves();
+        assertTrue(outputStreamCaptor.toString().contains("VirDisk saved to: " + image + ".dat"));
+        //only the image itself, the temp file was renamed
+        try (java.util.stream.Stream<java.nio.file.Path> files = java.nio.file.Files.list(dir)) {
+            assertEquals(1, files.count());
+        }
+
+        commandProcessor.executeCommand("load " + image);
+        assertEquals("$/root/dir1", cvfs.path());
+        assertNotNull(cvfs.getWorkingDirectory().findFile("doc1"));
+        assertNull(cvfs.getWorkingDirectory().findFile("doc2"));
+        commandProcessor.executeCommand("changeDir ..");
+        commandProcessor.executeCommand("newDoc doc3 txt content");
+        assertFalse(commandProcessor.flag);
+    }
+
+    @Test
+    public void testCompactTreeMatchesObjectTree() {
+        commandProcessor.executeCommand("newDoc doc1 txt content");
+        commandProcessor.executeCommand("newDir dir1");
+        commandProcessor.executeCommand("changeDir dir1");
+        commandProcessor.executeCommand("newDoc doc2 java hello");
+        commandProcessor.executeCommand("newDir dir2");
+        commandProcessor.executeCommand("changeDir $");
+        Directory root = cvfs.getCurrentDisk().getRootDirectory();
+        outputStreamCaptor.reset();
+        root.rlist();
+        String expectedOutput = outputStreamCaptor.toString();
+
+        CompactTree tree = CompactTree.from(root);
+        assertEquals(root.getEntryCount(), tree.entryCount());
+        assertEquals(root.getSize(), tree.getSize(CompactTree.ROOT));
+        outputStreamCaptor.reset();
+        tree.rlist(CompactTree.ROOT);
+        assertEquals(expectedOutput, outputStreamCaptor.toString());
+
+        int dir1 = tree.find(CompactTree.ROOT, "dir1");
+        assertEquals("hello", tree.content(tree.find(dir1, "doc2")));
+        outputStreamCaptor.reset();
+        tree.toDirectory().rlist();
+        assertEquals(expectedOutput, outputStreamCaptor.toString());
+    }
+
+    @Test
+    public void testCompactTreeUpdates() {
+        CompactTree tree = new CompactTree();
+        int dir = tree.addDirectory(CompactTree.ROOT, "dir1");
+        tree.addDocument(dir, "a", "txt", "xx");
+        tree.addDocument(dir, "b", "css", "");
+        assertEquals(40 + 40 + 44 + 40, tree.getSize(CompactTree.ROOT));
+        tree.rename(dir, "a", "c");
+        assertEquals(-1, tree.find(dir, "a"));
+        assertTrue(tree.remove(CompactTree.ROOT, "dir1"));
+        assertEquals(40, tree.getSize(CompactTree.ROOT));
+        assertEquals(0, tree.entryCount());
+        //freed nodes are reused
+        assertEquals(dir, tree.addDirectory(CompactTree.ROOT, "dir2"));
+        try {
+            tree.addDirectory(CompactTree.ROOT, "dir2");
+            fail();
+        } catch (IllegalArgumentException e) {
+            assertEquals("The filename has already existed", e.getMessage());
+        }
+    }
+
+    @Test
+    public void testCompactDiskCommands() {
+        String[] commands = {"newDoc doc1 txt content", "newDir dir1", "changeDir dir1", "newDoc doc2 java hello",
+                "newDir dir2", "newDoc doc1 txt again", "newDoc bad pdf x", "changeDir doc2", "changeDir dir2",
+                "changeDir ..", "rename doc2 doc3", "rename none doc4", "changeDir $/root/dir1/dir2", "changeDir $/root/x",
+                "changeDir $", "list", "rList", "delete none", "newDoc big txt " + "x".repeat(400),
+                "changeDir dir1", "delete dir2", "changeDir ..", "changeDir ..", "rList"};
+        commandProcessor.executeCommand("newDisk 1000");
+        outputStreamCaptor.reset();
+        for (String command : commands) {
+            commandProcessor.executeCommand(command);
+        }
+        String expectedOutput = outputStreamCaptor.toString();
+
+        commandProcessor.executeCommand("newDisk 1000 compact");
+        assertTrue(cvfs.isCompact());
+        outputStreamCaptor.reset();
+        for (String command : commands) {
+            commandProcessor.executeCommand(command);
+        }
+        assertEquals(expectedOutput, outputStreamCaptor.toString());
+        assertEquals(cvfs.getCurrentDisk().getRootDirectory().getSize(),
+                cvfs.getCompactDisk().getTree().getSize(CompactTree.ROOT));
+
+        outputStreamCaptor.reset();
+        commandProcessor.executeCommand("search txt");
+        assertEquals("Error: search is not supported on a compact disk.\n", outputStreamCaptor.toString());
+        commandProcessor.executeCommand("newDisk 1000");
+        assertFalse(cvfs.isCompact());
+    }
+
+    @Test
+    public void testChangeDirPathCache() {
+        commandProcessor.executeCommand("newDir dir1");
+        commandProcessor.executeCommand("changeDir dir1");
+        commandProcessor.executeCommand("newDir dir2");
+        commandProcessor.executeCommand("changeDir $");
+        PathCache cache = cvfs.getCurrentDisk().getPathCache();
+        commandProcessor.executeCommand("changeDir $/root/dir1/dir2");
+        assertEquals("dir2", cvfs.getWorkingDirectory().getName());
+        long hits = cache.getHits();
+        commandProcessor.executeCommand("changeDir $");
+        commandProcessor.executeCommand("changeDir $/root/dir1/./dir2");
+        assertEquals(hits + 1, cache.getHits());
+        assertEquals("dir2", cvfs.getWorkingDirectory().getName());
+
+        //renaming an ancestor makes the cached entry stale
+        commandProcessor.executeCommand("changeDir $");
+        commandProcessor.executeCommand("rename dir1 dir3");
+        outputStreamCaptor.reset();
+        commandProcessor.executeCommand("changeDir $/root/dir1/dir2");
+        assertEquals("Error: Invalid directory.", outputStreamCaptor.toString().trim());
+        assertEquals("root", cvfs.getWorkingDirectory().getName());
+        commandProcessor.executeCommand("changeDir $/root/dir3/dir2");
+        assertEquals("dir2", cvfs.getWorkingDirectory().getName());
+    }
+
+    @Test
+    public void testChangeDirRelativePath() {
+        commandProcessor.executeCommand("newDir dir1");
+        commandProcessor.executeCommand("newDir dir4");
+        commandProcessor.executeCommand("changeDir dir1");
+        commandProcessor.executeCommand("newDir dir2");
+        commandProcessor.executeCommand("changeDir dir2/../../dir4");
+        assertEquals("dir4", cvfs.getWorkingDirectory().getName());
+        commandProcessor.executeCommand("changeDir ../dir1/dir2");
+        assertEquals("dir2", cvfs.getWorkingDirectory().getName());
+        outputStreamCaptor.reset();
+        commandProcessor.executeCommand("changeDir ../../..");
+        assertEquals("Error: Already at the root directory.", outputStreamCaptor.toString().trim());
+        assertEquals("dir2", cvfs.getWorkingDirectory().getName());
+    }
+
+    @Test
+    public void testSizeBatchMatchesSingleEvaluation() {
+        CriteriaManager critM = new CriteriaManager("batch");
+        List<File> files = new ArrayList<>();
+        for (int i = 0; i < 150; i++) {
+            files.add(new Document("f" + i, "txt", "x".repeat(i % 7)));
+        }
+        files.add(new Directory("d"));
+        String[] ops = {">", "<", ">=", "<=", "==", "!="};
+        for (int i = 0; i < ops.length; i++) {
+            new SimpleCriteria("s" + i, "size", ops[i], "46", critM);
+        }
+        new SimpleCriteria("n1", "name", "contains", "\"1\"", critM);
+        new NegationCriteria("n2", critM, "s0");
+        new BinaryCriteria("n3", "n2", "n1", critM, "&&");
+        new BinaryCriteria("n4", "n3", "s4", critM, "||");
+
+        FileBatch batch = new FileBatch(files);
+        long[] within = batch.emptyMask();
+        for (int i = 0; i < files.size(); i += 3) {
+            FileBatch.set(within, i);
+        }
+        long[] before = within.clone();
+        for (String name : new String[]{"s0", "s1", "s2", "s3", "s4", "s5", "n2", "n3", "n4"}) {
+            Criteria criteria = critM.searchCri(name);
+            long[] mask = criteria.evaluate(batch);
+            long[] some = criteria.evaluate(batch, within);
+            for (int i = 0; i < files.size(); i++) {
+                assertEquals(name + " on " + i, criteria.evaluate(files.get(i)), FileBatch.test(mask, i));
+                assertEquals(name + " within on " + i, i % 3 == 0 && criteria.evaluate(files.get(i)), FileBatch.test(some, i));
+            }
+            assertArrayEquals(name, before, within);
+        }
+        if (FileBatch.VECTOR) {
+            //the IntVector kernel agrees with the scalar loop, tail included
+            for (String op : ops) {
+                for (int value : new int[]{40, 46, 52}) {
+                    assertArrayEquals(op + " " + value, batch.compareSizes(op, value, false), batch.compareSizes(op, value, true));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testDeleteWhere() {
+        commandProcessor.executeCommand("newDoc doc1 txt aa");
+        commandProcessor.executeCommand("newDoc doc2 java bb");
+        commandProcessor.executeCommand("newDoc doc3 txt cc");
+        commandProcessor.executeCommand("newDir dir1");
+        commandProcessor.executeCommand("newSimpleCri AA type equals \"txt\"");
+        outputStreamCaptor.reset();
+        commandProcessor.executeCommand("deleteWhere AA");
+        assertEquals("Total files deleted: 2\nTotal size freed: 88 bytes",
+                outputStreamCaptor.toString().trim().replace("\r", ""));
+        Directory root = cvfs.getWorkingDirectory();
+        assertNull(root.findFile("doc1"));
+        assertNull(root.findFile("doc3"));
+        assertNotNull(root.findFile("doc2"));
+        assertEquals(40 + 44 + 40, root.getSize());
+        assertEquals(2, root.getEntryCount());
+    }
+
+    @Test
+    public void testRDeleteWhere() {
+        commandProcessor.executeCommand("newDisk 10000");
+        commandProcessor.executeCommand("newDoc doc1 txt aa");
+        commandProcessor.executeCommand("newDir dir1");
+        commandProcessor.executeCommand("changeDir dir1");
+        commandProcessor.executeCommand("newDoc doc2 txt bb");
+        commandProcessor.executeCommand("newDoc doc3 css bb");
+        commandProcessor.executeCommand("newDir dir2");
+        commandProcessor.executeCommand("changeDir dir2");
+        commandProcessor.executeCommand("newDoc doc4 txt cc");
+        commandProcessor.executeCommand("changeDir $");
+        commandProcessor.executeCommand("snapshot s1");
+        commandProcessor.executeCommand("newSimpleCri AA type equals \"txt\"");
+        outputStreamCaptor.reset();
+        commandProcessor.executeCommand("rDeleteWhere AA");
+        assertEquals("Total files deleted: 3\nTotal size freed: 132 bytes",
+                outputStreamCaptor.toString().trim().replace("\r", ""));
+        Directory root = cvfs.getWorkingDirectory();
+        Directory dir1 = (Directory) root.findFile("dir1");
+        assertNotNull(dir1.findFile("doc3"));
+        assertEquals(0, ((Directory) dir1.findFile("dir2")).getEntryCount());
+        assertEquals(40 + 40 + 44 + 40, root.getSize());
+        //the deletions are reported against the snapshot, which is unchanged
+        outputStreamCaptor.reset();
+        commandProcessor.executeCommand("diff s1 .");
+        assertTrue(outputStreamCaptor.toString().contains("Total changes: 3"));
+    }
+
+    @Test
+    public void testExplainReordersOperands() {
+        commandProcessor.executeCommand("newDisk 10000");
+        commandProcessor.executeCommand("newDoc doc1 txt aa");
+        commandProcessor.executeCommand("newDoc doc2 java bb");
+        commandProcessor.executeCommand("newDoc doc3 txt cc");
+        commandProcessor.executeCommand("newDir dir1");
+        commandProcessor.executeCommand("changeDir dir1");
+        commandProcessor.executeCommand("newDoc doc4 css dd");
+        commandProcessor.executeCommand("newDoc doc5 css dd");
+        commandProcessor.executeCommand("changeDir $");
+        commandProcessor.executeCommand("newSimpleCri AA name contains \"doc\"");
+        commandProcessor.executeCommand("newSimpleCri BB type equals \"java\"");
+        commandProcessor.executeCommand("newBinaryCri CC AA && BB");
+        outputStreamCaptor.reset();
+        commandProcessor.executeCommand("explain CC");
+        String expectedOutput = "Plan for CC: pruned traversal\n" +
+                "  AND (operands reordered) (selectivity 0.02, cost 1.33)\n" +
+                "    BB: type: equals \"java\" (selectivity 0.17, cost 1.00)\n" +
+                "    AA: name: contains \"doc\" (selectivity 0.10, cost 2.00)\n" +
+                "Rows visited: estimated 4, actual 4\n" +
+                "Matches: estimated 0, actual 1";
+        assertEquals(expectedOutput, outputStreamCaptor.toString().trim().replace("\r", ""));
+
+        //the name criterion only runs on the java document, dir1 is skipped by its summary
+        commandProcessor.executeCommand("stats reset");
+        outputStreamCaptor.reset();
+        commandProcessor.executeCommand("rSearch CC");
+        assertEquals(5, CommandStats.global().getCriteriaEvaluations());
+        assertTrue(outputStreamCaptor.toString().startsWith("doc2 (java) 44 bytes"));
+    }
+
+    @Test
+    public void testReplicationFollowerCatchesUp() throws InterruptedException {
+        commandProcessor.executeCommand("newDisk 10000");
+        commandProcessor.executeCommand("newDoc doc1 txt aa");
+        commandProcessor.executeCommand("replicate lead 0");
+        CVFS replica = new CVFS();
+        CommandProcessor replicaProcessor = new CommandProcessor(replica);
+        try {
+            //the follower starts from a snapshot and then takes the log
+            replicaProcessor.executeCommand("replicate follow localhost:" + cvfs.getLeader().getPort());
+            commandProcessor.executeCommand("newDir dir1");
+            commandProcessor.executeCommand("changeDir dir1");
+            commandProcessor.executeCommand("newDoc doc2 java bb");
+            commandProcessor.executeCommand("begin");
+            commandProcessor.executeCommand("newDoc doc3 txt cc");
+            commandProcessor.executeCommand("commit");
+            commandProcessor.executeCommand("newSimpleCri AA type equals \"txt\"");
+            awaitReplica(replica);
+
+            Directory root = replica.getCurrentDisk().getRootDirectory();
+            Directory dir1 = (Directory) root.findFile("dir1");
+            assertNotNull(root.findFile("doc1"));
+            assertNotNull(dir1.findFile("doc2"));
+            assertNotNull(dir1.findFile("doc3"));
+            assertEquals(cvfs.getCurrentDisk().getRootDirectory().getSize(), root.getSize());
+            assertEquals("root", replica.getWorkingDirectory().getName());
+
+            outputStreamCaptor.reset();
+            replicaProcessor.executeCommand("newDoc doc4 txt dd");
+            assertEquals("Error: This disk is a read-only replica.", outputStreamCaptor.toString().trim());
+            outputStreamCaptor.reset();
+            replicaProcessor.executeCommand("rSearch AA");
+            assertTrue(outputStreamCaptor.toString().contains("Total number of file/directory: 1"));
+
+            //a new disk on the leader is sent as a new snapshot
+            commandProcessor.executeCommand("newDisk 5000");
+            commandProcessor.executeCommand("newDoc doc5 css ee");
+            awaitReplica(replica);
+            root = replica.getCurrentDisk().getRootDirectory();
+            assertNull(root.findFile("dir1"));
+            assertNotNull(root.findFile("doc5"));
+        } finally {
+            replicaProcessor.executeCommand("replicate stop");
+            commandProcessor.executeCommand("replicate stop");
+        }
+    }
+
+    @Test
+    public void testShardedDiskRoutesAndMerges() throws IOException {
+        ShardServer first = new ShardServer(new CVFS(), 0);
+        ShardServer second = new ShardServer(new CVFS(), 0);
+        try {
+            commandProcessor.executeCommand("shard connect localhost:" + first.getPort() + " localhost:" + second.getPort());
+            commandProcessor.executeCommand("newDisk 400");
+            for (String dir : new String[]{"a", "b", "c", "d"}) {
+                commandProcessor.executeCommand("newDir " + dir);
+            }
+            commandProcessor.executeCommand("changeDir b");
+            commandProcessor.executeCommand("newDoc doc1 txt aa");
+            commandProcessor.executeCommand("changeDir $/root/d");
+            commandProcessor.executeCommand("newDoc doc2 java bbbb");
+            commandProcessor.executeCommand("changeDir ..");
+            commandProcessor.executeCommand("newSimpleCri AA type equals \"txt\"");
+
+            //every top-level directory lives on one shard, the tree is split between both
+            assertTrue(cvfs.getCurrentDisk().getRootDirectory().getContents().isEmpty());
+            outputStreamCaptor.reset();
+            commandProcessor.executeCommand("rList");
+            assertEquals("a (Directory) 40 bytes\nb (Directory) 84 bytes\n\tdoc1 (txt) 44 bytes\nc (Directory) 40 bytes\n"
+                            + "d (Directory) 88 bytes\n\tdoc2 (java) 48 bytes\nTotal number of files/directory: 4\nTotal size: 252",
+                    outputStreamCaptor.toString().replace("\r", "").trim());
+            outputStreamCaptor.reset();
+            commandProcessor.executeCommand("rSearch AA");
+            assertEquals("doc1 (txt) 44 bytes", outputStreamCaptor.toString().replace("\r", "").split("\n")[0].trim());
+
+            //the capacity is the one of the logical disk: 40 + 4 * 40 + 44 + 48 = 292 of 400 bytes used
+            outputStreamCaptor.reset();
+            commandProcessor.executeCommand("changeDir a");
+            commandProcessor.executeCommand("newDoc big txt " + "x".repeat(40));
+            assertEquals("Not enough space to add document.", outputStreamCaptor.toString().trim());
+            outputStreamCaptor.reset();
+            commandProcessor.executeCommand("newDoc small txt " + "x".repeat(30));
+            assertEquals("", outputStreamCaptor.toString().trim());
+
+            outputStreamCaptor.reset();
+            commandProcessor.executeCommand("changeDir e");
+            assertEquals("Error: Invalid directory.", outputStreamCaptor.toString().trim());
+        } finally {
+            commandProcessor.executeCommand("shard disconnect");
+            first.stop();
+            second.stop();
+        }
+    }
+
+    @Test
+    public void testPublisherHonoursDemandAndCancel() {
+        commandProcessor.executeCommand("newDisk 100000");
+        for (int d = 0; d < 20; d++) {
+            commandProcessor.executeCommand("changeDir $");
+            commandProcessor.executeCommand("newDir dir" + d);
+            commandProcessor.executeCommand("changeDir dir" + d);
+            for (int i = 0; i < 20; i++) {
+                commandProcessor.executeCommand("newDoc doc" + i + " " + (i % 2 == 0 ? "txt" : "java") + " aa");
+            }
+        }
+        commandProcessor.executeCommand("changeDir $");
+        commandProcessor.executeCommand("newSimpleCri AA type equals \"txt\"");
+
+        List<FilePublisher.Entry> received = new ArrayList<>();
+        Flow.Subscription[] subscription = new Flow.Subscription[1];
+        boolean[] completed = new boolean[1];
+        Flow.Subscriber<FilePublisher.Entry> firstThree = new Flow.Subscriber<>() {
+            @Override
+            public void onSubscribe(Flow.Subscription s) {
+                subscription[0] = s;
+            }
+
+            @Override
+            public void onNext(FilePublisher.Entry entry) {
+                received.add(entry);
+                if (received.size() == 3) {
+                    subscription[0].cancel();
+                } else {
+                    subscription[0].request(1); //from inside onNext, one at a time
+                }
+            }
+
+            @Override
+            public void onError(Throwable error) {
+                fail(error.toString());
+            }
+
+            @Override
+            public void onComplete() {
+                completed[0] = true;
+            }
+        };
+        cvfs.publish("AA", true, null).subscribe(firstThree);
+        //nothing is walked before it is requested
+        long visited = CommandStats.global().getNodesVisited();
+        assertTrue(received.isEmpty());
+        subscription[0].request(1);
+        assertEquals(3, received.size());
+        assertEquals("dir0/doc0", received.get(0).getPath());
+        assertEquals("\tdoc2 (txt) 44 bytes", received.get(1).toString());
+        assertEquals("txt", received.get(2).getType());
+        assertFalse(completed[0]);
+        //the first directory and the first five files below it, not the 420 files of the disk
+        assertEquals(6, CommandStats.global().getNodesVisited() - visited);
+
+        //the whole rList, on a snapshot taken at subscription
+        List<String> lines = new ArrayList<>();
+        Flow.Publisher<FilePublisher.Entry> all = cvfs.publish(null, true, null);
+        all.subscribe(new Flow.Subscriber<>() {
+            @Override
+            public void onSubscribe(Flow.Subscription s) {
+                commandProcessor.executeCommand("delete dir0");
+                s.request(Long.MAX_VALUE);
+            }
+
+            @Override
+            public void onNext(FilePublisher.Entry entry) {
+                lines.add(entry.toString());
+            }
+
+            @Override
+            public void onError(Throwable error) {
+                fail(error.toString());
+            }
+
+            @Override
+            public void onComplete() {
+                completed[0] = true;
+            }
+        });
+        assertTrue(completed[0]);
+        assertEquals(420, lines.size());
+        assertEquals("dir0 (Directory) 920 bytes", lines.get(0));
+        assertNull(cvfs.getWorkingDirectory().findFile("dir0"));
+    }
+
+    @Test
+    public void testAppendDocAndReadDoc() {
+        commandProcessor.executeCommand("newDisk 20000");
+        commandProcessor.executeCommand("newDir dir1");
+        commandProcessor.executeCommand("changeDir dir1");
+        commandProcessor.executeCommand("newDoc doc1 txt abc");
+        ContentIndex index = cvfs.getCurrentDisk().getContentIndex();
+
+        outputStreamCaptor.reset();
+        commandProcessor.executeCommand("appendDoc doc1 xyz");
+        commandProcessor.executeCommand("readDoc doc1 2 3");
+        commandProcessor.executeCommand("readDoc doc1 4 100");
+        assertEquals("cxy\nyz", outputStreamCaptor.toString().replace("\r", "").trim());
+        Directory root = cvfs.getCurrentDisk().getRootDirectory();
+        Directory dir1 = (Directory) root.findFile("dir1");
+        assertEquals(52, dir1.findFile("doc1").getSize());
+        assertEquals(92, dir1.getSize());
+        assertEquals(132, root.getSize());
+        assertEquals(52, root.getMaxDocSize());
+        //grams across the old end are indexed
+        assertTrue(index.candidates("cxy").get(dir1.findFile("doc1").getId()));
+
+        //long appends become chunks of a balanced rope, reads only touch their range
+        String chunk = "0123456789".repeat(150);
+        StringBuilder expected = new StringBuilder("abcxyz");
+        for (int i = 0; i < 5; i++) {
+            commandProcessor.executeCommand("appendDoc doc1 " + chunk);
+            expected.append(chunk);
+        }
+        Document doc1 = (Document) dir1.findFile("doc1");
+        assertEquals(expected.toString(), doc1.getContent());
+        assertEquals(expected.substring(1020, 2050), doc1.read(1020, 1030));
+        assertEquals(40 + expected.length() * 2, dir1.getSize() - 40);
+
+        outputStreamCaptor.reset();
+        commandProcessor.executeCommand("readDoc doc1 99999 1");
+        assertEquals("Error: Offset beyond the end of doc1 (7506 characters).", outputStreamCaptor.toString().trim());
+        outputStreamCaptor.reset();
+        commandProcessor.executeCommand("appendDoc doc1 " + "x".repeat(3000));
+        assertEquals("Error: Not enough space to append to doc1.", outputStreamCaptor.toString().trim());
+        outputStreamCaptor.reset();
+        commandProcessor.executeCommand("appendDoc dir1x a");
+        assertEquals("Error: Document not found.", outputStreamCaptor.toString().trim());
+    }
+
+    @Test
+    public void testRopeStaysBalanced() {
+        Rope rope = Rope.of("");
+        StringBuilder expected = new StringBuilder();
+        for (int i = 0; i < 2000; i++) {
+            String piece = Integer.toString(i).repeat(1 + i % 700);
+            rope = rope.append(piece);
+            expected.append(piece);
+        }
+        assertEquals(expected.toString(), rope.toString());
+        assertEquals(expected.substring(12345, 54321), rope.substring(12345, 54321));
+        int chunks = expected.length() / Rope.CHUNK + 1;
+        assertTrue(rope.height() <= 2 * (32 - Integer.numberOfLeadingZeros(chunks)));
+    }
+
+    @Test
+    public void testContentSpillsOverCacheBudget() {
+        commandProcessor.executeCommand("newDisk 100000");
+        for (int i = 0; i < 10; i++) {
+            commandProcessor.executeCommand("newDoc doc" + i + " txt " + Integer.toString(i).repeat(ContentStore.MIN_LENGTH));
+        }
+        commandProcessor.executeCommand("newDoc small txt aa");
+        ContentStore store = cvfs.getCurrentDisk().getContentStore();
+        assertEquals(10L * ContentStore.MIN_LENGTH, store.getResident());
+
+        //room for three documents, the others go to the spill file
+        outputStreamCaptor.reset();
+        commandProcessor.executeCommand("contentCache " + 3 * ContentStore.MIN_LENGTH);
+        assertTrue(outputStreamCaptor.toString().startsWith("Content on the heap: " + 3 * ContentStore.MIN_LENGTH + " of "));
+        assertEquals(7, store.getEvictions());
+
+        //sizes, names and size criteria stay on the heap
+        long loads = store.getLoads();
+        commandProcessor.executeCommand("newSimpleCri BB size > 100");
+        outputStreamCaptor.reset();
+        commandProcessor.executeCommand("rSearch BB");
+        assertTrue(outputStreamCaptor.toString().contains("Total number of file/directory: 10"));
+        assertEquals(loads, store.getLoads());
+
+        //a range read goes to the file without bringing the document back
+        Document doc0 = (Document) cvfs.getWorkingDirectory().findFile("doc0");
+        outputStreamCaptor.reset();
+        commandProcessor.executeCommand("readDoc doc0 10 4");
+        assertEquals("0000", outputStreamCaptor.toString().trim());
+        assertEquals(3L * ContentStore.MIN_LENGTH, store.getResident());
+
+        //content criteria read everything back, the budget holds again after the command
+        commandProcessor.executeCommand("newSimpleCri CC content contains \"99\"");
+        outputStreamCaptor.reset();
+        commandProcessor.executeCommand("search CC");
+        assertTrue(outputStreamCaptor.toString().startsWith("doc9 (txt) "));
+        assertTrue(store.getLoads() > loads);
+        assertTrue(store.getResident() <= 3L * ContentStore.MIN_LENGTH);
+        assertEquals("0".repeat(ContentStore.MIN_LENGTH), doc0.getContent());
+
+        //appending to a spilled document keeps the spilled part
+        commandProcessor.executeCommand("appendDoc doc1 xyz");
+        Document doc1 = (Document) cvfs.getWorkingDirectory().findFile("doc1");
+        assertEquals("1".repeat(ContentStore.MIN_LENGTH) + "xyz", doc1.getContent());
+        assertEquals(40 + (ContentStore.MIN_LENGTH + 3) * 2, doc1.getSize());
+    }
+
+    @Test
+    public void testContentTierFollowsCopies() throws Exception {
+        String image = java.nio.file.Files.createTempDirectory("cvfs-image").resolve("disk").toString();
+        commandProcessor.executeCommand("newDisk 100000");
+        commandProcessor.executeCommand("newDoc big txt " + "b".repeat(ContentStore.MIN_LENGTH + 88));
+        commandProcessor.executeCommand("snapshot s1");
+        //the rename gives the live tree its own copy of the document
+        commandProcessor.executeCommand("rename big big2");
+        commandProcessor.executeCommand("contentCache 0");
+        ContentStore store = cvfs.getCurrentDisk().getContentStore();
+        assertEquals(0, store.getResident());
+        assertEquals(1, store.getEvictions());
+        long loads = store.getLoads();
+        outputStreamCaptor.reset();
+        commandProcessor.executeCommand("readDoc big2 0 3");
+        assertEquals("bbb", outputStreamCaptor.toString().trim());
+        assertEquals(loads + 1, store.getLoads());
+
+        //saving reads the spilled content without bringing it back
+        commandProcessor.executeCommand("save " + image);
+        cvfs.awaitSaves();
+        assertEquals(0, store.getResident());
+        loads = store.getLoads();
+        commandProcessor.executeCommand("readDoc big2 0 3");
+        assertEquals(loads + 1, store.getLoads());
+
+        //appending to the copy charges its entry, not a new one
+        commandProcessor.executeCommand("contentCache " + 10 * ContentStore.MIN_LENGTH);
+        commandProcessor.executeCommand("appendDoc big2 xyz");
+        assertEquals(ContentStore.MIN_LENGTH + 91, store.getResident());
+        commandProcessor.executeCommand("rollback s1");
+        assertEquals(ContentStore.MIN_LENGTH + 88, store.getResident());
+    }
+
+    @Test
+    public void testImageSectionsAttachOnLoad() throws Exception {
+        String image = java.nio.file.Files.createTempDirectory("cvfs-image").resolve("disk").toString();
+        commandProcessor.executeCommand("newDisk 100000");
+        commandProcessor.executeCommand("newDir dir1");
+        commandProcessor.executeCommand("changeDir dir1");
+        commandProcessor.executeCommand("newDoc doc1 txt alphabet");
+        commandProcessor.executeCommand("newDoc doc2 java betamax");
+        commandProcessor.executeCommand("changeDir $");
+        commandProcessor.executeCommand("newDoc doc3 html gamma");
+        commandProcessor.executeCommand("newSimpleCri AA content contains \"bet\"");
+        cvfs.getCurrentDisk().getContentIndex();
+        cvfs.getCurrentDisk().getStats();
+        Directory dir1 = (Directory) cvfs.getCurrentDisk().getRootDirectory().findFile("dir1");
+        long nameMask = dir1.getNameMask();
+        int minDocSize = dir1.getMinDocSize();
+        commandProcessor.executeCommand("save " + image);
+        cvfs.awaitSaves();
+
+        //the content index, statistics and summaries come from the image
+        commandProcessor.executeCommand("load " + image);
+        VirtualDisk disk = cvfs.getCurrentDisk();
+        assertTrue(disk.hasContentIndex());
+        assertTrue(disk.hasStats());
+        assertEquals(3, disk.getStats().getDocuments());
+        assertEquals(2, disk.getContentIndex().candidates("bet").cardinality());
+        dir1 = (Directory) disk.getRootDirectory().findFile("dir1");
+        assertEquals(nameMask, dir1.getNameMask());
+        assertEquals(minDocSize, dir1.getMinDocSize());
+        outputStreamCaptor.reset();
+        commandProcessor.executeCommand("rSearch AA");
+        assertTrue(outputStreamCaptor.toString().startsWith("\tdoc1 (txt) 56 bytes\n\tdoc2 (java) 54 bytes\n"));
+
+        //a corrupted section is ignored and the index is built again when needed
+        try (java.io.RandomAccessFile file = new java.io.RandomAccessFile(image + ".dat", "rw")) {
+            long offset = DiskImage.sectionOffset(file, DiskImage.CONTENT_INDEX);
+            assertTrue(offset > 0);
+            file.seek(offset + 8);
+            int b = file.read();
+            file.seek(offset + 8);
+            file.write(b ^ 0xFF);
+        }
+        commandProcessor.executeCommand("load " + image);
+        assertFalse(commandProcessor.flag);
+        assertFalse(cvfs.getCurrentDisk().hasContentIndex());
+        assertTrue(cvfs.getCurrentDisk().hasStats());
+        outputStreamCaptor.reset();
+        commandProcessor.executeCommand("rSearch AA");
+        assertTrue(outputStreamCaptor.toString().startsWith("\tdoc1 (txt) 56 bytes\n\tdoc2 (java) 54 bytes\n"));
+        assertEquals(2, cvfs.getCurrentDisk().getContentIndex().candidates("bet").cardinality());
+    }
+
+    private void awaitReplica(CVFS replica) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10000;
+        while (replica.getFollower().getAppliedSeq() < cvfs.getLeader().getLog().lastSeq()
+                || replica.getCurrentDisk().getRootDirectory().getSize() != cvfs.getCurrentDisk().getRootDirectory().getSize()) {
+            assertTrue("replica did not catch up", System.currentTimeMillis() < deadline);
+            Thread.sleep(10);
+        }
+    }
 
     //Quit will stop the test, which shows it is successful
 //    @Test